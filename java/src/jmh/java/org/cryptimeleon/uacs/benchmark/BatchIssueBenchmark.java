@@ -0,0 +1,87 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.BatchIssuer;
+import org.cryptimeleon.uacs.IssueJoinFiatShamirProtocol;
+import org.cryptimeleon.uacs.KeyPair;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the provider's last Join round (Fiat-Shamir variant), which checks the well-formedness proof and signs:
+ * "single" runs the sessions one by one like the single-session path, "batch-n" hands them to a {@link BatchIssuer}
+ * running on n cores (which also checks the proofs in batches). Divide the score by n for the throughput per core.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BatchIssueBenchmark.BATCH_SIZE)
+public class BatchIssueBenchmark extends ProtocolBenchmarkState {
+    static final int BATCH_SIZE = 64;
+
+    @Param({"single", "batch-1", "batch-2", "batch-4", "batch-8"})
+    public String path;
+
+    private IssueJoinFiatShamirProtocol protocol;
+    private final List<byte[]> sessionIds = new ArrayList<>();
+    private final List<Representation> providerStates = new ArrayList<>(), userMessages = new ArrayList<>();
+    private ForkJoinPool forkJoinPool;
+    private BatchIssuer batchIssuer;
+    private List<BatchIssuer.PendingJoin> requests;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        protocol = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            KeyPair<GroupElement, Zn.ZnElement> key = incentiveSystem.keyGen();
+            byte[] sessionId = {(byte) i};
+            IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance user = protocol.instantiateUser(key.pk, key.sk, sessionId);
+            IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance provider = protocol.instantiateProvider(key.pk, sessionId, issuerKey.getSigningKey());
+            Representation providerMessage = provider.nextMessage(user.nextMessage(null));
+            sessionIds.add(sessionId);
+            providerStates.add(provider.exportProviderState());
+            userMessages.add(user.nextMessage(providerMessage));
+        }
+        if (path.startsWith("batch")) {
+            int cores = ProtocolStepper.parseRound(path);
+            forkJoinPool = cores > 1 ? new ForkJoinPool(cores) : null;
+            batchIssuer = new BatchIssuer(forkJoinPool);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (forkJoinPool != null)
+            forkJoinPool.shutdown();
+    }
+
+    /**
+     * Resumes fresh provider instances waiting for the users' messages (the same ones every invocation).
+     */
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        requests = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++)
+            requests.add(new BatchIssuer.PendingJoin(
+                    protocol.resumeProvider(providerStates.get(i), sessionIds.get(i), issuerKey.getSigningKey(), null),
+                    userMessages.get(i)
+            ));
+    }
+
+    @Benchmark
+    public List<?> issue() {
+        if (batchIssuer != null)
+            return batchIssuer.issue(requests);
+        List<Representation> replies = new ArrayList<>();
+        for (BatchIssuer.PendingJoin request : requests)
+            replies.add(request.provider.nextMessage(request.message));
+        return replies;
+    }
+}
@@ -0,0 +1,80 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.uacs.doublespending.BlockedBloomFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup latency of the {@link BlockedBloomFilter} in front of the spent-dsid index, filled with the given number
+ * of random 32-byte dsids: "fresh" looks up dsids that were not added (the common case for Spend),
+ * "spent" ones that were. The falsePositives and freshLookups counters give the false-positive rate.
+ * <p>
+ * At 10^8 entries and 16 bits per entry, the filter takes 200 MB of direct memory (so the fork may need a larger
+ * -XX:MaxDirectMemorySize than the heap size it defaults to).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BloomFilterBenchmark {
+    @Param({"1000000", "100000000"})
+    public long entries;
+
+    @Param({"8", "16"})
+    public int bitsPerEntry;
+
+    private static final int DSID_BYTES = 32;
+    private static final int SAMPLE = 1 << 16;
+
+    private BlockedBloomFilter filter;
+    private final byte[][] spentDsids = new byte[SAMPLE][], freshDsids = new byte[SAMPLE][];
+    private int next = 0;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Rates {
+        public long freshLookups;
+        public long falsePositives;
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        filter = new BlockedBloomFilter(entries, bitsPerEntry);
+        SplittableRandom random = new SplittableRandom(1);
+        byte[] dsid = new byte[DSID_BYTES];
+        long sampleEvery = entries / SAMPLE;
+        for (long i = 0; i < entries; i++) {
+            nextBytes(random, dsid);
+            filter.add(dsid);
+            if (i % sampleEvery == 0 && i / sampleEvery < SAMPLE)
+                spentDsids[(int) (i / sampleEvery)] = dsid.clone();
+        }
+        for (int i = 0; i < SAMPLE; i++) {
+            freshDsids[i] = new byte[DSID_BYTES];
+            nextBytes(random, freshDsids[i]);
+        }
+    }
+
+    private static void nextBytes(SplittableRandom random, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i += Long.BYTES) {
+            long value = random.nextLong();
+            for (int j = 0; j < Long.BYTES; j++)
+                bytes[i + j] = (byte) (value >>> 8 * j);
+        }
+    }
+
+    @Benchmark
+    public boolean fresh(Rates rates) {
+        boolean result = filter.mightContain(freshDsids[next++ & (SAMPLE - 1)]);
+        rates.freshLookups++;
+        if (result)
+            rates.falsePositives++;
+        return result;
+    }
+
+    @Benchmark
+    public boolean spent() {
+        return filter.mightContain(spentDsids[next++ & (SAMPLE - 1)]);
+    }
+}
@@ -0,0 +1,68 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.converter.JSONConverter;
+import org.cryptimeleon.uacs.ParameterSnapshot;
+import org.cryptimeleon.uacs.PreparedIssuerKey;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time until a new provider instance has its public parameters and prepared issuer key:
+ * generating them ("generate"), restoring them from JSON ("json") or loading a {@link ParameterSnapshot} ("snapshot").
+ * Runs as single shots in fresh forks, so that the numbers include class loading and JIT warm-up like a real cold start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class ColdStartBenchmark extends ProtocolBenchmarkState {
+    @Param({"generate", "json", "snapshot"})
+    public String source;
+
+    private String json;
+    private Path snapshot;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        setupSystem();
+        ObjectRepresentation repr = new ObjectRepresentation();
+        repr.put("pp", incentiveSystem.getRepresentation());
+        repr.put("pk", issuerKey.getVerificationKey().getRepresentation());
+        json = new JSONConverter().serialize(repr);
+        snapshot = Files.createTempFile("uacs", ".snapshot");
+        ParameterSnapshot.write(snapshot, incentiveSystem, issuerKey.getVerificationKey());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public PreparedIssuerKey start() throws IOException {
+        switch (source) {
+            case "generate": {
+                UacsIncentiveSystem pp = new UacsIncentiveSystem(createGroup(group));
+                return new PreparedIssuerKey(pp.issuerKeyGen().getVerificationKey());
+            }
+            case "json": {
+                ObjectRepresentation repr = new JSONConverter().deserialize(json).obj();
+                UacsIncentiveSystem pp = new UacsIncentiveSystem(repr.get("pp"));
+                return new PreparedIssuerKey((PSExtendedVerificationKey) pp.psSigs.restoreVerificationKey(repr.get("pk")));
+            }
+            case "snapshot":
+                return ParameterSnapshot.load(snapshot).prepareIssuerKey();
+            default:
+                throw new IllegalArgumentException("Unknown source " + source);
+        }
+    }
+}
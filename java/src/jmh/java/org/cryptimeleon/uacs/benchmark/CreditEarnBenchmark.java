@@ -0,0 +1,44 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.uacs.CreditEarnProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a single round of {@link CreditEarnProtocol}. Even rounds are run by the user, odd rounds by the provider.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CreditEarnBenchmark extends ProtocolBenchmarkState {
+    @Param({"user-0", "provider-1", "user-2", "provider-3", "user-4"})
+    public String round;
+
+    @Param({"100"})
+    public int k;
+
+    private CreditEarnProtocol protocol;
+    private ProtocolStepper stepper;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        setupToken();
+        protocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        stepper = new ProtocolStepper(
+                protocol.instantiateUser(k, token),
+                protocol.instantiateProvider(k, issuerKey.getSigningKey())
+        ).advanceTo(ProtocolStepper.parseRound(round));
+    }
+
+    @Benchmark
+    public Representation round() {
+        return stepper.step();
+    }
+}
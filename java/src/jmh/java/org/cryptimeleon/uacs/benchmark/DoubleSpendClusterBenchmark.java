@@ -0,0 +1,63 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.uacs.DoubleSpendTag;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendShard;
+import org.cryptimeleon.uacs.doublespending.LocalDoubleSpendCluster;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of recording spent dsids (durably, i.e. until the future completes) from 32 provider threads
+ * in a {@link LocalDoubleSpendCluster} with the given number of nodes, each group-committing its writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(32)
+public class DoubleSpendClusterBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int nodes;
+
+    @Param({"64"})
+    public int maxBatchSize;
+
+    private UacsIncentiveSystem incentiveSystem;
+    private DoubleSpendTag tag;
+    private Path directory;
+    private LocalDoubleSpendCluster cluster;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        incentiveSystem = new UacsIncentiveSystem(ProtocolBenchmarkState.createGroup("mcl"));
+        tag = new DoubleSpendTag(incentiveSystem.zp.getUniformlyRandomElement(), incentiveSystem.zp.getUniformlyRandomElement(),
+                incentiveSystem.group.getG1().getUniformlyRandomElement(), incentiveSystem.group.getG1().getUniformlyRandomElement());
+        directory = Files.createTempDirectory("dscluster");
+        cluster = new LocalDoubleSpendCluster(incentiveSystem, directory, nodes, maxBatchSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        long commits = 0, entries = 0;
+        for (DoubleSpendShard shard : cluster.getShards().values()) {
+            commits += shard.getCommits();
+            entries += shard.getCommittedEntries();
+        }
+        System.out.printf("%n%d entries in %d commits (%.1f per sync)%n", entries, commits, (double) entries / commits);
+        cluster.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public DoubleSpendTag addEntry() {
+        return cluster.getService().addEntry(incentiveSystem.zp.getUniformlyRandomElement(), tag).join();
+    }
+}
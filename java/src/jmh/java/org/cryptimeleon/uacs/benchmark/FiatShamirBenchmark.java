@@ -0,0 +1,93 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.uacs.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end latency of the interactive protocols vs. their Fiat-Shamir variants,
+ * with a simulated one-way network latency per message.
+ * The flows counter reports how many messages were sent (per operation, divide by the op count).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FiatShamirBenchmark extends ProtocolBenchmarkState {
+    @Param({"issue", "earn", "spend"})
+    public String protocol;
+
+    @Param({"interactive", "fiatShamir"})
+    public String variant;
+
+    @Param({"0", "40"})
+    public int oneWayLatencyMillis;
+
+    private static final byte[] sessionId = new byte[16];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Flows {
+        public long flows;
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        setupToken();
+    }
+
+    @Benchmark
+    public void run(Flows flows) throws InterruptedException {
+        TwoPartyProtocolInstance user, provider;
+        boolean interactive = variant.equals("interactive");
+        switch (protocol) {
+            case "issue":
+                if (interactive) {
+                    IssueJoinProtocol issue = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+                    user = issue.instantiateUser(userKey.pk, userKey.sk);
+                    provider = issue.instantiateProvider(userKey.pk, issuerKey.getSigningKey());
+                } else {
+                    IssueJoinFiatShamirProtocol issue = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+                    user = issue.instantiateUser(userKey.pk, userKey.sk, sessionId);
+                    provider = issue.instantiateProvider(userKey.pk, sessionId, issuerKey.getSigningKey());
+                }
+                break;
+            case "earn":
+                if (interactive) {
+                    CreditEarnProtocol earn = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+                    user = earn.instantiateUser(100, token);
+                    provider = earn.instantiateProvider(100, issuerKey.getSigningKey());
+                } else {
+                    CreditEarnFiatShamirProtocol earn = new CreditEarnFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+                    user = earn.instantiateUser(100, token, sessionId);
+                    provider = earn.instantiateProvider(100, sessionId, issuerKey.getSigningKey());
+                }
+                break;
+            case "spend":
+                if (interactive) {
+                    SpendDeductProtocol spend = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+                    user = spend.instantiateUser(20, token);
+                    provider = spend.instantiateProvider(20, token.dsid, issuerKey.getSigningKey());
+                } else {
+                    SpendDeductFiatShamirProtocol spend = new SpendDeductFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+                    user = spend.instantiateUser(20, token, sessionId);
+                    provider = spend.instantiateProvider(20, token.dsid, sessionId, issuerKey.getSigningKey());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown protocol " + protocol);
+        }
+
+        ProtocolStepper stepper = new ProtocolStepper(user, provider);
+        while (!user.hasTerminated() || !provider.hasTerminated()) {
+            Representation message = stepper.step();
+            if (message != null) {
+                flows.flows++;
+                Thread.sleep(oneWayLatencyMillis);
+            }
+        }
+    }
+}
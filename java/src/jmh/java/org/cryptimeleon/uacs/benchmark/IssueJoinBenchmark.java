@@ -0,0 +1,40 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.uacs.IssueJoinProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a single round of {@link IssueJoinProtocol}. Even rounds are run by the user, odd rounds by the provider.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IssueJoinBenchmark extends ProtocolBenchmarkState {
+    @Param({"user-0", "provider-1", "user-2", "provider-3", "user-4", "provider-5", "user-6"})
+    public String round;
+
+    private IssueJoinProtocol protocol;
+    private ProtocolStepper stepper;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        protocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        stepper = new ProtocolStepper(
+                protocol.instantiateUser(userKey.pk, userKey.sk),
+                protocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey())
+        ).advanceTo(ProtocolStepper.parseRound(round));
+    }
+
+    @Benchmark
+    public Representation round() {
+        return stepper.step();
+    }
+}
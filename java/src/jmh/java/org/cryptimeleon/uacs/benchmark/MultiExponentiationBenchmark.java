@@ -0,0 +1,70 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.cartesian.GroupElementVector;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the hot products of exponentiations in Issue/Earn/Spend, evaluated either term by term ("separate",
+ * i.e. with a compute() after every exponentiation) or as a single multi-exponentiation ("multiexp",
+ * as the protocols do now). See {@link SpendDeductBenchmark} etc. for the effect on whole rounds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultiExponentiationBenchmark extends ProtocolBenchmarkState {
+    /**
+     * "commitment" is Spend's C = Y1^usk Y2^dsid* Y3^dsrnd* Y4^(v-k) g^r (Issue's c is the same without Y4),
+     * "ctrace1" is w^{r*usk} w^{dsid*}, "earnSignature" is the provider's (sigma1' sigma0'^{y4*k})^r''.
+     */
+    @Param({"commitment", "ctrace1", "earnSignature"})
+    public String expression;
+
+    @Param({"separate", "multiexp"})
+    public String mode;
+
+    private Zn.ZnElement[] exponents;
+    private GroupElement sigma0prime, sigma1prime;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        setupToken();
+        sigma0prime = token.sig.getGroup1ElementSigma1();
+        sigma1prime = token.sig.getGroup1ElementSigma2();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        exponents = new Zn.ZnElement[5];
+        for (int i = 0; i < exponents.length; i++)
+            exponents[i] = incentiveSystem.zp.getUniformlyRandomElement();
+    }
+
+    @Benchmark
+    public GroupElement evaluate() {
+        boolean separate = mode.equals("separate");
+        switch (expression) {
+            case "commitment": {
+                GroupElementVector yi = preparedIssuerKey.pk.getGroup1ElementsYi();
+                GroupElement result = preparedIssuerKey.pk.getGroup1ElementG().pow(exponents[4]);
+                for (int i = 0; i < 4; i++)
+                    result = separate ? result.compute().op(yi.get(i).pow(exponents[i]).compute()) : result.op(yi.get(i).pow(exponents[i]));
+                return result.compute();
+            }
+            case "ctrace1":
+                if (separate)
+                    return incentiveSystem.w.pow(exponents[0].mul(exponents[1])).compute().op(incentiveSystem.w.pow(exponents[2]).compute()).compute();
+                return incentiveSystem.w.pow(exponents[0].mul(exponents[1]).add(exponents[2])).compute();
+            case "earnSignature":
+                if (separate)
+                    return sigma1prime.op(sigma0prime.pow(exponents[0]).compute()).compute().pow(exponents[1]).compute();
+                return sigma1prime.pow(exponents[1]).op(sigma0prime.pow(exponents[0].mul(exponents[1]))).compute();
+            default:
+                throw new IllegalArgumentException("Unknown expression " + expression);
+        }
+    }
+}
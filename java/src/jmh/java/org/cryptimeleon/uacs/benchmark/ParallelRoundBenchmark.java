@@ -0,0 +1,54 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.uacs.SpendDeductProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the user's proof round of Spend (round 2) when its independent computations run on a fork-join pool
+ * with the given parallelism (1 means no pool, i.e. sequential).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelRoundBenchmark extends ProtocolBenchmarkState {
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private SpendDeductProtocol protocol;
+    private ForkJoinPool forkJoinPool;
+    private ProtocolStepper stepper;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        setupToken();
+        protocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+        if (parallelism > 1) {
+            forkJoinPool = new ForkJoinPool(parallelism);
+            protocol.setParallelism(forkJoinPool);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (forkJoinPool != null)
+            forkJoinPool.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        stepper = new ProtocolStepper(
+                protocol.instantiateUser(20, token),
+                protocol.instantiateProvider(20, token.dsid, issuerKey.getSigningKey())
+        ).advanceTo(2);
+    }
+
+    @Benchmark
+    public Representation round() {
+        return stepper.step();
+    }
+}
@@ -0,0 +1,72 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.craco.protocols.arguments.InteractiveArgument;
+import org.cryptimeleon.craco.protocols.base.AdHocSchnorrProof;
+import org.cryptimeleon.math.expressions.exponent.BasicNamedExponentVariableExpr;
+import org.cryptimeleon.math.structures.cartesian.Vector;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.elliptic.BilinearMap;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.ProofTemplates;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction time (and, with the gc profiler, allocation) of the spend proof,
+ * built from scratch ("rebuild", as the protocols did before) vs. bound from {@link ProofTemplates} ("template").
+ * Only construction is measured, so the statement values need not form a valid statement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProofConstructionBenchmark extends ProtocolBenchmarkState {
+    @Param({"rebuild", "template"})
+    public String mode;
+
+    @Param({"20"})
+    public int k;
+
+    private ProofTemplates templates;
+    private Zn.ZnElement gamma, schnorrTrickC;
+    private GroupElement sigma0prime, sigma1prime, ctrace0, ctrace1, commitmentC, Cdsidstar0, Cdsidstar1;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        templates = new ProofTemplates(incentiveSystem, preparedIssuerKey);
+        gamma = incentiveSystem.zp.getUniformlyRandomElement();
+        schnorrTrickC = incentiveSystem.zp.getUniformlyRandomElement();
+        sigma0prime = incentiveSystem.group.getG1().getUniformlyRandomNonNeutral();
+        sigma1prime = incentiveSystem.group.getG1().getUniformlyRandomElement();
+        ctrace0 = incentiveSystem.group.getG1().getUniformlyRandomElement();
+        ctrace1 = incentiveSystem.group.getG1().getUniformlyRandomElement();
+        commitmentC = incentiveSystem.group.getG1().getUniformlyRandomElement();
+        Cdsidstar0 = incentiveSystem.group.getG1().getUniformlyRandomElement();
+        Cdsidstar1 = incentiveSystem.group.getG1().getUniformlyRandomElement();
+    }
+
+    @Benchmark
+    public InteractiveArgument spendProof() {
+        if (mode.equals("template"))
+            return templates.bindSpend(k, gamma, schnorrTrickC, sigma0prime, sigma1prime, ctrace0, ctrace1, commitmentC, Cdsidstar0, Cdsidstar1)
+                    .buildInteractiveDamgard(incentiveSystem.commitmentSchemeForDamgard);
+        return rebuildSpendProof();
+    }
+
+    private InteractiveArgument rebuildSpendProof() {
+        BilinearMap e = incentiveSystem.group.getBilinearMap();
+        return AdHocSchnorrProof.builder(incentiveSystem.zp)
+                .addLinearExponentStatement("uskSchnorrTrick", schnorrTrickC.isEqualTo(gamma.asExponentExpression().mul("usk").add("dsrnd")))
+                .addLinearStatement("psVerify",
+                        e.applyExpr(sigma0prime, issuerKey.getVerificationKey().getGroup2ElementTildeX().op(issuerKey.getVerificationKey().getGroup2ElementsTildeYi().expr().innerProduct(Vector.of("usk", "dsid", "dsrnd", "v"))))
+                                .isEqualTo(e.applyExpr(sigma1prime.op(sigma0prime.inv().pow("rPrime")), issuerKey.getVerificationKey().getGroup2ElementTildeG())))
+                .addSmallerThanPowerStatement("enoughPoints", new BasicNamedExponentVariableExpr("v").sub(k), incentiveSystem.rangeBase, incentiveSystem.rangePower, incentiveSystem.setMembershipPp)
+                .addLinearStatement("ctrace0open", ctrace0.isEqualTo(incentiveSystem.w.pow("r")))
+                .addLinearStatement("ctrace1open", ctrace1.isEqualTo(ctrace0.pow("usk").op(incentiveSystem.w.pow("dsidStar"))))
+                .addLinearStatement("updatedMessageOpen", commitmentC.isEqualTo(issuerKey.getVerificationKey().getGroup1ElementsYi().expr().innerProduct(Vector.of("usk", "dsidStar", "dsrndStar", incentiveSystem.zp.valueOf(k).neg().asExponentExpression().add("v"))).op(issuerKey.getVerificationKey().getGroup1ElementG().pow("rCommitmentC"))))
+                .addLinearStatement("encryptionOfDsidStar0", Cdsidstar0.isEqualTo(incentiveSystem.g.pow("dsidStar").op(incentiveSystem.h.pow("openStar"))))
+                .addLinearStatement("encryptionOfDsidStar1", Cdsidstar1.isEqualTo(incentiveSystem.g.pow("openStar")))
+                .buildInteractiveDamgard(incentiveSystem.commitmentSchemeForDamgard);
+    }
+}
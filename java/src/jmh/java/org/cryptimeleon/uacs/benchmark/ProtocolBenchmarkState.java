@@ -0,0 +1,61 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.elliptic.BilinearGroup;
+import org.cryptimeleon.math.structures.groups.elliptic.type3.bn.BarretoNaehrigBilinearGroup;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Shared setup for the protocol benchmarks: public parameters, keys and a token with enough points to spend.
+ */
+public abstract class ProtocolBenchmarkState {
+    /**
+     * "mcl" is the native mcl BN254 implementation, "bn" the pure-Java Barreto-Naehrig group.
+     */
+    @Param({"mcl", "bn"})
+    public String group;
+
+    public UacsIncentiveSystem incentiveSystem;
+    public KeyPair<GroupElement, Zn.ZnElement> userKey;
+    public SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey;
+    public PreparedIssuerKey preparedIssuerKey;
+    public Token token;
+
+    protected void setupSystem() {
+        incentiveSystem = new UacsIncentiveSystem(createGroup(group));
+        issuerKey = incentiveSystem.issuerKeyGen();
+        preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+        userKey = incentiveSystem.keyGen();
+    }
+
+    /**
+     * Runs Join and a large Earn, so that the resulting token can be used for Earn and Spend benchmarks.
+     */
+    protected void setupToken() {
+        IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+        IssueJoinProtocol.IssueJoinProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk);
+        issueProtocol.runProtocolLocally(issueUser, issueProtocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+
+        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+        CreditEarnProtocol.CreditEarnProtocolInstance earnUser = earnProtocol.instantiateUser(1000000, issueUser.getUserResult());
+        earnProtocol.runProtocolLocally(earnUser, earnProtocol.instantiateProvider(1000000, issuerKey.getSigningKey()));
+        token = earnUser.getUserResult();
+    }
+
+    public static BilinearGroup createGroup(String name) {
+        switch (name) {
+            case "mcl":
+                return new MclBilinearGroup();
+            case "bn":
+                return new BarretoNaehrigBilinearGroup(128);
+            default:
+                throw new IllegalArgumentException("Unknown group " + name);
+        }
+    }
+}
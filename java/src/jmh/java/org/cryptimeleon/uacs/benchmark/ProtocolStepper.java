@@ -0,0 +1,53 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.math.serialization.Representation;
+
+/**
+ * Drives a user and a provider instance against each other one message at a time,
+ * so that a benchmark can stop right before the round it wants to measure.
+ */
+public class ProtocolStepper {
+    private final TwoPartyProtocolInstance user, provider;
+    private TwoPartyProtocolInstance currentParty;
+    private Representation message;
+    private int round = 0;
+
+    public ProtocolStepper(TwoPartyProtocolInstance user, TwoPartyProtocolInstance provider) {
+        this.user = user;
+        this.provider = provider;
+        this.currentParty = user.sendsFirstMessage() ? user : provider;
+    }
+
+    /**
+     * Runs all rounds before the given one.
+     */
+    public ProtocolStepper advanceTo(int round) {
+        while (this.round < round)
+            step();
+        return this;
+    }
+
+    /**
+     * Runs the next round (for whichever party's turn it is) and returns the message it produced.
+     */
+    public Representation step() {
+        message = currentParty.nextMessage(message);
+        currentParty = currentParty == user ? provider : user;
+        round++;
+        return message;
+    }
+
+    public void finish() {
+        while (!user.hasTerminated() || !provider.hasTerminated())
+            step();
+    }
+
+    /**
+     * Parses round names of the form "user-2" or "provider-3" into the round number.
+     * Even rounds belong to the user, odd rounds to the provider.
+     */
+    public static int parseRound(String round) {
+        return Integer.parseInt(round.substring(round.indexOf('-') + 1));
+    }
+}
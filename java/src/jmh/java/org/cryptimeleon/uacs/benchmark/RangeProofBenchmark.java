@@ -0,0 +1,99 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.transport.WireCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the range proof decomposition (see {@link UacsIncentiveSystem#UacsIncentiveSystem(org.cryptimeleon.math.structures.groups.elliptic.BilinearGroup, int, int)})
+ * for different bases, with rangePower chosen for balances below 2^balanceBits.
+ * <ul>
+ *     <li>prove: the user's Spend round computing the proof (Fiat-Shamir variant, so the whole proof is in one message),</li>
+ *     <li>verify: the provider's round checking it,</li>
+ *     <li>setup: generating the public parameters (see the gc profiler's alloc.rate.norm for the setup memory).</li>
+ * </ul>
+ * The transcriptBytes and parameterBytes counters report the encoded ({@link WireCodec}) sizes of the proof message and
+ * of the public parameters (per operation, divide by the op count).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RangeProofBenchmark extends ProtocolBenchmarkState {
+    @Param({"16", "256", "4096", "65536"})
+    public int rangeBase;
+
+    @Param({"24", "64"})
+    public int balanceBits;
+
+    private static final byte[] sessionId = new byte[16];
+
+    private SpendDeductFiatShamirProtocol protocol;
+    private WireCodec codec;
+    private ProtocolStepper stepper;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        public long transcriptBytes;
+        public long parameterBytes;
+    }
+
+    /**
+     * Number of digits for balances below 2^balanceBits (the bases are powers of two).
+     */
+    private int rangePower() {
+        int digitBits = Integer.numberOfTrailingZeros(rangeBase);
+        return (balanceBits + digitBits - 1) / digitBits;
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        incentiveSystem = new UacsIncentiveSystem(createGroup(group), rangeBase, rangePower());
+        issuerKey = incentiveSystem.issuerKeyGen();
+        preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+        userKey = incentiveSystem.keyGen();
+        setupToken();
+        protocol = new SpendDeductFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        codec = new WireCodec(incentiveSystem.zp);
+    }
+
+    private ProtocolStepper newStepper() {
+        return new ProtocolStepper(
+                protocol.instantiateUser(20, token, sessionId),
+                protocol.instantiateProvider(20, token.dsid, sessionId, issuerKey.getSigningKey())
+        );
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation(BenchmarkParams params) {
+        String benchmark = params.getBenchmark();
+        if (benchmark.endsWith("prove"))
+            stepper = newStepper().advanceTo(2);
+        else if (benchmark.endsWith("verify"))
+            stepper = newStepper().advanceTo(3);
+    }
+
+    @Benchmark
+    public Representation prove(Sizes sizes) {
+        Representation proofMessage = stepper.step();
+        sizes.transcriptBytes += codec.encodedLength(proofMessage);
+        return proofMessage;
+    }
+
+    @Benchmark
+    public Representation verify() {
+        return stepper.step();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public UacsIncentiveSystem setup(Sizes sizes) {
+        UacsIncentiveSystem pp = new UacsIncentiveSystem(createGroup(group), rangeBase, rangePower());
+        sizes.parameterBytes += codec.encodedLength(pp.getRepresentation());
+        return pp;
+    }
+}
@@ -0,0 +1,44 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to restore (decode and validate) the five G1 points of the user's Spend proof message (C, ctrace0, ctrace1,
+ * sigma0prime, sigma1prime) with {@link org.cryptimeleon.uacs.UacsIncentiveSystem#restoreG1Elements(ForkJoinPool, Representation...)},
+ * sequentially ("sequential") or on a pool with n threads ("parallel-n").
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RestoreBenchmark extends ProtocolBenchmarkState {
+    @Param({"sequential", "parallel-2", "parallel-4"})
+    public String mode;
+
+    private final Representation[] points = new Representation[5];
+    private ForkJoinPool forkJoinPool;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        setupSystem();
+        for (int i = 0; i < points.length; i++)
+            points[i] = incentiveSystem.group.getG1().getUniformlyRandomElement().compute().getRepresentation();
+        if (mode.startsWith("parallel"))
+            forkJoinPool = new ForkJoinPool(ProtocolStepper.parseRound(mode));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (forkJoinPool != null)
+            forkJoinPool.shutdown();
+    }
+
+    @Benchmark
+    public GroupElement[] restore() {
+        return incentiveSystem.restoreG1Elements(forkJoinPool, points);
+    }
+}
@@ -0,0 +1,67 @@
+package org.cryptimeleon.uacs.benchmark;
+
+import org.cryptimeleon.uacs.Token;
+import org.cryptimeleon.uacs.provider.ProviderEngine;
+import org.cryptimeleon.uacs.transport.ProviderServer;
+import org.cryptimeleon.uacs.transport.UserClient;
+import org.cryptimeleon.uacs.transport.WireCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of complete Spend sessions over a loopback {@link ProviderServer} connection,
+ * with the given number of sessions pipelined over the single connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransportBenchmark extends ProtocolBenchmarkState {
+    @Param({"1", "8", "32"})
+    public int inFlight;
+
+    private ProviderEngine engine;
+    private ProviderServer server;
+    private UserClient client;
+    private ExecutorService clientExecutor;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        setupSystem();
+        setupToken();
+        engine = new ProviderEngine(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 60000);
+        server = new ProviderServer(incentiveSystem, engine, new WireCodec(incentiveSystem.zp), new InetSocketAddress("127.0.0.1", 0));
+        clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        client = new UserClient(incentiveSystem, preparedIssuerKey, new WireCodec(incentiveSystem.zp), server.getLocalAddress(), clientExecutor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        client.close();
+        server.close();
+        engine.close();
+        clientExecutor.shutdown();
+    }
+
+    /**
+     * Runs inFlight spends of the same token concurrently (the provider does not check for double-spending here).
+     * One operation is a batch of inFlight spends.
+     */
+    @Benchmark
+    public List<Token> spend() {
+        List<CompletableFuture<Token>> futures = new ArrayList<>(inFlight);
+        for (int i = 0; i < inFlight; i++)
+            futures.add(client.spend(1, token));
+        List<Token> results = new ArrayList<>(inFlight);
+        for (CompletableFuture<Token> future : futures)
+            results.add(future.join());
+        return results;
+    }
+}
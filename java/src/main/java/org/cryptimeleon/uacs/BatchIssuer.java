@@ -0,0 +1,128 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.math.serialization.Representation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the provider's last round of {@link IssueJoinFiatShamirProtocol} (checking the well-formedness proof and
+ * blindly signing c) for many pending Join sessions at once, e.g. when onboarding many users in bulk.
+ * <p>
+ * The well-formedness proofs are checked together with {@link WellFormednessProof#verifyAll(List)}, split into
+ * one batch per core of the pool. If a batch fails, its proofs are checked one by one to find the invalid ones.
+ * Signing runs in parallel on the pool and shares the prepared issuer key's fixed-base tables for g and g^x
+ * (and the signing randomness of the instances' {@link ProviderPrecomputationPool}, if any).
+ * Sessions are signed before their proofs are checked, but a reply is only returned if the proof is valid.
+ * A session with an invalid request is rejected without affecting the others.
+ */
+public class BatchIssuer {
+    private final ForkJoinPool pool;
+
+    /**
+     * A provider instance waiting for the user's second message (after its first round or resumed
+     * via {@link IssueJoinFiatShamirProtocol#resumeProvider(Representation, byte[], org.cryptimeleon.craco.sig.ps.PSSigningKey, ProviderPrecomputationPool)}),
+     * together with that message.
+     */
+    public static class PendingJoin {
+        public final IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance provider;
+        public final Representation message;
+
+        public PendingJoin(IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance provider, Representation message) {
+            this.provider = provider;
+            this.message = message;
+        }
+    }
+
+    public static class IssueResult {
+        public final PendingJoin request;
+        /**
+         * The reply to send to the user (containing the blinded signature), or null if the request was rejected.
+         */
+        public final Representation reply;
+        /**
+         * Why the request was rejected (e.g. an invalid proof or a malformed message), or null if it was accepted.
+         */
+        public final RuntimeException failure;
+
+        public IssueResult(PendingJoin request, Representation reply) {
+            this.request = request;
+            this.reply = reply;
+            this.failure = null;
+        }
+
+        public IssueResult(PendingJoin request, RuntimeException failure) {
+            this.request = request;
+            this.reply = null;
+            this.failure = failure;
+        }
+
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+    }
+
+    /**
+     * @param pool the pool to run on, or null to process the sessions one after the other on the calling thread
+     */
+    public BatchIssuer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Processes the pending sessions and returns the result for each of them, in the same order.
+     */
+    public List<IssueResult> issue(List<PendingJoin> requests) {
+        IssueResult[] results = new IssueResult[requests.size()];
+        ParallelRound round = new ParallelRound(pool);
+        for (int i = 0; i < results.length; i++) {
+            int index = i;
+            PendingJoin request = requests.get(i);
+            round.run(() -> results[index] = sign(request));
+        }
+        round.join();
+
+        List<Integer> signed = new ArrayList<>();
+        for (int i = 0; i < results.length; i++)
+            if (results[i].isSuccessful())
+                signed.add(i);
+        int batchCount = pool == null ? 1 : pool.getParallelism();
+        int batchSize = Math.max(1, (signed.size() + batchCount - 1) / batchCount);
+        for (int start = 0; start < signed.size(); start += batchSize) {
+            List<Integer> batch = signed.subList(start, Math.min(start + batchSize, signed.size()));
+            round.run(() -> checkProofs(batch, results));
+        }
+        round.join();
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    private static IssueResult sign(PendingJoin request) {
+        try {
+            request.provider.deferProofCheck();
+            Representation reply = request.provider.nextMessage(request.message);
+            if (!request.provider.hasTerminated())
+                throw new IllegalStateException("Session was not waiting for the user's second message");
+            return new IssueResult(request, reply);
+        } catch (RuntimeException e) { //invalid or malformed message, e.g. with a field missing
+            return new IssueResult(request, e);
+        }
+    }
+
+    /**
+     * Checks the proofs of the given (signed) sessions as one batch and, if that fails, one by one.
+     * Replaces the results of sessions with an invalid proof.
+     */
+    private static void checkProofs(List<Integer> batch, IssueResult[] results) {
+        List<WellFormednessProof> proofs = new ArrayList<>();
+        for (int index : batch)
+            proofs.add(results[index].request.provider.getWellFormednessProof());
+        if (WellFormednessProof.verifyAll(proofs))
+            return;
+
+        for (int i = 0; i < batch.size(); i++)
+            if (!proofs.get(i).verify())
+                results[batch.get(i)] = new IssueResult(results[batch.get(i)].request, new IllegalStateException("Invalid well-formedness proof"));
+    }
+}
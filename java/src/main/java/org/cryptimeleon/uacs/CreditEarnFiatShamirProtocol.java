@@ -0,0 +1,174 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.protocols.CommonInput;
+import org.cryptimeleon.craco.protocols.SecretInput;
+import org.cryptimeleon.craco.protocols.arguments.fiatshamir.FiatShamirProof;
+import org.cryptimeleon.craco.protocols.arguments.fiatshamir.FiatShamirProofSystem;
+import org.cryptimeleon.craco.protocols.base.AdHocSchnorrProof;
+import org.cryptimeleon.craco.protocols.base.BaseProtocol;
+import org.cryptimeleon.craco.protocols.base.BaseProtocolInstance;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSignature;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+/**
+ * Non-interactive variant of {@link CreditEarnProtocol}.
+ * The signature proof is made non-interactive with Fiat-Shamir, bound to a {@link SessionTranscript},
+ * so the protocol needs two messages instead of four.
+ */
+public class CreditEarnFiatShamirProtocol extends BaseProtocol {
+    private UacsIncentiveSystem pp;
+    private PreparedIssuerKey issuerKey;
+    private PSExtendedVerificationKey pk;
+    private ProofTemplates proofTemplates;
+
+    public CreditEarnFiatShamirProtocol(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this(pp, new PreparedIssuerKey(pk));
+    }
+
+    public CreditEarnFiatShamirProtocol(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
+        super("user", "provider");
+        this.pp = pp;
+        this.issuerKey = issuerKey;
+        this.pk = issuerKey.pk;
+        this.proofTemplates = new ProofTemplates(pp, issuerKey);
+    }
+
+    @Override
+    public CreditEarnFiatShamirProtocolInstance instantiateProtocol(String role, CommonInput commonInput, SecretInput secretInput) {
+        EarnFiatShamirCommonInput input = (EarnFiatShamirCommonInput) commonInput;
+        if (role.equals("user"))
+            return new CreditEarnFiatShamirProtocolInstance(input, ((UacsIncentiveSystem.UserInput) secretInput).token);
+        if (role.equals("provider"))
+            return new CreditEarnFiatShamirProtocolInstance(input, ((UacsIncentiveSystem.ProviderInput) secretInput).sk, ((UacsIncentiveSystem.ProviderInput) secretInput).providerPool);
+        throw new IllegalArgumentException("Unknown role");
+    }
+
+    public CreditEarnFiatShamirProtocolInstance instantiateUser(int k, Token token, byte[] sessionId) {
+        return instantiateProtocol("user", new EarnFiatShamirCommonInput(k, sessionId), new UacsIncentiveSystem.UserInput(token));
+    }
+
+    public CreditEarnFiatShamirProtocolInstance instantiateProvider(int k, byte[] sessionId, PSSigningKey sk) {
+        return instantiateProvider(k, sessionId, sk, null);
+    }
+
+    public CreditEarnFiatShamirProtocolInstance instantiateProvider(int k, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return instantiateProtocol("provider", new EarnFiatShamirCommonInput(k, sessionId), new UacsIncentiveSystem.ProviderInput(sk, pool));
+    }
+
+    public static class EarnFiatShamirCommonInput extends CreditEarnProtocol.EarnCommonInput {
+        public final byte[] sessionId;
+
+        public EarnFiatShamirCommonInput(int k, byte[] sessionId) {
+            super(k);
+            this.sessionId = sessionId;
+        }
+    }
+
+    public class CreditEarnFiatShamirProtocolInstance extends BaseProtocolInstance {
+        private Token token;
+        private PSSigningKey sk;
+        private ProviderPrecomputationPool providerPool;
+        private int k;
+        private byte[] sessionId;
+
+        private GroupElement sigma0prime, sigma1prime;
+        private GroupElement sigma0primeprime, sigma1primeprime;
+        private Token resultToken;
+        private Zn.ZnElement usk, dsid, dsrnd, v;
+        private Zn.ZnElement rPrime;
+
+        public CreditEarnFiatShamirProtocolInstance(EarnFiatShamirCommonInput input, Token token) {
+            super(CreditEarnFiatShamirProtocol.this, "user");
+            this.k = input.k;
+            this.sessionId = input.sessionId;
+            this.token = token;
+            this.usk = token.usk;
+            this.dsid = token.dsid;
+            this.dsrnd = token.dsrnd;
+            this.v = token.v;
+        }
+
+        public CreditEarnFiatShamirProtocolInstance(EarnFiatShamirCommonInput input, PSSigningKey sk) {
+            this(input, sk, null);
+        }
+
+        public CreditEarnFiatShamirProtocolInstance(EarnFiatShamirCommonInput input, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
+            super(CreditEarnFiatShamirProtocol.this, "provider");
+            if (providerPool != null && providerPool.sk != sk)
+                throw new IllegalArgumentException("Pool belongs to a different signing key");
+            this.k = input.k;
+            this.sessionId = input.sessionId;
+            this.sk = sk;
+            this.providerPool = providerPool;
+        }
+
+        @Override
+        protected void doRoundForFirstRole(int round) { //user
+            switch (round) {
+                case 0: //send randomized signature and proof
+                    //Randomize signature
+                    rPrime = pp.zp.getUniformlyRandomElement();
+                    Zn.ZnElement r = pp.zp.getUniformlyRandomNonzeroElement();
+                    sigma0prime = token.sig.getGroup1ElementSigma1().pow(r).compute();
+                    sigma1prime = token.sig.getGroup1ElementSigma2().pow(r).op(token.sig.getGroup1ElementSigma1().pow(r.mul(rPrime))).compute();
+                    send("sigma0prime", sigma0prime.getRepresentation());
+                    send("sigma1prime", sigma1prime.getRepresentation());
+
+                    //Prove valid signature
+                    send("sigProof", getValidSignatureProofSystem().createProof(null, AdHocSchnorrProof.witnessOf(this), getTranscriptDigest()).getRepresentation());
+                    break;
+                case 2:  //receive blinded signature and unblind
+                    GroupElement[] signature = pp.restoreG1Elements(null, receive("sigma0primeprime"), receive("sigma1primeprime"));
+                    sigma0primeprime = signature[0];
+                    sigma1primeprime = signature[1];
+                    PSSignature sigmaStar = new PSSignature(sigma0primeprime, sigma1primeprime.op(sigma0primeprime.pow(rPrime.neg())));
+                    resultToken = new Token(usk, dsid, dsrnd, v.add(pp.zp.valueOf(k)), sigmaStar);
+                    if (!pp.verifyToken(resultToken, pk))
+                        throw new IllegalStateException("Invalid signature");
+                    terminate();
+                    break;
+            }
+        }
+
+        @Override
+        protected void doRoundForSecondRole(int round) { //provider
+            switch (round) {
+                case 1: //receive randomized signature, check proof and send updated signature
+                    GroupElement[] randomizedSignature = pp.restoreG1Elements(null, receive("sigma0prime"), receive("sigma1prime"));
+                    sigma0prime = randomizedSignature[0];
+                    sigma1prime = randomizedSignature[1];
+
+                    FiatShamirProofSystem proofSystem = getValidSignatureProofSystem();
+                    FiatShamirProof proof = proofSystem.restoreProof(null, receive("sigProof"));
+                    if (!proofSystem.checkProof(null, proof, getTranscriptDigest()))
+                        throw new IllegalStateException("Invalid signature proof");
+
+                    Zn.ZnElement rPrimeprime = providerPool != null ? providerPool.takeScalar() : pp.zp.getUniformlyRandomNonzeroElement();
+                    sigma0primeprime = sigma0prime.pow(rPrimeprime).compute();
+                    sigma1primeprime = sigma1prime.pow(rPrimeprime).op(sigma0prime.pow(sk.getExponentsYi().get(3).mul(k).mul(rPrimeprime))).compute();
+                    send("sigma0primeprime", sigma0primeprime.getRepresentation());
+                    send("sigma1primeprime", sigma1primeprime.getRepresentation());
+                    terminate();
+                    break;
+            }
+        }
+
+        public Token getUserResult() {
+            return resultToken;
+        }
+
+        private byte[] getTranscriptDigest() {
+            return new SessionTranscript("CreditEarn", sessionId)
+                    .append(k)
+                    .append(sigma0prime).append(sigma1prime)
+                    .digest();
+        }
+
+        private FiatShamirProofSystem getValidSignatureProofSystem() {
+            return new FiatShamirProofSystem(proofTemplates.bindValidSignature(sigma0prime, sigma1prime).build());
+        }
+    }
+}
@@ -9,19 +9,25 @@ import org.cryptimeleon.craco.protocols.base.AdHocSchnorrProof;
 import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
 import org.cryptimeleon.craco.sig.ps.PSSignature;
 import org.cryptimeleon.craco.sig.ps.PSSigningKey;
-import org.cryptimeleon.math.structures.cartesian.Vector;
 import org.cryptimeleon.math.structures.groups.GroupElement;
-import org.cryptimeleon.math.structures.groups.elliptic.BilinearMap;
 import org.cryptimeleon.math.structures.rings.zn.Zn;
 
 public class CreditEarnProtocol extends BaseProtocol {
     private UacsIncentiveSystem pp;
+    private PreparedIssuerKey issuerKey;
     private PSExtendedVerificationKey pk;
+    private ProofTemplates proofTemplates;
 
     public CreditEarnProtocol(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this(pp, new PreparedIssuerKey(pk));
+    }
+
+    public CreditEarnProtocol(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
         super("user", "provider");
         this.pp = pp;
-        this.pk = pk;
+        this.issuerKey = issuerKey;
+        this.pk = issuerKey.pk;
+        this.proofTemplates = new ProofTemplates(pp, issuerKey);
     }
 
     @Override
@@ -29,7 +35,7 @@ public class CreditEarnProtocol extends BaseProtocol {
         if (role.equals("user"))
             return new CreditEarnProtocolInstance(((EarnCommonInput) commonInput).k, ((UacsIncentiveSystem.UserInput) secretInput).token);
         if (role.equals("provider"))
-            return new CreditEarnProtocolInstance(((EarnCommonInput) commonInput).k, ((UacsIncentiveSystem.ProviderInput) secretInput).sk);
+            return new CreditEarnProtocolInstance(((EarnCommonInput) commonInput).k, ((UacsIncentiveSystem.ProviderInput) secretInput).sk, ((UacsIncentiveSystem.ProviderInput) secretInput).providerPool);
         throw new IllegalArgumentException("Unknown role");
     }
 
@@ -38,7 +44,11 @@ public class CreditEarnProtocol extends BaseProtocol {
     }
 
     public CreditEarnProtocolInstance instantiateProvider(int k, PSSigningKey sk) {
-        return instantiateProtocol("provider", new EarnCommonInput(k), new UacsIncentiveSystem.ProviderInput(sk));
+        return instantiateProvider(k, sk, null);
+    }
+
+    public CreditEarnProtocolInstance instantiateProvider(int k, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return instantiateProtocol("provider", new EarnCommonInput(k), new UacsIncentiveSystem.ProviderInput(sk, pool));
     }
 
     public static class EarnCommonInput implements CommonInput {
@@ -52,6 +62,7 @@ public class CreditEarnProtocol extends BaseProtocol {
     public class CreditEarnProtocolInstance extends BaseProtocolInstance {
         private Token token;
         private PSSigningKey sk;
+        private ProviderPrecomputationPool providerPool;
         private int k;
 
         private GroupElement sigma0prime, sigma1prime;
@@ -71,9 +82,16 @@ public class CreditEarnProtocol extends BaseProtocol {
         }
 
         public CreditEarnProtocolInstance(int k, PSSigningKey sk) {
+            this(k, sk, null);
+        }
+
+        public CreditEarnProtocolInstance(int k, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
             super(CreditEarnProtocol.this, "provider");
+            if (providerPool != null && providerPool.sk != sk)
+                throw new IllegalArgumentException("Pool belongs to a different signing key");
             this.k = k;
             this.sk = sk;
+            this.providerPool = providerPool;
         }
 
         @Override
@@ -95,8 +113,9 @@ public class CreditEarnProtocol extends BaseProtocol {
                     //Nothing to do
                     break;
                 case 4:  //receive blinded signature and unblind
-                    sigma0primeprime = pp.group.getG1().restoreElement(receive("sigma0primeprime"));
-                    sigma1primeprime = pp.group.getG1().restoreElement(receive("sigma1primeprime"));
+                    GroupElement[] signature = pp.restoreG1Elements(null, receive("sigma0primeprime"), receive("sigma1primeprime"));
+                    sigma0primeprime = signature[0];
+                    sigma1primeprime = signature[1];
                     PSSignature sigmaStar = new PSSignature(sigma0primeprime, sigma1primeprime.op(sigma0primeprime.pow(rPrime.neg())));
                     resultToken = new Token(usk, dsid, dsrnd, v.add(pp.zp.valueOf(k)), sigmaStar);
                     if (!pp.verifyToken(resultToken, pk))
@@ -110,14 +129,15 @@ public class CreditEarnProtocol extends BaseProtocol {
         protected void doRoundForSecondRole(int round) { //provider
             switch (round) {
                 case 1: //receive randomized signature and send proof challenge
-                    sigma0prime = pp.group.getG1().restoreElement(receive("sigma0prime"));
-                    sigma1prime = pp.group.getG1().restoreElement(receive("sigma1prime"));
+                    GroupElement[] randomizedSignature = pp.restoreG1Elements(null, receive("sigma0prime"), receive("sigma1prime"));
+                    sigma0prime = randomizedSignature[0];
+                    sigma1prime = randomizedSignature[1];
                     runArgumentConcurrently("sigProof", getValidSignatureProof().instantiateVerifier(null));
                     break;
                 case 3: //check proof (implicit) and send updated signature
-                    Zn.ZnElement rPrimeprime = pp.zp.getUniformlyRandomNonzeroElement();
+                    Zn.ZnElement rPrimeprime = providerPool != null ? providerPool.takeScalar() : pp.zp.getUniformlyRandomNonzeroElement();
                     sigma0primeprime = sigma0prime.pow(rPrimeprime).compute();
-                    sigma1primeprime = sigma1prime.op(sigma0prime.pow(sk.getExponentsYi().get(3).mul(k))).pow(rPrimeprime).compute();
+                    sigma1primeprime = sigma1prime.pow(rPrimeprime).op(sigma0prime.pow(sk.getExponentsYi().get(3).mul(k).mul(rPrimeprime))).compute();
                     send("sigma0primeprime", sigma0primeprime.getRepresentation());
                     send("sigma1primeprime", sigma1primeprime.getRepresentation());
                     terminate();
@@ -130,14 +150,7 @@ public class CreditEarnProtocol extends BaseProtocol {
         }
 
         private InteractiveArgument getValidSignatureProof() {
-            BilinearMap e = pp.group.getBilinearMap();
-            if (sigma0prime.isNeutralElement())
-                throw new IllegalStateException("sigma0 is the neutral group element");
-            return AdHocSchnorrProof.builder(pp.zp)
-                    .addLinearStatement("psVerify",
-                            e.applyExpr(sigma0prime, pk.getGroup2ElementTildeX().op(pk.getGroup2ElementsTildeYi().expr().innerProduct(Vector.of("usk", "dsid", "dsrnd", "v"))))
-                            .isEqualTo(e.applyExpr(sigma1prime.op(sigma0prime.inv().pow("rPrime")), pk.getGroup2ElementTildeG()))
-                    ).buildInteractiveDamgard(pp.commitmentSchemeForDamgard);
+            return proofTemplates.bindValidSignature(sigma0prime, sigma1prime).buildInteractiveDamgard(pp.commitmentSchemeForDamgard);
         }
     }
 }
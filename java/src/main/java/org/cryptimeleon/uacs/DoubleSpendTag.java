@@ -22,7 +22,7 @@ public class DoubleSpendTag implements Representable {
     }
 
     public DoubleSpendTag(Group group, Representation repr) {
-        new ReprUtil(this).register(group.getZn(), "zn").register(group, "G1");
+        new ReprUtil(this).register(group.getZn(), "zn").register(group, "G1").deserialize(repr);
     }
 
     @Override
@@ -0,0 +1,244 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.protocols.CommonInput;
+import org.cryptimeleon.craco.protocols.SecretInput;
+import org.cryptimeleon.craco.protocols.base.BaseProtocol;
+import org.cryptimeleon.craco.protocols.base.BaseProtocolInstance;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSignature;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.cartesian.Vector;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+/**
+ * Non-interactive variant of {@link IssueJoinProtocol}.
+ * The well-formedness proof is made non-interactive with Fiat-Shamir, bound to a {@link SessionTranscript},
+ * so the protocol needs four messages instead of six. The proof is a {@link WellFormednessProof}, which the provider
+ * can also check for many sessions at once (see {@link BatchIssuer}).
+ */
+public class IssueJoinFiatShamirProtocol extends BaseProtocol {
+    private UacsIncentiveSystem pp;
+    private PreparedIssuerKey issuerKey;
+    private PSExtendedVerificationKey pk;
+    private final RoundEvaluation roundEvaluation = new RoundEvaluation();
+
+    public IssueJoinFiatShamirProtocol(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this(pp, new PreparedIssuerKey(pk));
+    }
+
+    public IssueJoinFiatShamirProtocol(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
+        super("user", "provider");
+        this.pp = pp;
+        this.issuerKey = issuerKey;
+        this.pk = issuerKey.pk;
+    }
+
+    /**
+     * See {@link IssueJoinProtocol#setDeferredEvaluation(boolean)}.
+     */
+    public void setDeferredEvaluation(boolean deferredEvaluation) {
+        roundEvaluation.setDeferred(deferredEvaluation);
+    }
+
+    @Override
+    public IssueJoinFiatShamirProtocolInstance instantiateProtocol(String role, CommonInput commonInput, SecretInput secretInput) {
+        IssueFiatShamirCommonInput input = (IssueFiatShamirCommonInput) commonInput;
+        if (role.equals("user"))
+            return new IssueJoinFiatShamirProtocolInstance(input, ((UacsIncentiveSystem.UserInput) secretInput).usk);
+        if (role.equals("provider"))
+            return new IssueJoinFiatShamirProtocolInstance(input, ((UacsIncentiveSystem.ProviderInput) secretInput).sk, ((UacsIncentiveSystem.ProviderInput) secretInput).providerPool);
+        throw new IllegalArgumentException("Unknown role");
+    }
+
+    public IssueJoinFiatShamirProtocolInstance instantiateUser(GroupElement upk, Zn.ZnElement usk, byte[] sessionId) {
+        return instantiateProtocol("user", new IssueFiatShamirCommonInput(upk, sessionId), new UacsIncentiveSystem.UserInput(usk));
+    }
+
+    public IssueJoinFiatShamirProtocolInstance instantiateProvider(GroupElement upk, byte[] sessionId, PSSigningKey sk) {
+        return instantiateProvider(upk, sessionId, sk, null);
+    }
+
+    public IssueJoinFiatShamirProtocolInstance instantiateProvider(GroupElement upk, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return instantiateProtocol("provider", new IssueFiatShamirCommonInput(upk, sessionId), new UacsIncentiveSystem.ProviderInput(sk, pool));
+    }
+
+    /**
+     * Continues a provider instance from the state exported by {@link IssueJoinFiatShamirProtocolInstance#exportProviderState()}
+     * after its first round. The returned instance expects the user's second message.
+     * <p>
+     * The state is not authenticated here, so it must come from a trusted source (see {@link org.cryptimeleon.uacs.provider.SessionStateSealer}).
+     */
+    public IssueJoinFiatShamirProtocolInstance resumeProvider(Representation state, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return new IssueJoinFiatShamirProtocolInstance(state, sessionId, sk, pool);
+    }
+
+    public static class IssueFiatShamirCommonInput extends IssueJoinProtocol.IssueCommonInput {
+        public final byte[] sessionId;
+
+        public IssueFiatShamirCommonInput(GroupElement upk, byte[] sessionId) {
+            super(upk);
+            this.sessionId = sessionId;
+        }
+    }
+
+    public class IssueJoinFiatShamirProtocolInstance extends BaseProtocolInstance {
+        private GroupElement upk;
+        private Zn.ZnElement usk;
+        private PSSigningKey sk;
+        private ProviderPrecomputationPool providerPool;
+        private byte[] sessionId;
+        private int roundOffset = 0;
+
+        private Zn.ZnElement dsidUsr, dsidPrvdr, dsid;
+        private Zn.ZnElement open;
+        private Zn.ZnElement dsrnd, r;
+        private GroupElement commitUser0, commitUser1;
+        private GroupElement commitDsid0, commitDsid1;
+        private GroupElement c;
+        private GroupElement sigma0prime, sigma1prime;
+        private WellFormednessProof wellFormednessProof;
+        private boolean proofCheckDeferred = false;
+        private Token token;
+
+        public IssueJoinFiatShamirProtocolInstance(IssueFiatShamirCommonInput input, Zn.ZnElement usk) {
+            super(IssueJoinFiatShamirProtocol.this, "user");
+            this.upk = input.upk;
+            this.sessionId = input.sessionId;
+            this.usk = usk;
+        }
+
+        public IssueJoinFiatShamirProtocolInstance(IssueFiatShamirCommonInput input, PSSigningKey sk) {
+            this(input, sk, null);
+        }
+
+        public IssueJoinFiatShamirProtocolInstance(IssueFiatShamirCommonInput input, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
+            super(IssueJoinFiatShamirProtocol.this, "provider");
+            if (providerPool != null && providerPool.sk != sk)
+                throw new IllegalArgumentException("Pool belongs to a different signing key");
+            this.upk = input.upk;
+            this.sessionId = input.sessionId;
+            this.sk = sk;
+            this.providerPool = providerPool;
+        }
+
+        private IssueJoinFiatShamirProtocolInstance(Representation state, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
+            this(new IssueFiatShamirCommonInput(pp.group.getG1().restoreElement(state.obj().get("upk")), sessionId), sk, providerPool);
+            ObjectRepresentation obj = state.obj();
+            commitUser0 = pp.group.getG1().restoreElement(obj.get("Cusr0"));
+            commitUser1 = pp.group.getG1().restoreElement(obj.get("Cusr1"));
+            dsidPrvdr = pp.zp.restoreElement(obj.get("dsidPrvdr"));
+            commitDsid0 = roundEvaluation.evaluate(commitUser0.op(pp.g.pow(dsidPrvdr)));
+            commitDsid1 = commitUser1;
+            roundOffset = 2;
+        }
+
+        @Override
+        protected void doRoundForFirstRole(int round) { //user
+            switch (round) {
+                case 0: //commit to user share of dsid
+                    dsidUsr = pp.zp.getUniformlyRandomElement();
+                    open = pp.zp.getUniformlyRandomElement();
+                    commitUser0 = pp.g.pow(dsidUsr).op(pp.h.pow(open)).compute();
+                    commitUser1 = pp.g.pow(open).compute();
+                    send("Cusr0", commitUser0.getRepresentation());
+                    send("Cusr1", commitUser1.getRepresentation());
+                    break;
+                case 2: //send commitment to the token values and prove well-formedness
+                    dsidPrvdr = pp.zp.restoreElement(receive("dsidPrvdr"));
+                    commitDsid0 = roundEvaluation.evaluate(commitUser0.op(pp.g.pow(dsidPrvdr)));
+                    commitDsid1 = commitUser1;
+                    dsid = dsidUsr.add(dsidPrvdr);
+                    dsrnd = pp.zp.getUniformlyRandomElement();
+                    r = pp.zp.getUniformlyRandomElement();
+                    c = pk.getGroup1ElementsYi().expr().innerProduct(Vector.of(usk, dsid, dsrnd, pp.zp.getZeroElement())).op(pk.getGroup1ElementG().pow(r)).evaluate();
+                    send("c", c.getRepresentation());
+                    send("wellFormednessProof", WellFormednessProof.prove(pp, pk, c, upk, commitDsid0, commitDsid1, getTranscriptDigest(), usk, dsid, dsrnd, r, open).getRepresentation());
+                    break;
+                case 4: //receive blinded signature and unblind
+                    GroupElement[] blindedSignature = pp.restoreG1Elements(null, receive("sigma0prime"), receive("sigma1prime"));
+                    sigma0prime = blindedSignature[0];
+                    sigma1prime = blindedSignature[1].op(sigma0prime.pow(r.neg()));
+                    token = new Token(usk, dsid, dsrnd, pp.zp.getZeroElement(), new PSSignature(sigma0prime, sigma1prime));
+                    if (!pp.verifyToken(token, pk))
+                        throw new IllegalStateException("Invalid token");
+                    terminate();
+                    break;
+            }
+        }
+
+        @Override
+        protected void doRoundForSecondRole(int round) { //provider
+            switch (round + roundOffset) { //a resumed instance continues with round 3
+                case 1: //send provider share of dsid
+                    GroupElement[] userCommitment = pp.restoreG1Elements(null, receive("Cusr0"), receive("Cusr1"));
+                    commitUser0 = userCommitment[0];
+                    commitUser1 = userCommitment[1];
+                    dsidPrvdr = providerPool != null ? providerPool.takeScalar() : pp.zp.getUniformlyRandomElement();
+                    send("dsidPrvdr", dsidPrvdr.getRepresentation());
+                    commitDsid0 = roundEvaluation.evaluate(commitUser0.op(pp.g.pow(dsidPrvdr)));
+                    commitDsid1 = commitUser1;
+                    break;
+                case 3: //check well-formedness and send signature if valid.
+                    c = pp.group.getG1().restoreElement(receive("c"));
+                    wellFormednessProof = WellFormednessProof.restore(pp, pk, c, upk, commitDsid0, commitDsid1, getTranscriptDigest(), receive("wellFormednessProof"));
+                    if (!proofCheckDeferred && !wellFormednessProof.verify())
+                        throw new IllegalStateException("Invalid well-formedness proof");
+
+                    ProviderPrecomputationPool.SigningRandomness signingRandomness = providerPool != null ? providerPool.takeSigningRandomness() : new ProviderPrecomputationPool.SigningRandomness(pp, issuerKey, sk);
+                    sigma0prime = signingRandomness.gToR;
+                    sigma1prime = signingRandomness.gXToR.op(c.pow(signingRandomness.r)).compute();
+                    send("sigma0prime", sigma0prime.getRepresentation());
+                    send("sigma1prime", sigma1prime.getRepresentation());
+                    terminate();
+                    break;
+            }
+        }
+
+        public Token getUserResult() {
+            return token;
+        }
+
+        /**
+         * Returns everything the provider needs to continue after its first round,
+         * so that the protocol can be continued by {@link #resumeProvider(Representation, byte[], PSSigningKey, ProviderPrecomputationPool)}
+         * (possibly on another machine) instead of by this instance.
+         */
+        public Representation exportProviderState() {
+            if (sk == null || dsidPrvdr == null || hasTerminated())
+                throw new IllegalStateException("State can only be exported by a provider after its first round");
+            ObjectRepresentation state = new ObjectRepresentation();
+            state.put("upk", upk.getRepresentation());
+            state.put("Cusr0", commitUser0.getRepresentation());
+            state.put("Cusr1", commitUser1.getRepresentation());
+            state.put("dsidPrvdr", dsidPrvdr.getRepresentation());
+            return state;
+        }
+
+        private byte[] getTranscriptDigest() {
+            return new SessionTranscript("IssueJoin", sessionId)
+                    .append(upk)
+                    .append(commitUser0).append(commitUser1)
+                    .append(dsidPrvdr)
+                    .append(c)
+                    .digest();
+        }
+
+        /**
+         * Makes the provider's last round sign without checking the well-formedness proof. The caller must check
+         * {@link #getWellFormednessProof()} itself and must not release the reply unless the proof is valid.
+         */
+        void deferProofCheck() {
+            proofCheckDeferred = true;
+        }
+
+        /**
+         * Returns the proof received in the provider's last round (null before).
+         */
+        WellFormednessProof getWellFormednessProof() {
+            return wellFormednessProof;
+        }
+    }
+}
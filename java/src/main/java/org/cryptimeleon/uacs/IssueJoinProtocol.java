@@ -11,17 +11,33 @@ import org.cryptimeleon.craco.sig.ps.PSSignature;
 import org.cryptimeleon.craco.sig.ps.PSSigningKey;
 import org.cryptimeleon.math.structures.cartesian.Vector;
 import org.cryptimeleon.math.structures.groups.GroupElement;
-import org.cryptimeleon.math.structures.rings.cartesian.RingElementVector;
 import org.cryptimeleon.math.structures.rings.zn.Zn;
 
 public class IssueJoinProtocol extends BaseProtocol {
     private UacsIncentiveSystem pp;
+    private PreparedIssuerKey issuerKey;
     private PSExtendedVerificationKey pk;
+    private ProofTemplates proofTemplates;
+    private final RoundEvaluation roundEvaluation = new RoundEvaluation();
 
     public IssueJoinProtocol(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this(pp, new PreparedIssuerKey(pk));
+    }
+
+    public IssueJoinProtocol(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
         super("user", "provider");
         this.pp = pp;
-        this.pk = pk;
+        this.issuerKey = issuerKey;
+        this.pk = issuerKey.pk;
+        this.proofTemplates = new ProofTemplates(pp, issuerKey);
+    }
+
+    /**
+     * Lets instances leave the intermediate group elements of their rounds that they do not send unevaluated until
+     * they are used (see {@link RoundEvaluation}).
+     */
+    public void setDeferredEvaluation(boolean deferredEvaluation) {
+        roundEvaluation.setDeferred(deferredEvaluation);
     }
 
     @Override
@@ -29,7 +45,7 @@ public class IssueJoinProtocol extends BaseProtocol {
         if (role.equals("user"))
             return new IssueJoinProtocolInstance(((IssueCommonInput) commonInput).upk, ((UacsIncentiveSystem.UserInput) secretInput).usk);
         if (role.equals("provider"))
-            return new IssueJoinProtocolInstance(((IssueCommonInput) commonInput).upk, ((UacsIncentiveSystem.ProviderInput) secretInput).sk);
+            return new IssueJoinProtocolInstance(((IssueCommonInput) commonInput).upk, ((UacsIncentiveSystem.ProviderInput) secretInput).sk, ((UacsIncentiveSystem.ProviderInput) secretInput).providerPool);
         throw new IllegalArgumentException("Unknown role");
     }
 
@@ -38,7 +54,11 @@ public class IssueJoinProtocol extends BaseProtocol {
     }
 
     public IssueJoinProtocolInstance instantiateProvider(GroupElement upk, PSSigningKey sk) {
-        return instantiateProtocol("provider", new IssueCommonInput(upk), new UacsIncentiveSystem.ProviderInput(sk));
+        return instantiateProvider(upk, sk, null);
+    }
+
+    public IssueJoinProtocolInstance instantiateProvider(GroupElement upk, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return instantiateProtocol("provider", new IssueCommonInput(upk), new UacsIncentiveSystem.ProviderInput(sk, pool));
     }
 
     public static class IssueCommonInput implements CommonInput {
@@ -53,6 +73,7 @@ public class IssueJoinProtocol extends BaseProtocol {
         private GroupElement upk;
         private Zn.ZnElement usk;
         private PSSigningKey sk;
+        private ProviderPrecomputationPool providerPool;
 
         private Zn.ZnElement dsidUsr, dsidPrvdr, dsid;
         private Zn.ZnElement open;
@@ -71,9 +92,16 @@ public class IssueJoinProtocol extends BaseProtocol {
         }
 
         public IssueJoinProtocolInstance(GroupElement upk, PSSigningKey sk) {
+            this(upk, sk, null);
+        }
+
+        public IssueJoinProtocolInstance(GroupElement upk, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
             super(IssueJoinProtocol.this, "provider");
+            if (providerPool != null && providerPool.sk != sk)
+                throw new IllegalArgumentException("Pool belongs to a different signing key");
             this.upk = upk;
             this.sk = sk;
+            this.providerPool = providerPool;
         }
 
         @Override
@@ -89,21 +117,22 @@ public class IssueJoinProtocol extends BaseProtocol {
                     break;
                 case 2: //prove well-formedness (announcement)
                     dsidPrvdr = pp.zp.restoreElement(receive("dsidPrvdr"));
-                    commitDsid0 = commitUser0.op(pp.g.pow(dsidPrvdr)).compute();
+                    commitDsid0 = roundEvaluation.evaluate(commitUser0.op(pp.g.pow(dsidPrvdr)));
                     commitDsid1 = commitUser1;
                     dsid = dsidUsr.add(dsidPrvdr);
                     dsrnd = pp.zp.getUniformlyRandomElement();
                     r = pp.zp.getUniformlyRandomElement();
                     dsidPublic = pp.w.pow(dsid);
-                    c = pk.getGroup1ElementsYi().innerProduct(RingElementVector.of(usk, dsid, dsrnd, pp.zp.getZeroElement())).op(pk.getGroup1ElementG().pow(r));
+                    c = pk.getGroup1ElementsYi().expr().innerProduct(Vector.of(usk, dsid, dsrnd, pp.zp.getZeroElement())).op(pk.getGroup1ElementG().pow(r)).evaluate();
                     send("c", c.getRepresentation());
                     runArgumentConcurrently("wellFormednessProof", getWellFormednessProof().instantiateProver(null, AdHocSchnorrProof.witnessOf(this)));
                     break;
                 case 4: //prove well-formedness (response)
                     break;
                 case 6: //receive blinded signature and unblind
-                    sigma0prime = pp.group.getG1().restoreElement(receive("sigma0prime"));
-                    sigma1prime = pp.group.getG1().restoreElement(receive("sigma1prime")).op(sigma0prime.pow(r.neg()));
+                    GroupElement[] blindedSignature = pp.restoreG1Elements(null, receive("sigma0prime"), receive("sigma1prime"));
+                    sigma0prime = blindedSignature[0];
+                    sigma1prime = blindedSignature[1].op(sigma0prime.pow(r.neg()));
                     token = new Token(usk, dsid, dsrnd, pp.zp.getZeroElement(), new PSSignature(sigma0prime, sigma1prime));
                     if (!pp.verifyToken(token, pk))
                         throw new IllegalStateException("Invalid token");
@@ -116,11 +145,12 @@ public class IssueJoinProtocol extends BaseProtocol {
         protected void doRoundForSecondRole(int round) { //provider
             switch (round) {
                 case 1: //send provider share of dsid
-                    commitUser0 = pp.group.getG1().restoreElement(receive("Cusr0"));
-                    commitUser1 = pp.group.getG1().restoreElement(receive("Cusr1"));
-                    dsidPrvdr = pp.zp.getUniformlyRandomElement();
+                    GroupElement[] userCommitment = pp.restoreG1Elements(null, receive("Cusr0"), receive("Cusr1"));
+                    commitUser0 = userCommitment[0];
+                    commitUser1 = userCommitment[1];
+                    dsidPrvdr = providerPool != null ? providerPool.takeScalar() : pp.zp.getUniformlyRandomElement();
                     send("dsidPrvdr", dsidPrvdr.getRepresentation());
-                    commitDsid0 = commitUser0.op(pp.g.pow(dsidPrvdr)).compute();
+                    commitDsid0 = roundEvaluation.evaluate(commitUser0.op(pp.g.pow(dsidPrvdr)));
                     commitDsid1 = commitUser1;
                     break;
                 case 3: //check well-formedness (send challenge)
@@ -130,9 +160,9 @@ public class IssueJoinProtocol extends BaseProtocol {
                 case 5: //check well-formedness (got last message). Send signature if valid.
                     //Check happens implicitly
                     //Signature:
-                    Zn.ZnElement r = pp.zp.getUniformlyRandomNonzeroElement();
-                    sigma0prime = pk.getGroup1ElementG().pow(r).compute();
-                    sigma1prime = pk.getGroup1ElementG().pow(sk.getExponentX()).op(c).pow(r).compute(); //TODO optimize: precompute X
+                    ProviderPrecomputationPool.SigningRandomness signingRandomness = providerPool != null ? providerPool.takeSigningRandomness() : new ProviderPrecomputationPool.SigningRandomness(pp, issuerKey, sk);
+                    sigma0prime = signingRandomness.gToR;
+                    sigma1prime = signingRandomness.gXToR.op(c.pow(signingRandomness.r)).compute();
                     send("sigma0prime", sigma0prime.getRepresentation());
                     send("sigma1prime", sigma1prime.getRepresentation());
                     terminate();
@@ -145,12 +175,7 @@ public class IssueJoinProtocol extends BaseProtocol {
         }
 
         private InteractiveArgument getWellFormednessProof() {
-            return AdHocSchnorrProof.builder(pp.zp)
-                    .addLinearStatement("psCommitOpen", c.isEqualTo(pk.getGroup1ElementsYi().expr().innerProduct(Vector.of("usk", "dsid", "dsrnd", pp.zp.getZeroElement())).op(pk.getGroup1ElementG().pow("r"))))
-                    .addLinearStatement("upkWellFormed",  upk.isEqualTo(pp.w.pow("usk")))
-                    .addLinearStatement("commitDsid0Open",  commitDsid0.isEqualTo(pp.g.pow("dsid").op(pp.h.pow("open"))))
-                    .addLinearStatement("commitDsid1Open",  commitDsid1.isEqualTo(pp.g.pow("open")))
-                    .buildInteractiveDamgard(pp.commitmentSchemeForDamgard);
+            return proofTemplates.bindWellFormedness(c, upk, commitDsid0, commitDsid1).buildInteractiveDamgard(pp.commitmentSchemeForDamgard);
         }
     }
 }
@@ -0,0 +1,39 @@
+package org.cryptimeleon.uacs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs the independent computations of a protocol round, either one after the other (without a pool)
+ * or in parallel on a {@link ForkJoinPool}. The computations must only write disjoint fields;
+ * {@link #join()} makes their results visible to the calling thread.
+ */
+class ParallelRound {
+    private final ForkJoinPool pool;
+    private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+    /**
+     * @param pool the pool to run on, or null to run everything on the calling thread
+     */
+    ParallelRound(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    void run(Runnable computation) {
+        if (pool == null)
+            computation.run();
+        else
+            tasks.add(pool.submit(computation));
+    }
+
+    /**
+     * Waits for all computations. Rethrows the exception of a failed one.
+     */
+    void join() {
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+        tasks.clear();
+    }
+}
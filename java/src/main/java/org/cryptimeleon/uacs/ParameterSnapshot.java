@@ -0,0 +1,91 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.uacs.transport.WireCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of the public parameters and the issuer's public key, for starting provider instances quickly.
+ * <p>
+ * Creating {@link UacsIncentiveSystem} from scratch signs every element of the range proof's digit set, and restoring it
+ * from JSON has to parse all of them back. A snapshot is a {@link WireCodec} frame
+ * ({@code [magic 'U' 'S'][version][scalar width][frame]}), which is read straight from a memory-mapped file.
+ * Loading then restores the group elements and precomputes the exponentiation tables of w, g, h and of the issuer key.
+ * <p>
+ * Snapshots only contain public values, never the signing key.
+ */
+public class ParameterSnapshot {
+    public static final byte VERSION = 1;
+    private static final byte MAGIC0 = 'U', MAGIC1 = 'S';
+
+    public final UacsIncentiveSystem pp;
+    public final PSExtendedVerificationKey pk;
+
+    private ParameterSnapshot(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this.pp = pp;
+        this.pk = pk;
+    }
+
+    /**
+     * Writes a snapshot of pp and pk to file. The file is replaced atomically, so running instances never see a partial snapshot.
+     */
+    public static void write(Path file, UacsIncentiveSystem pp, PSExtendedVerificationKey pk) throws IOException {
+        int scalarWidth = WireCodec.getScalarWidth(pp.zp);
+        WireCodec codec = new WireCodec(scalarWidth);
+        ObjectRepresentation repr = new ObjectRepresentation();
+        repr.put("pp", pp.getRepresentation());
+        repr.put("pk", pk.getRepresentation());
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + codec.encodedLength(repr));
+        buffer.put(MAGIC0).put(MAGIC1).put(VERSION).put((byte) scalarWidth);
+        codec.encode(repr, buffer);
+        buffer.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot written by {@link #write(Path, UacsIncentiveSystem, PSExtendedVerificationKey)}.
+     *
+     * @throws IllegalArgumentException if the file is not a snapshot or of an unsupported version
+     */
+    public static ParameterSnapshot load(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 4 || buffer.get() != MAGIC0 || buffer.get() != MAGIC1)
+            throw new IllegalArgumentException("Not a parameter snapshot");
+        byte version = buffer.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported snapshot version " + version);
+        int scalarWidth = buffer.get() & 0xFF;
+
+        ObjectRepresentation repr = new WireCodec(scalarWidth).decode(buffer).obj();
+        UacsIncentiveSystem pp = new UacsIncentiveSystem(repr.get("pp"));
+        PSExtendedVerificationKey pk = (PSExtendedVerificationKey) pp.psSigs.restoreVerificationKey(repr.get("pk"));
+        return new ParameterSnapshot(pp, pk);
+    }
+
+    /**
+     * Returns the issuer key with its precomputation tables, to be shared by all protocol objects of the instance.
+     */
+    public PreparedIssuerKey prepareIssuerKey() {
+        return new PreparedIssuerKey(pk);
+    }
+}
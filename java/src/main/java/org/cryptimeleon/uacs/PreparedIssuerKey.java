@@ -0,0 +1,64 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.cartesian.GroupElementVector;
+
+/**
+ * Issuer public key with exponentiation tables precomputed for all its group elements,
+ * plus (on the provider side) a cached g^x for the signing key.
+ * Preparing the key is expensive, so it should be done once and shared by all protocol objects.
+ * (The protocol constructors that take a plain {@link PSExtendedVerificationKey} prepare it anew for every protocol object.)
+ * <p>
+ * The precomputation pools ({@link SpendPrecomputationPool}, {@link ProviderPrecomputationPool}) that the protocols'
+ * instantiateUser/instantiateProvider overloads accept are optional, pass null to compute everything inline.
+ */
+public class PreparedIssuerKey {
+    public final PSExtendedVerificationKey pk;
+    private volatile SigningKeyPower gX;
+
+    private static class SigningKeyPower {
+        final PSSigningKey sk;
+        final GroupElement gX;
+
+        SigningKeyPower(PSSigningKey sk, GroupElement gX) {
+            this.sk = sk;
+            this.gX = gX;
+        }
+    }
+
+    public PreparedIssuerKey(PSExtendedVerificationKey pk) {
+        this.pk = pk;
+        pk.getGroup1ElementG().precomputePow();
+        precomputePow(pk.getGroup1ElementsYi());
+        pk.getGroup2ElementTildeG().precomputePow();
+        pk.getGroup2ElementTildeX().precomputePow();
+        precomputePow(pk.getGroup2ElementsTildeYi());
+    }
+
+    /**
+     * Prepares the key for the provider, i.e. also precomputes g^x.
+     */
+    public PreparedIssuerKey(PSExtendedVerificationKey pk, PSSigningKey sk) {
+        this(pk);
+        getGroup1ElementGX(sk);
+    }
+
+    /**
+     * Returns g^x for the given signing key. The value (with precomputation) is cached for the last key used.
+     */
+    public GroupElement getGroup1ElementGX(PSSigningKey sk) {
+        SigningKeyPower cached = gX;
+        if (cached == null || cached.sk != sk) {
+            cached = new SigningKeyPower(sk, pk.getGroup1ElementG().pow(sk.getExponentX()).compute().precomputePow());
+            gX = cached;
+        }
+        return cached.gX;
+    }
+
+    private static void precomputePow(GroupElementVector elements) {
+        for (int i = 0; i < elements.length(); i++)
+            elements.get(i).precomputePow();
+    }
+}
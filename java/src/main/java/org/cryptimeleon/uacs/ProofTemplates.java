@@ -0,0 +1,116 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.protocols.base.AdHocSchnorrProof;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.math.expressions.bool.GroupEqualityExpr;
+import org.cryptimeleon.math.expressions.exponent.BasicNamedExponentVariableExpr;
+import org.cryptimeleon.math.expressions.exponent.ExponentExpr;
+import org.cryptimeleon.math.expressions.group.GroupElementExpression;
+import org.cryptimeleon.math.structures.cartesian.Vector;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.elliptic.BilinearMap;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Proof shapes for the well-formedness (Issue), valid signature (Earn) and spend (Spend) proofs.
+ * <p>
+ * Everything that only depends on pp and pk (and for Spend on k), i.e. the expressions over the public parameters,
+ * is built once. The bind methods then only plug the per-session values into the statements.
+ * The interactive and Fiat-Shamir protocol variants build their proofs from the same templates
+ * (except for Fiat-Shamir Issue, which uses a {@link WellFormednessProof} for the same statement).
+ * <p>
+ * Instances are thread-safe.
+ */
+public class ProofTemplates {
+    private final UacsIncentiveSystem pp;
+    private final PSExtendedVerificationKey pk;
+    private final BilinearMap e;
+
+    //Issue
+    private final GroupElementExpression psCommitOpening, upkOpening, commitDsid0Opening, commitDsid1Opening;
+    //Earn and Spend
+    private final GroupElementExpression psVerifyG2;
+    //Spend
+    private final GroupElementExpression ctrace0Opening, wToDsidStar, dsidStarCommit0Opening, dsidStarCommit1Opening;
+    private final ConcurrentHashMap<Integer, SpendShape> spendShapes = new ConcurrentHashMap<>();
+
+    /**
+     * The parts of the spend proof that depend on k.
+     */
+    private static class SpendShape {
+        final ExponentExpr remainingPoints;
+        final GroupElementExpression updatedMessageOpening;
+
+        SpendShape(UacsIncentiveSystem pp, PSExtendedVerificationKey pk, int k) {
+            remainingPoints = new BasicNamedExponentVariableExpr("v").sub(k);
+            updatedMessageOpening = pk.getGroup1ElementsYi().expr().innerProduct(Vector.of("usk", "dsidStar", "dsrndStar", pp.zp.valueOf(k).neg().asExponentExpression().add("v"))).op(pk.getGroup1ElementG().pow("rCommitmentC"));
+        }
+    }
+
+    public ProofTemplates(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
+        this.pp = pp;
+        this.pk = issuerKey.pk;
+        this.e = pp.group.getBilinearMap();
+
+        psCommitOpening = pk.getGroup1ElementsYi().expr().innerProduct(Vector.of("usk", "dsid", "dsrnd", pp.zp.getZeroElement())).op(pk.getGroup1ElementG().pow("r"));
+        upkOpening = pp.w.pow("usk");
+        commitDsid0Opening = pp.g.pow("dsid").op(pp.h.pow("open"));
+        commitDsid1Opening = pp.g.pow("open");
+
+        psVerifyG2 = pk.getGroup2ElementTildeX().op(pk.getGroup2ElementsTildeYi().expr().innerProduct(Vector.of("usk", "dsid", "dsrnd", "v")));
+
+        ctrace0Opening = pp.w.pow("r");
+        wToDsidStar = pp.w.pow("dsidStar");
+        dsidStarCommit0Opening = pp.g.pow("dsidStar").op(pp.h.pow("openStar"));
+        dsidStarCommit1Opening = pp.g.pow("openStar");
+    }
+
+    /**
+     * Proof that c is a commitment to (usk, dsid, dsrnd, 0) for the usk behind upk and the dsid in commitDsid.
+     */
+    public AdHocSchnorrProof.Builder bindWellFormedness(GroupElement c, GroupElement upk, GroupElement commitDsid0, GroupElement commitDsid1) {
+        return AdHocSchnorrProof.builder(pp.zp)
+                .addLinearStatement("psCommitOpen", c.isEqualTo(psCommitOpening))
+                .addLinearStatement("upkWellFormed", upk.isEqualTo(upkOpening))
+                .addLinearStatement("commitDsid0Open", commitDsid0.isEqualTo(commitDsid0Opening))
+                .addLinearStatement("commitDsid1Open", commitDsid1.isEqualTo(commitDsid1Opening));
+    }
+
+    /**
+     * Proof that (sigma0prime, sigma1prime) is a randomized signature on a token.
+     */
+    public AdHocSchnorrProof.Builder bindValidSignature(GroupElement sigma0prime, GroupElement sigma1prime) {
+        if (sigma0prime.isNeutralElement())
+            throw new IllegalStateException("sigma0 is the neutral group element");
+        return AdHocSchnorrProof.builder(pp.zp)
+                .addLinearStatement("psVerify", psVerify(sigma0prime, sigma1prime));
+    }
+
+    /**
+     * Proof for spending k points from the token behind (sigma0prime, sigma1prime).
+     */
+    public AdHocSchnorrProof.Builder bindSpend(int k, Zn.ZnElement gamma, Zn.ZnElement schnorrTrickC,
+                                               GroupElement sigma0prime, GroupElement sigma1prime,
+                                               GroupElement ctrace0, GroupElement ctrace1, GroupElement commitmentC,
+                                               GroupElement Cdsidstar0, GroupElement Cdsidstar1) {
+        if (sigma0prime.isNeutralElement())
+            throw new IllegalStateException("sigma0 is the neutral group element");
+        SpendShape shape = spendShapes.computeIfAbsent(k, kk -> new SpendShape(pp, pk, kk));
+        return AdHocSchnorrProof.builder(pp.zp)
+                .addLinearExponentStatement("uskSchnorrTrick", schnorrTrickC.isEqualTo(gamma.asExponentExpression().mul("usk").add("dsrnd")))
+                .addLinearStatement("psVerify", psVerify(sigma0prime, sigma1prime))
+                .addSmallerThanPowerStatement("enoughPoints", shape.remainingPoints, pp.rangeBase, pp.rangePower, pp.setMembershipPp)
+                .addLinearStatement("ctrace0open", ctrace0.isEqualTo(ctrace0Opening))
+                .addLinearStatement("ctrace1open", ctrace1.isEqualTo(ctrace0.pow("usk").op(wToDsidStar)))
+                .addLinearStatement("updatedMessageOpen", commitmentC.isEqualTo(shape.updatedMessageOpening))
+                .addLinearStatement("encryptionOfDsidStar0", Cdsidstar0.isEqualTo(dsidStarCommit0Opening))
+                .addLinearStatement("encryptionOfDsidStar1", Cdsidstar1.isEqualTo(dsidStarCommit1Opening));
+    }
+
+    private GroupEqualityExpr psVerify(GroupElement sigma0prime, GroupElement sigma1prime) {
+        return e.applyExpr(sigma0prime, psVerifyG2)
+                .isEqualTo(e.applyExpr(sigma1prime.op(sigma0prime.inv().pow("rPrime")), pk.getGroup2ElementTildeG()));
+    }
+}
@@ -0,0 +1,150 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Provider-side pool of the values the provider rounds need that do not depend on the user's messages:
+ * signing randomness (r, g^r, g^{x*r}) and random scalars (e.g. gamma, dsidStarProvider).
+ * <p>
+ * The pool is refilled on a low-priority executor whenever it drops below half its depth.
+ * If it runs empty (e.g. during a traffic spike), values are computed inline and counted as misses.
+ * <p>
+ * A pool belongs to a single signing key.
+ */
+public class ProviderPrecomputationPool implements Closeable {
+    private final UacsIncentiveSystem pp;
+    private final PreparedIssuerKey issuerKey;
+    final PSSigningKey sk;
+    private final int depth;
+    private final ExecutorService refillExecutor;
+    private final boolean ownsExecutor;
+
+    private final BlockingQueue<SigningRandomness> signingRandomness;
+    private final BlockingQueue<Zn.ZnElement> scalars;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * Randomness for blindly signing a commitment c: the signature is (gToR, gXToR * c^r).
+     */
+    public static class SigningRandomness {
+        public final Zn.ZnElement r;
+        public final GroupElement gToR, gXToR;
+
+        SigningRandomness(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk) {
+            r = pp.zp.getUniformlyRandomNonzeroElement();
+            gToR = issuerKey.pk.getGroup1ElementG().pow(r).compute();
+            gXToR = issuerKey.getGroup1ElementGX(sk).pow(r).compute();
+        }
+    }
+
+    /**
+     * Creates a pool refilled by its own single low-priority daemon thread.
+     *
+     * @param depth how many values of each kind to keep ready
+     */
+    public ProviderPrecomputationPool(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk, int depth) {
+        this(pp, issuerKey, sk, depth, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "provider-precomputation");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Creates a pool refilled by the given executor (which is not shut down by {@link #close()}).
+     */
+    public ProviderPrecomputationPool(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk, int depth, ExecutorService refillExecutor) {
+        this(pp, issuerKey, sk, depth, refillExecutor, false);
+    }
+
+    private ProviderPrecomputationPool(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk, int depth, ExecutorService refillExecutor, boolean ownsExecutor) {
+        if (depth < 1)
+            throw new IllegalArgumentException("depth must be positive");
+        this.pp = pp;
+        this.issuerKey = issuerKey;
+        this.sk = sk;
+        this.depth = depth;
+        this.refillExecutor = refillExecutor;
+        this.ownsExecutor = ownsExecutor;
+        this.signingRandomness = new ArrayBlockingQueue<>(depth);
+        this.scalars = new ArrayBlockingQueue<>(2 * depth);
+        scheduleRefill();
+    }
+
+    public SigningRandomness takeSigningRandomness() {
+        SigningRandomness result = signingRandomness.poll();
+        if (signingRandomness.size() < depth / 2 + 1)
+            scheduleRefill();
+        if (result == null) {
+            misses.increment();
+            return new SigningRandomness(pp, issuerKey, sk);
+        }
+        hits.increment();
+        return result;
+    }
+
+    /**
+     * Returns a uniformly random nonzero scalar.
+     */
+    public Zn.ZnElement takeScalar() {
+        Zn.ZnElement result = scalars.poll();
+        if (scalars.size() < depth + 1)
+            scheduleRefill();
+        if (result == null) {
+            misses.increment();
+            return pp.zp.getUniformlyRandomNonzeroElement();
+        }
+        hits.increment();
+        return result;
+    }
+
+    /**
+     * Number of values taken from the pool.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of values that had to be computed inline because the pool was empty.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private void scheduleRefill() {
+        if (!refillScheduled.compareAndSet(false, true))
+            return;
+        try {
+            refillExecutor.execute(this::refill);
+        } catch (RejectedExecutionException e) { //executor shut down, keep computing inline
+            refillScheduled.set(false);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (scalars.remainingCapacity() > 0)
+                scalars.offer(pp.zp.getUniformlyRandomNonzeroElement());
+            while (signingRandomness.remainingCapacity() > 0)
+                signingRandomness.offer(new SigningRandomness(pp, issuerKey, sk));
+        } finally {
+            refillScheduled.set(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor)
+            refillExecutor.shutdownNow();
+    }
+}
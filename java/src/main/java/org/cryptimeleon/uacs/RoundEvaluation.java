@@ -0,0 +1,24 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.math.structures.groups.GroupElement;
+
+/**
+ * Decides whether a protocol computes the intermediate group elements of its rounds (e.g. commitDsid0) where they are
+ * defined, or leaves them as unevaluated expressions that are computed where they are first used (e.g. by the proof).
+ * Values that a round sends are always computed where they are defined, since sending would force them right away.
+ * This only moves work between rounds; the messages are the same either way.
+ */
+class RoundEvaluation {
+    private volatile boolean deferred;
+
+    void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    /**
+     * Computes expression now, unless evaluation is deferred.
+     */
+    GroupElement evaluate(GroupElement expression) {
+        return deferred ? expression : expression.compute();
+    }
+}
@@ -0,0 +1,49 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.math.hash.UniqueByteRepresentable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Running SHA-256 hash over the values exchanged in a protocol session.
+ * Fiat-Shamir proofs are bound to the digest, so a proof cannot be replayed in another session
+ * or combined with other messages than the ones it was computed for.
+ */
+public class SessionTranscript {
+    private final MessageDigest digest;
+
+    public SessionTranscript(String protocolName, byte[] sessionId) {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        append(protocolName.getBytes(StandardCharsets.UTF_8));
+        append(sessionId);
+    }
+
+    public SessionTranscript append(byte[] bytes) {
+        //Length-prefixed so that the encoding of a sequence of values is unambiguous
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+        return this;
+    }
+
+    public SessionTranscript append(long value) {
+        return append(ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+    }
+
+    public SessionTranscript append(UniqueByteRepresentable value) {
+        return append(value.getUniqueByteRepresentation());
+    }
+
+    /**
+     * Returns the hash of everything appended so far. The transcript cannot be used afterwards.
+     */
+    public byte[] digest() {
+        return digest.digest();
+    }
+}
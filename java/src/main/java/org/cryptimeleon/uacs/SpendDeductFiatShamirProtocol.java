@@ -0,0 +1,288 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.protocols.CommonInput;
+import org.cryptimeleon.craco.protocols.SecretInput;
+import org.cryptimeleon.craco.protocols.arguments.fiatshamir.FiatShamirProof;
+import org.cryptimeleon.craco.protocols.arguments.fiatshamir.FiatShamirProofSystem;
+import org.cryptimeleon.craco.protocols.base.AdHocSchnorrProof;
+import org.cryptimeleon.craco.protocols.base.BaseProtocol;
+import org.cryptimeleon.craco.protocols.base.BaseProtocolInstance;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.BigIntegerRepresentation;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Non-interactive variant of {@link SpendDeductProtocol}.
+ * The spend proof is made non-interactive with Fiat-Shamir, bound to a {@link SessionTranscript} of everything sent before,
+ * so the protocol needs four messages instead of six.
+ */
+public class SpendDeductFiatShamirProtocol extends BaseProtocol {
+    private UacsIncentiveSystem pp;
+    private PreparedIssuerKey issuerKey;
+    private PSExtendedVerificationKey pk;
+    private ProofTemplates proofTemplates;
+    private final RoundEvaluation roundEvaluation = new RoundEvaluation();
+    private SpendRounds rounds;
+    private volatile ForkJoinPool parallelism;
+
+    public SpendDeductFiatShamirProtocol(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this(pp, new PreparedIssuerKey(pk));
+    }
+
+    public SpendDeductFiatShamirProtocol(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
+        super("user", "provider");
+        this.pp = pp;
+        this.issuerKey = issuerKey;
+        this.pk = issuerKey.pk;
+        this.proofTemplates = new ProofTemplates(pp, issuerKey);
+        this.rounds = new SpendRounds(pp, issuerKey, roundEvaluation);
+    }
+
+    /**
+     * See {@link SpendDeductProtocol#setParallelism(ForkJoinPool)}.
+     */
+    public void setParallelism(ForkJoinPool parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * See {@link SpendDeductProtocol#setDeferredEvaluation(boolean)}.
+     */
+    public void setDeferredEvaluation(boolean deferredEvaluation) {
+        roundEvaluation.setDeferred(deferredEvaluation);
+    }
+
+    @Override
+    public SpendDeductFiatShamirProtocolInstance instantiateProtocol(String role, CommonInput commonInput, SecretInput secretInput) {
+        SpendFiatShamirCommonInput input = (SpendFiatShamirCommonInput) commonInput;
+        if (role.equals("user"))
+            return new SpendDeductFiatShamirProtocolInstance(input, ((UacsIncentiveSystem.UserInput) secretInput).token, ((UacsIncentiveSystem.UserInput) secretInput).spendPool);
+        if (role.equals("provider"))
+            return new SpendDeductFiatShamirProtocolInstance(input, ((UacsIncentiveSystem.ProviderInput) secretInput).sk, ((UacsIncentiveSystem.ProviderInput) secretInput).providerPool);
+        throw new IllegalArgumentException("Unknown role");
+    }
+
+    public SpendDeductFiatShamirProtocolInstance instantiateUser(int k, Token token, byte[] sessionId) {
+        return instantiateUser(k, token, sessionId, null);
+    }
+
+    public SpendDeductFiatShamirProtocolInstance instantiateUser(int k, Token token, byte[] sessionId, SpendPrecomputationPool pool) {
+        return instantiateProtocol("user", new SpendFiatShamirCommonInput(k, token.dsid, sessionId), new UacsIncentiveSystem.UserInput(token, pool));
+    }
+
+    public SpendDeductFiatShamirProtocolInstance instantiateProvider(int k, Zn.ZnElement dsid, byte[] sessionId, PSSigningKey sk) {
+        return instantiateProvider(k, dsid, sessionId, sk, null);
+    }
+
+    public SpendDeductFiatShamirProtocolInstance instantiateProvider(int k, Zn.ZnElement dsid, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return instantiateProtocol("provider", new SpendFiatShamirCommonInput(k, dsid, sessionId), new UacsIncentiveSystem.ProviderInput(sk, pool));
+    }
+
+    /**
+     * Continues a provider instance from the state exported by {@link SpendDeductFiatShamirProtocolInstance#exportProviderState()}
+     * after its first round. The returned instance expects the user's second message.
+     * <p>
+     * The state is not authenticated here, so it must come from a trusted source (see {@link org.cryptimeleon.uacs.provider.SessionStateSealer}).
+     */
+    public SpendDeductFiatShamirProtocolInstance resumeProvider(Representation state, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return new SpendDeductFiatShamirProtocolInstance(state, sessionId, sk, pool);
+    }
+
+    public static class SpendFiatShamirCommonInput extends SpendDeductProtocol.SpendCommonInput {
+        public final byte[] sessionId;
+
+        public SpendFiatShamirCommonInput(int k, Zn.ZnElement dsid, byte[] sessionId) {
+            super(k, dsid);
+            this.sessionId = sessionId;
+        }
+    }
+
+    public class SpendDeductFiatShamirProtocolInstance extends BaseProtocolInstance {
+        private Token token;
+        private SpendPrecomputationPool pool;
+        private PSSigningKey sk;
+        private ProviderPrecomputationPool providerPool;
+        private int k;
+        private Zn.ZnElement dsid;
+        private byte[] sessionId;
+        private int roundOffset = 0;
+
+        private Zn.ZnElement r, rPrime, rPrimePrime, rCommitmentC;
+        private Zn.ZnElement gamma;
+        private Zn.ZnElement dsidStarUsr, dsidStarProvider, openStar;
+        private GroupElement CstarUser0, CstarUser1;
+        private GroupElement Cdsidstar0, Cdsidstar1;
+        private SpendRounds.Update update;
+        private GroupElement sigma0primeprime, sigma1primeprime;
+        private Token resultToken;
+        private DoubleSpendTag dstag;
+        private Zn.ZnElement usk, dsrnd, v;
+        private Zn.ZnElement dsidStar, dsrndStar;
+
+        public SpendDeductFiatShamirProtocolInstance(SpendFiatShamirCommonInput input, Token token) {
+            this(input, token, null);
+        }
+
+        public SpendDeductFiatShamirProtocolInstance(SpendFiatShamirCommonInput input, Token token, SpendPrecomputationPool pool) {
+            super(SpendDeductFiatShamirProtocol.this, "user");
+            if (pool != null && !pool.usk.equals(token.usk))
+                throw new IllegalArgumentException("Pool belongs to a different user");
+            this.k = input.k;
+            this.sessionId = input.sessionId;
+            this.token = token;
+            this.pool = pool;
+            this.usk = token.usk;
+            this.dsid = token.dsid;
+            this.dsrnd = token.dsrnd;
+            this.v = token.v;
+        }
+
+        public SpendDeductFiatShamirProtocolInstance(SpendFiatShamirCommonInput input, PSSigningKey sk) {
+            this(input, sk, null);
+        }
+
+        public SpendDeductFiatShamirProtocolInstance(SpendFiatShamirCommonInput input, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
+            super(SpendDeductFiatShamirProtocol.this, "provider");
+            if (providerPool != null && providerPool.sk != sk)
+                throw new IllegalArgumentException("Pool belongs to a different signing key");
+            this.k = input.k;
+            this.dsid = input.dsid;
+            this.sessionId = input.sessionId;
+            this.sk = sk;
+            this.providerPool = providerPool;
+        }
+
+        private SpendDeductFiatShamirProtocolInstance(Representation state, byte[] sessionId, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
+            this(new SpendFiatShamirCommonInput(state.obj().get("k").bigInt().get().intValueExact(), pp.zp.restoreElement(state.obj().get("dsid")), sessionId), sk, providerPool);
+            ObjectRepresentation obj = state.obj();
+            CstarUser0 = pp.group.getG1().restoreElement(obj.get("CstarUser0"));
+            CstarUser1 = pp.group.getG1().restoreElement(obj.get("CstarUser1"));
+            gamma = pp.zp.restoreElement(obj.get("gamma"));
+            dsidStarProvider = pp.zp.restoreElement(obj.get("dsidStarProvider"));
+            Cdsidstar0 = rounds.dsidStarCommitment(CstarUser0, dsidStarProvider);
+            Cdsidstar1 = CstarUser1;
+            roundOffset = 2;
+        }
+
+        @Override
+        protected void doRoundForFirstRole(int round) { //user
+            switch (round) {
+                case 0: //choose dsidStarUser and commit to it
+                    SpendPrecomputationPool.DsidCommitment dsidCommitment = rounds.commitToDsidStar(pool);
+                    dsidStarUsr = dsidCommitment.dsidStarUsr;
+                    openStar = dsidCommitment.openStar;
+                    CstarUser0 = dsidCommitment.CstarUser0;
+                    CstarUser1 = dsidCommitment.CstarUser1;
+                    send("CstarUser0", CstarUser0.getRepresentation());
+                    send("CstarUser1", CstarUser1.getRepresentation());
+                    break;
+                case 2: //Prepare updated credential values and send them along with the proof
+                    gamma = pp.zp.restoreElement(receive("gamma"));
+                    dsidStarProvider = pp.zp.restoreElement(receive("dsidStarProvider"));
+                    update = rounds.prepareUpdate(k, token, pool, parallelism, gamma, dsidStarUsr, CstarUser0, dsidStarProvider);
+                    Cdsidstar0 = update.Cdsidstar0;
+                    Cdsidstar1 = CstarUser1;
+
+                    //Witnesses for the proof
+                    dsidStar = update.dsidStar;
+                    dsrndStar = update.dsrndStar;
+                    rCommitmentC = update.rCommitmentC;
+                    r = update.r;
+                    rPrime = update.rPrime;
+                    rPrimePrime = update.rPrimePrime;
+
+                    //Send values and proof
+                    update.send(this::send);
+                    send("spendProof", getSpendProofSystem().createProof(null, AdHocSchnorrProof.witnessOf(this), getTranscriptDigest()).getRepresentation());
+                    break;
+                case 4: //receive blinded signature and unblind
+                    resultToken = rounds.unblind(k, token, update, pool, parallelism, receive("sigma0primeprime"), receive("sigma1primeprime"));
+                    terminate();
+                    break;
+            }
+        }
+
+        @Override
+        protected void doRoundForSecondRole(int round) { //provider
+            switch (round + roundOffset) { //a resumed instance continues with round 3
+                case 1: //receive commitment to user share of dsidStar, reply with gamma and provider's share.
+                    GroupElement[] commitments = pp.restoreG1Elements(parallelism, receive("CstarUser0"), receive("CstarUser1"));
+                    CstarUser0 = commitments[0];
+                    CstarUser1 = commitments[1];
+                    gamma = rounds.providerScalar(providerPool);
+                    send("gamma", gamma.getRepresentation());
+                    dsidStarProvider = rounds.providerScalar(providerPool);
+                    send("dsidStarProvider", dsidStarProvider.getRepresentation());
+                    Cdsidstar0 = rounds.dsidStarCommitment(CstarUser0, dsidStarProvider);
+                    Cdsidstar1 = CstarUser1;
+                    break;
+                case 3: //receive values, check proof and send updated signature. Output dstag.
+                    update = rounds.receiveUpdate(parallelism, this::receive);
+                    FiatShamirProofSystem proofSystem = getSpendProofSystem();
+                    FiatShamirProof proof = proofSystem.restoreProof(null, receive("spendProof"));
+                    if (!proofSystem.checkProof(null, proof, getTranscriptDigest()))
+                        throw new IllegalStateException("Invalid spend proof");
+
+                    GroupElement[] signature = rounds.sign(sk, providerPool, update.commitmentC);
+                    sigma0primeprime = signature[0];
+                    sigma1primeprime = signature[1];
+                    dstag = new DoubleSpendTag(update.schnorrTrickC, gamma, update.ctrace0, update.ctrace1);
+                    send("sigma0primeprime", sigma0primeprime.getRepresentation());
+                    send("sigma1primeprime", sigma1primeprime.getRepresentation());
+                    terminate();
+                    break;
+            }
+        }
+
+        public Token getUserResult() {
+            return resultToken;
+        }
+
+        public DoubleSpendTag getProviderResult() {
+            return dstag;
+        }
+
+        /**
+         * Returns everything the provider needs to continue after its first round,
+         * so that the protocol can be continued by {@link #resumeProvider(Representation, byte[], PSSigningKey, ProviderPrecomputationPool)}
+         * (possibly on another machine) instead of by this instance.
+         */
+        public Representation exportProviderState() {
+            if (sk == null || gamma == null || hasTerminated())
+                throw new IllegalStateException("State can only be exported by a provider after its first round");
+            ObjectRepresentation state = new ObjectRepresentation();
+            state.put("k", new BigIntegerRepresentation(BigInteger.valueOf(k)));
+            state.put("dsid", dsid.getRepresentation());
+            state.put("CstarUser0", CstarUser0.getRepresentation());
+            state.put("CstarUser1", CstarUser1.getRepresentation());
+            state.put("gamma", gamma.getRepresentation());
+            state.put("dsidStarProvider", dsidStarProvider.getRepresentation());
+            return state;
+        }
+
+        /**
+         * Hash of everything both parties have seen up to the proof, which the proof is bound to.
+         */
+        private byte[] getTranscriptDigest() {
+            return new SessionTranscript("SpendDeduct", sessionId)
+                    .append(k).append(dsid)
+                    .append(CstarUser0).append(CstarUser1)
+                    .append(gamma).append(dsidStarProvider)
+                    .append(update.commitmentC).append(update.schnorrTrickC)
+                    .append(update.ctrace0).append(update.ctrace1)
+                    .append(update.sigma0prime).append(update.sigma1prime)
+                    .digest();
+        }
+
+        private FiatShamirProofSystem getSpendProofSystem() {
+            return new FiatShamirProofSystem(proofTemplates.bindSpend(k, gamma, update.schnorrTrickC, update.sigma0prime, update.sigma1prime, update.ctrace0, update.ctrace1, update.commitmentC, Cdsidstar0, Cdsidstar1).build());
+        }
+    }
+}
@@ -7,39 +7,74 @@ import org.cryptimeleon.craco.protocols.base.BaseProtocol;
 import org.cryptimeleon.craco.protocols.base.BaseProtocolInstance;
 import org.cryptimeleon.craco.protocols.base.AdHocSchnorrProof;
 import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
-import org.cryptimeleon.craco.sig.ps.PSSignature;
 import org.cryptimeleon.craco.sig.ps.PSSigningKey;
-import org.cryptimeleon.math.expressions.exponent.BasicNamedExponentVariableExpr;
-import org.cryptimeleon.math.structures.cartesian.Vector;
 import org.cryptimeleon.math.structures.groups.GroupElement;
-import org.cryptimeleon.math.structures.groups.elliptic.BilinearMap;
 import org.cryptimeleon.math.structures.rings.zn.Zn;
 
+import java.util.concurrent.ForkJoinPool;
+
 public class SpendDeductProtocol extends BaseProtocol {
     private UacsIncentiveSystem pp;
+    private PreparedIssuerKey issuerKey;
     private PSExtendedVerificationKey pk;
+    private ProofTemplates proofTemplates;
+    private final RoundEvaluation roundEvaluation = new RoundEvaluation();
+    private SpendRounds rounds;
+    private volatile ForkJoinPool parallelism;
 
     public SpendDeductProtocol(UacsIncentiveSystem pp, PSExtendedVerificationKey pk) {
+        this(pp, new PreparedIssuerKey(pk));
+    }
+
+    public SpendDeductProtocol(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey) {
         super("user", "provider");
         this.pp = pp;
-        this.pk = pk;
+        this.issuerKey = issuerKey;
+        this.pk = issuerKey.pk;
+        this.proofTemplates = new ProofTemplates(pp, issuerKey);
+        this.rounds = new SpendRounds(pp, issuerKey, roundEvaluation);
+    }
+
+    /**
+     * Lets instances run the independent computations of their rounds (see {@link ParallelRound}) on the given pool
+     * (null to run them on the protocol's thread). This lowers the latency of a single Spend if there are idle cores;
+     * the messages are the same either way.
+     */
+    public void setParallelism(ForkJoinPool parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Lets instances leave the intermediate group elements of their rounds that they do not send unevaluated until
+     * they are used (see {@link RoundEvaluation}).
+     */
+    public void setDeferredEvaluation(boolean deferredEvaluation) {
+        roundEvaluation.setDeferred(deferredEvaluation);
     }
 
     @Override
     public SpendDeductProtocolInstance instantiateProtocol(String role, CommonInput commonInput, SecretInput secretInput) {
         if (role.equals("user"))
-            return new SpendDeductProtocolInstance(((SpendCommonInput) commonInput).k, ((UacsIncentiveSystem.UserInput) secretInput).token);
+            return new SpendDeductProtocolInstance(((SpendCommonInput) commonInput).k, ((UacsIncentiveSystem.UserInput) secretInput).token, ((UacsIncentiveSystem.UserInput) secretInput).spendPool);
         if (role.equals("provider"))
-            return new SpendDeductProtocolInstance(((SpendCommonInput) commonInput).k, ((SpendCommonInput) commonInput).dsid, ((UacsIncentiveSystem.ProviderInput) secretInput).sk);
+            return new SpendDeductProtocolInstance(((SpendCommonInput) commonInput).k, ((SpendCommonInput) commonInput).dsid, ((UacsIncentiveSystem.ProviderInput) secretInput).sk, ((UacsIncentiveSystem.ProviderInput) secretInput).providerPool);
         throw new IllegalArgumentException("Unknown role");
     }
 
     public SpendDeductProtocolInstance instantiateUser(int k, Token token) {
-        return instantiateProtocol("user", new SpendCommonInput(k, token.dsid), new UacsIncentiveSystem.UserInput(token));
+        return instantiateUser(k, token, null);
+    }
+
+    public SpendDeductProtocolInstance instantiateUser(int k, Token token, SpendPrecomputationPool pool) {
+        return instantiateProtocol("user", new SpendCommonInput(k, token.dsid), new UacsIncentiveSystem.UserInput(token, pool));
     }
 
     public SpendDeductProtocolInstance instantiateProvider(int k, Zn.ZnElement dsid, PSSigningKey sk) {
-        return instantiateProtocol("provider", new SpendCommonInput(k, dsid), new UacsIncentiveSystem.ProviderInput(sk));
+        return instantiateProvider(k, dsid, sk, null);
+    }
+
+    public SpendDeductProtocolInstance instantiateProvider(int k, Zn.ZnElement dsid, PSSigningKey sk, ProviderPrecomputationPool pool) {
+        return instantiateProtocol("provider", new SpendCommonInput(k, dsid), new UacsIncentiveSystem.ProviderInput(sk, pool));
     }
 
     public static class SpendCommonInput implements CommonInput {
@@ -54,7 +89,9 @@ public class SpendDeductProtocol extends BaseProtocol {
 
     public class SpendDeductProtocolInstance extends BaseProtocolInstance {
         private Token token;
+        private SpendPrecomputationPool pool;
         private PSSigningKey sk;
+        private ProviderPrecomputationPool providerPool;
         private int k;
         private Zn.ZnElement dsid;
 
@@ -63,11 +100,8 @@ public class SpendDeductProtocol extends BaseProtocol {
         private Zn.ZnElement dsidStarUsr, dsidStarProvider, openStar;
         private GroupElement CstarUser0, CstarUser1;
         private GroupElement Cdsidstar0, Cdsidstar1;
-        private GroupElement sigma0prime, sigma1prime;
+        private SpendRounds.Update update;
         private GroupElement sigma0primeprime, sigma1primeprime;
-        private GroupElement commitmentC;
-        private Zn.ZnElement schnorrTrickC;
-        private GroupElement ctrace0, ctrace1;
         private Token resultToken;
         private DoubleSpendTag dstag;
         private Zn.ZnElement usk, dsrnd, v;
@@ -75,9 +109,16 @@ public class SpendDeductProtocol extends BaseProtocol {
 
 
         public SpendDeductProtocolInstance(int k, Token token) {
+            this(k, token, null);
+        }
+
+        public SpendDeductProtocolInstance(int k, Token token, SpendPrecomputationPool pool) {
             super(SpendDeductProtocol.this, "user");
+            if (pool != null && !pool.usk.equals(token.usk))
+                throw new IllegalArgumentException("Pool belongs to a different user");
             this.k = k;
             this.token = token;
+            this.pool = pool;
             this.usk = token.usk;
             this.dsid = token.dsid;
             this.dsrnd = token.dsrnd;
@@ -85,58 +126,48 @@ public class SpendDeductProtocol extends BaseProtocol {
         }
 
         public SpendDeductProtocolInstance(int k, Zn.ZnElement dsid, PSSigningKey sk) {
+            this(k, dsid, sk, null);
+        }
+
+        public SpendDeductProtocolInstance(int k, Zn.ZnElement dsid, PSSigningKey sk, ProviderPrecomputationPool providerPool) {
             super(SpendDeductProtocol.this, "provider");
+            if (providerPool != null && providerPool.sk != sk)
+                throw new IllegalArgumentException("Pool belongs to a different signing key");
             this.k = k;
             this.dsid = dsid;
             this.sk = sk;
+            this.providerPool = providerPool;
         }
 
         @Override
         protected void doRoundForFirstRole(int round) { //user
             switch (round) {
                 case 0: //choose dsidStarUser and commit to it
-                    dsidStarUsr = pp.zp.getUniformlyRandomElement();
-                    openStar = pp.zp.getUniformlyRandomElement();
-                    CstarUser0 = pp.g.pow(dsidStarUsr).op(pp.h.pow(openStar)).compute();
-                    CstarUser1 = pp.g.pow(openStar).compute();
+                    SpendPrecomputationPool.DsidCommitment dsidCommitment = rounds.commitToDsidStar(pool);
+                    dsidStarUsr = dsidCommitment.dsidStarUsr;
+                    openStar = dsidCommitment.openStar;
+                    CstarUser0 = dsidCommitment.CstarUser0;
+                    CstarUser1 = dsidCommitment.CstarUser1;
                     send("CstarUser0", CstarUser0.getRepresentation());
                     send("CstarUser1", CstarUser1.getRepresentation());
                     break;
                 case 2: //Prepare updated credential values and run proof
                     gamma = pp.zp.restoreElement(receive("gamma"));
                     dsidStarProvider = pp.zp.restoreElement(receive("dsidStarProvider"));
-
-                    Cdsidstar0 = CstarUser0.op(pp.g.pow(dsidStarProvider)).compute();
+                    update = rounds.prepareUpdate(k, token, pool, parallelism, gamma, dsidStarUsr, CstarUser0, dsidStarProvider);
+                    Cdsidstar0 = update.Cdsidstar0;
                     Cdsidstar1 = CstarUser1;
 
-                    //Prepare pre-signature for new token
-                    dsidStar = dsidStarUsr.add(dsidStarProvider);
-                    dsrndStar = pp.zp.getUniformlyRandomElement();
-                    rCommitmentC = pp.zp.getUniformlyRandomElement();
-                    commitmentC = pk.getGroup1ElementsYi().innerProduct(Vector.of(usk, dsidStar, dsrndStar, v.sub(pp.zp.valueOf(k)))).op(pk.getGroup1ElementG().pow(rCommitmentC)).compute();
-
-                    //Put usk into Schnorr trick
-                    schnorrTrickC = usk.mul(gamma).add(dsrnd);
-
-                    //Encrypt dsid*
-                    GroupElement dsidStarGroupElem = pp.w.pow(dsidStar);
-                    r = pp.zp.getUniformlyRandomNonzeroElement();
-                    ctrace0 = pp.w.pow(r).compute();
-                    ctrace1 = pp.w.pow(r.mul(usk)).op(dsidStarGroupElem).compute();
-
-                    //Randomize credential
-                    rPrime = pp.zp.getUniformlyRandomElement();
-                    rPrimePrime = pp.zp.getUniformlyRandomNonzeroElement();
-                    sigma0prime = token.sig.getGroup1ElementSigma1().pow(rPrimePrime).compute();
-                    sigma1prime = token.sig.getGroup1ElementSigma2().op(token.sig.getGroup1ElementSigma1().pow(rPrime)).pow(rPrimePrime).compute();
+                    //Witnesses for the proof
+                    dsidStar = update.dsidStar;
+                    dsrndStar = update.dsrndStar;
+                    rCommitmentC = update.rCommitmentC;
+                    r = update.r;
+                    rPrime = update.rPrime;
+                    rPrimePrime = update.rPrimePrime;
 
                     //Send values
-                    send("C", commitmentC.getRepresentation());
-                    send("c", schnorrTrickC.getRepresentation());
-                    send("ctrace0", ctrace0.getRepresentation());
-                    send("ctrace1", ctrace1.getRepresentation());
-                    send("sigma0prime", sigma0prime.getRepresentation());
-                    send("sigma1prime", sigma1prime.getRepresentation());
+                    update.send(this::send);
 
                     //Run proof
                     runArgumentConcurrently("spendProof", getSpendProof().instantiateProver(null, AdHocSchnorrProof.witnessOf(this)));
@@ -146,12 +177,7 @@ public class SpendDeductProtocol extends BaseProtocol {
                     //Nothing to do.
                     break;
                 case 6: //receive blinded signature and unblind
-                    sigma0primeprime = pp.group.getG1().restoreElement(receive("sigma0primeprime"));
-                    sigma1primeprime = pp.group.getG1().restoreElement(receive("sigma1primeprime"));
-                    PSSignature sigmaStar = new PSSignature(sigma0primeprime, sigma1primeprime.op(sigma0primeprime.pow(rCommitmentC.neg())).compute());
-                    resultToken = new Token(usk, dsidStar, dsrndStar, v.sub(pp.zp.valueOf(k)), sigmaStar);
-                    if (!pp.verifyToken(resultToken, pk))
-                        throw new IllegalStateException("Invalid signature");
+                    resultToken = rounds.unblind(k, token, update, pool, parallelism, receive("sigma0primeprime"), receive("sigma1primeprime"));
                     terminate();
                     break;
             }
@@ -161,30 +187,25 @@ public class SpendDeductProtocol extends BaseProtocol {
         protected void doRoundForSecondRole(int round) { //provider
             switch (round) {
                 case 1: //receive commitment to user share of dsidStar, reply with gamma and provider's share.
-                    CstarUser0 = pp.group.getG1().restoreElement(receive("CstarUser0"));
-                    CstarUser1 = pp.group.getG1().restoreElement(receive("CstarUser1"));
-                    gamma = pp.zp.getUniformlyRandomElement();
+                    GroupElement[] commitments = pp.restoreG1Elements(parallelism, receive("CstarUser0"), receive("CstarUser1"));
+                    CstarUser0 = commitments[0];
+                    CstarUser1 = commitments[1];
+                    gamma = rounds.providerScalar(providerPool);
                     send("gamma", gamma.getRepresentation());
-                    dsidStarProvider = pp.zp.getUniformlyRandomElement();
+                    dsidStarProvider = rounds.providerScalar(providerPool);
                     send("dsidStarProvider", dsidStarProvider.getRepresentation());
-                    Cdsidstar0 = CstarUser0.op(pp.g.pow(dsidStarProvider)).compute();
+                    Cdsidstar0 = rounds.dsidStarCommitment(CstarUser0, dsidStarProvider);
                     Cdsidstar1 = CstarUser1;
                     break;
                 case 3: //Receive stuff and send proof challenge
-                    commitmentC = pp.group.getG1().restoreElement(receive("C"));
-                    schnorrTrickC = pp.zp.restoreElement(receive("c"));
-                    ctrace0 = pp.group.getG1().restoreElement(receive("ctrace0"));
-                    ctrace1 = pp.group.getG1().restoreElement(receive("ctrace1"));
-                    sigma0prime = pp.group.getG1().restoreElement(receive("sigma0prime"));
-                    sigma1prime = pp.group.getG1().restoreElement(receive("sigma1prime"));
-
+                    update = rounds.receiveUpdate(parallelism, this::receive);
                     runArgumentConcurrently("spendProof", getSpendProof().instantiateVerifier(null));
                     break;
                 case 5: //check proof (implicit) and send updated signature. Output dstag.
-                    Zn.ZnElement rPrimeprimeprime = pp.zp.getUniformlyRandomNonzeroElement();
-                    sigma0primeprime = pk.getGroup1ElementG().pow(rPrimeprimeprime).compute();
-                    sigma1primeprime = commitmentC.op(pk.getGroup1ElementG().pow(sk.getExponentX())).pow(rPrimeprimeprime).compute();
-                    dstag = new DoubleSpendTag(schnorrTrickC, gamma, ctrace0, ctrace1);
+                    GroupElement[] signature = rounds.sign(sk, providerPool, update.commitmentC);
+                    sigma0primeprime = signature[0];
+                    sigma1primeprime = signature[1];
+                    dstag = new DoubleSpendTag(update.schnorrTrickC, gamma, update.ctrace0, update.ctrace1);
                     send("sigma0primeprime", sigma0primeprime.getRepresentation());
                     send("sigma1primeprime", sigma1primeprime.getRepresentation());
                     terminate();
@@ -201,21 +222,7 @@ public class SpendDeductProtocol extends BaseProtocol {
         }
 
         private InteractiveArgument getSpendProof() {
-            BilinearMap e = pp.group.getBilinearMap();
-            if (sigma0prime.isNeutralElement())
-                throw new IllegalStateException("sigma0 is the neutral group element");
-            return AdHocSchnorrProof.builder(pp.zp)
-                    .addLinearExponentStatement("uskSchnorrTrick", schnorrTrickC.isEqualTo(gamma.asExponentExpression().mul("usk").add("dsrnd")))
-                    .addLinearStatement("psVerify",
-                            e.applyExpr(sigma0prime, pk.getGroup2ElementTildeX().op(pk.getGroup2ElementsTildeYi().expr().innerProduct(Vector.of("usk", "dsid", "dsrnd", "v"))))
-                            .isEqualTo(e.applyExpr(sigma1prime.op(sigma0prime.inv().pow("rPrime")), pk.getGroup2ElementTildeG())))
-                    .addSmallerThanPowerStatement("enoughPoints", new BasicNamedExponentVariableExpr("v").sub(k), pp.rangeBase, pp.rangePower, pp.setMembershipPp)
-                    .addLinearStatement("ctrace0open", ctrace0.isEqualTo(pp.w.pow("r")))
-                    .addLinearStatement("ctrace1open", ctrace1.isEqualTo(ctrace0.pow("usk").op(pp.w.pow("dsidStar"))))
-                    .addLinearStatement("updatedMessageOpen", commitmentC.isEqualTo(pk.getGroup1ElementsYi().expr().innerProduct(Vector.of("usk", "dsidStar", "dsrndStar", pp.zp.valueOf(k).neg().asExponentExpression().add("v"))).op(pk.getGroup1ElementG().pow("rCommitmentC"))))
-                    .addLinearStatement("encryptionOfDsidStar0", Cdsidstar0.isEqualTo(pp.g.pow("dsidStar").op(pp.h.pow("openStar"))))
-                    .addLinearStatement("encryptionOfDsidStar1", Cdsidstar1.isEqualTo(pp.g.pow("openStar")))
-                    .buildInteractiveDamgard(pp.commitmentSchemeForDamgard);
+            return proofTemplates.bindSpend(k, gamma, update.schnorrTrickC, update.sigma0prime, update.sigma1prime, update.ctrace0, update.ctrace1, update.commitmentC, Cdsidstar0, Cdsidstar1).buildInteractiveDamgard(pp.commitmentSchemeForDamgard);
         }
     }
 }
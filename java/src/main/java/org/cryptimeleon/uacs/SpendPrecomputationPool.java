@@ -0,0 +1,218 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.cartesian.GroupElementVector;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * User-side pool of the Spend values that do not depend on the provider's messages
+ * (the dsid* commitment, the ctrace encryption randomness, the commitment randomness for the new token
+ * and the randomized signature of the token to be spent).
+ * <p>
+ * A background (daemon) thread keeps up to depth values of each kind ready, so that
+ * {@link SpendDeductProtocol} and {@link SpendDeductFiatShamirProtocol} only need to do the work that depends on
+ * the provider's messages in the latency-critical rounds. If the pool is empty, values are computed inline.
+ * <p>
+ * A pool belongs to a single user (it precomputes powers of usk).
+ */
+public class SpendPrecomputationPool implements Closeable {
+    private final UacsIncentiveSystem pp;
+    private final PreparedIssuerKey issuerKey;
+    final Zn.ZnElement usk;
+    private final int depth;
+
+    private final BlockingQueue<DsidCommitment> dsidCommitments;
+    private final BlockingQueue<TraceRandomness> traceRandomness;
+    private final BlockingQueue<CommitmentRandomness> commitmentRandomness;
+    private final AtomicReference<Token> tokenToRandomize = new AtomicReference<>();
+    private final AtomicReference<SignatureRandomization> signatureRandomization = new AtomicReference<>();
+
+    private final Thread refillThread;
+    private volatile boolean closed = false;
+
+    /**
+     * Commitment (CstarUser0, CstarUser1) = (g^dsidStarUsr h^openStar, g^openStar) to the user's share of dsid*.
+     */
+    public static class DsidCommitment {
+        public final Zn.ZnElement dsidStarUsr, openStar;
+        public final GroupElement CstarUser0, CstarUser1;
+
+        DsidCommitment(UacsIncentiveSystem pp) {
+            dsidStarUsr = pp.zp.getUniformlyRandomElement();
+            openStar = pp.zp.getUniformlyRandomElement();
+            CstarUser0 = pp.g.pow(dsidStarUsr).op(pp.h.pow(openStar)).compute();
+            CstarUser1 = pp.g.pow(openStar).compute();
+        }
+    }
+
+    /**
+     * Randomness r for the dsid* encryption with ctrace0 = w^r and wToRUsk = w^{r*usk}.
+     * <p>
+     * Values computed inline (on a pool miss or without a pool) leave wToRUsk unset, since then
+     * {@link #ctrace1(UacsIncentiveSystem, Zn.ZnElement)} is a single exponentiation w^{r*usk + dsid*} anyway.
+     */
+    public static class TraceRandomness {
+        public final Zn.ZnElement r, rUsk;
+        public final GroupElement ctrace0, wToRUsk;
+
+        TraceRandomness(UacsIncentiveSystem pp, Zn.ZnElement usk, boolean precompute) {
+            r = pp.zp.getUniformlyRandomNonzeroElement();
+            rUsk = r.mul(usk);
+            ctrace0 = pp.w.pow(r).compute();
+            wToRUsk = precompute ? pp.w.pow(rUsk).compute() : null;
+        }
+
+        /**
+         * Returns ctrace1 = w^{r*usk} w^{dsid*}.
+         */
+        public GroupElement ctrace1(UacsIncentiveSystem pp, Zn.ZnElement dsidStar) {
+            if (wToRUsk != null)
+                return wToRUsk.op(pp.w.pow(dsidStar)).compute();
+            return pp.w.pow(rUsk.add(dsidStar)).compute();
+        }
+    }
+
+    /**
+     * The parts of the commitment C to the new token that are independent of dsid* and k,
+     * i.e. partialC = Y1^usk Y3^dsrndStar g^rCommitmentC.
+     * <p>
+     * Values computed inline leave partialC as an unevaluated expression, so that
+     * {@link #commitment(PreparedIssuerKey, Zn.ZnElement, Zn.ZnElement)} evaluates all five terms of C
+     * as one multi-exponentiation.
+     */
+    public static class CommitmentRandomness {
+        public final Zn.ZnElement dsrndStar, rCommitmentC;
+        public final GroupElement partialC;
+
+        CommitmentRandomness(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, Zn.ZnElement usk, boolean precompute) {
+            GroupElementVector yi = issuerKey.pk.getGroup1ElementsYi();
+            dsrndStar = pp.zp.getUniformlyRandomElement();
+            rCommitmentC = pp.zp.getUniformlyRandomElement();
+            GroupElement partial = yi.get(0).pow(usk).op(yi.get(2).pow(dsrndStar)).op(issuerKey.pk.getGroup1ElementG().pow(rCommitmentC));
+            partialC = precompute ? partial.compute() : partial;
+        }
+
+        /**
+         * Returns C = partialC Y2^dsidStar Y4^value.
+         */
+        public GroupElement commitment(PreparedIssuerKey issuerKey, Zn.ZnElement dsidStar, Zn.ZnElement value) {
+            GroupElementVector yi = issuerKey.pk.getGroup1ElementsYi();
+            return partialC.op(yi.get(1).pow(dsidStar)).op(yi.get(3).pow(value)).compute();
+        }
+    }
+
+    /**
+     * Randomized signature (sigma0prime, sigma1prime) = (sigma1^rPrimePrime, (sigma2 sigma1^rPrime)^rPrimePrime) of token.
+     */
+    public static class SignatureRandomization {
+        public final Token token;
+        public final Zn.ZnElement rPrime, rPrimePrime;
+        public final GroupElement sigma0prime, sigma1prime;
+
+        SignatureRandomization(UacsIncentiveSystem pp, Token token) {
+            this.token = token;
+            rPrime = pp.zp.getUniformlyRandomElement();
+            rPrimePrime = pp.zp.getUniformlyRandomNonzeroElement();
+            sigma0prime = token.sig.getGroup1ElementSigma1().pow(rPrimePrime).compute();
+            sigma1prime = token.sig.getGroup1ElementSigma2().pow(rPrimePrime).op(token.sig.getGroup1ElementSigma1().pow(rPrime.mul(rPrimePrime))).compute();
+        }
+    }
+
+    /**
+     * @param usk   the secret key of the user owning the pool
+     * @param depth how many values of each kind to keep ready
+     */
+    public SpendPrecomputationPool(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, Zn.ZnElement usk, int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("depth must be positive");
+        this.pp = pp;
+        this.issuerKey = issuerKey;
+        this.usk = usk;
+        this.depth = depth;
+        this.dsidCommitments = new ArrayBlockingQueue<>(depth);
+        this.traceRandomness = new ArrayBlockingQueue<>(depth);
+        this.commitmentRandomness = new ArrayBlockingQueue<>(depth);
+
+        refillThread = new Thread(this::refill, "spend-precomputation");
+        refillThread.setDaemon(true);
+        refillThread.setPriority(Thread.MIN_PRIORITY);
+        refillThread.start();
+    }
+
+    /**
+     * Asks the pool to randomize the signature of token in the background, e.g. right after the token was obtained.
+     * The spend protocols do this automatically for the token they output.
+     */
+    public void prepare(Token token) {
+        tokenToRandomize.set(token);
+        LockSupport.unpark(refillThread);
+    }
+
+    public DsidCommitment takeDsidCommitment() {
+        DsidCommitment result = dsidCommitments.poll();
+        LockSupport.unpark(refillThread);
+        return result != null ? result : new DsidCommitment(pp);
+    }
+
+    public TraceRandomness takeTraceRandomness() {
+        TraceRandomness result = traceRandomness.poll();
+        LockSupport.unpark(refillThread);
+        return result != null ? result : new TraceRandomness(pp, usk, false);
+    }
+
+    public CommitmentRandomness takeCommitmentRandomness() {
+        CommitmentRandomness result = commitmentRandomness.poll();
+        LockSupport.unpark(refillThread);
+        return result != null ? result : new CommitmentRandomness(pp, issuerKey, usk, false);
+    }
+
+    /**
+     * Returns a randomization of the given token's signature. Each randomization is handed out only once.
+     */
+    public SignatureRandomization takeSignatureRandomization(Token token) {
+        SignatureRandomization result = signatureRandomization.get();
+        if (result != null && result.token == token && signatureRandomization.compareAndSet(result, null))
+            return result;
+        return new SignatureRandomization(pp, token);
+    }
+
+    private void refill() {
+        while (!closed) {
+            boolean produced = false;
+            Token token = tokenToRandomize.getAndSet(null);
+            if (token != null) {
+                signatureRandomization.set(new SignatureRandomization(pp, token));
+                produced = true;
+            }
+            if (dsidCommitments.size() < depth) {
+                dsidCommitments.offer(new DsidCommitment(pp));
+                produced = true;
+            }
+            if (traceRandomness.size() < depth) {
+                traceRandomness.offer(new TraceRandomness(pp, usk, true));
+                produced = true;
+            }
+            if (commitmentRandomness.size() < depth) {
+                commitmentRandomness.offer(new CommitmentRandomness(pp, issuerKey, usk, true));
+                produced = true;
+            }
+            if (!produced)
+                LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Stops the refill thread. Values already in the pool can still be taken.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(refillThread);
+    }
+}
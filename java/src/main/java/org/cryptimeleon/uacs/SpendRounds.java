@@ -0,0 +1,154 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.sig.ps.PSSignature;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The computations of {@link SpendDeductProtocol} and {@link SpendDeductFiatShamirProtocol}, which only differ
+ * in how the spend proof is run. The instances keep their values in their own fields (the proof reads its witnesses from there).
+ */
+class SpendRounds {
+    private final UacsIncentiveSystem pp;
+    private final PreparedIssuerKey issuerKey;
+    private final RoundEvaluation roundEvaluation;
+
+    SpendRounds(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, RoundEvaluation roundEvaluation) {
+        this.pp = pp;
+        this.issuerKey = issuerKey;
+        this.roundEvaluation = roundEvaluation;
+    }
+
+    /**
+     * The user's values for the new token and the randomized old signature, i.e. what it sends along with the spend proof
+     * (C, c, ctrace0, ctrace1, sigma0prime, sigma1prime) and the witnesses for them.
+     * On the provider's side, only the sent values are set.
+     */
+    static class Update {
+        Zn.ZnElement dsidStar, dsrndStar, rCommitmentC;
+        Zn.ZnElement r, rPrime, rPrimePrime;
+        GroupElement Cdsidstar0;
+        GroupElement commitmentC;
+        Zn.ZnElement schnorrTrickC;
+        GroupElement ctrace0, ctrace1;
+        GroupElement sigma0prime, sigma1prime;
+
+        void send(BiConsumer<String, Representation> send) {
+            send.accept("C", commitmentC.getRepresentation());
+            send.accept("c", schnorrTrickC.getRepresentation());
+            send.accept("ctrace0", ctrace0.getRepresentation());
+            send.accept("ctrace1", ctrace1.getRepresentation());
+            send.accept("sigma0prime", sigma0prime.getRepresentation());
+            send.accept("sigma1prime", sigma1prime.getRepresentation());
+        }
+    }
+
+    /**
+     * Commitment to the user's share of dsid*.
+     */
+    SpendPrecomputationPool.DsidCommitment commitToDsidStar(SpendPrecomputationPool pool) {
+        return pool != null ? pool.takeDsidCommitment() : new SpendPrecomputationPool.DsidCommitment(pp);
+    }
+
+    /**
+     * Random scalar of the provider (gamma or its share of dsid*).
+     */
+    Zn.ZnElement providerScalar(ProviderPrecomputationPool providerPool) {
+        return providerPool != null ? providerPool.takeScalar() : pp.zp.getUniformlyRandomElement();
+    }
+
+    /**
+     * Cdsidstar0 = CstarUser0 * g^dsidStarProvider (Cdsidstar1 is CstarUser1).
+     */
+    GroupElement dsidStarCommitment(GroupElement CstarUser0, Zn.ZnElement dsidStarProvider) {
+        return roundEvaluation.evaluate(CstarUser0.op(pp.g.pow(dsidStarProvider)));
+    }
+
+    /**
+     * Prepares the updated credential values once the user has received gamma and dsidStarProvider.
+     * The computations are independent, so they run in parallel if parallelism is not null.
+     */
+    Update prepareUpdate(int k, Token token, SpendPrecomputationPool pool, ForkJoinPool parallelism,
+                         Zn.ZnElement gamma, Zn.ZnElement dsidStarUsr, GroupElement CstarUser0, Zn.ZnElement dsidStarProvider) {
+        Update update = new Update();
+        ParallelRound parallel = new ParallelRound(parallelism);
+        update.dsidStar = dsidStarUsr.add(dsidStarProvider);
+        parallel.run(() -> update.Cdsidstar0 = dsidStarCommitment(CstarUser0, dsidStarProvider));
+
+        //Prepare pre-signature for new token
+        parallel.run(() -> {
+            SpendPrecomputationPool.CommitmentRandomness commitmentRandomness = pool != null ? pool.takeCommitmentRandomness() : new SpendPrecomputationPool.CommitmentRandomness(pp, issuerKey, token.usk, false);
+            update.dsrndStar = commitmentRandomness.dsrndStar;
+            update.rCommitmentC = commitmentRandomness.rCommitmentC;
+            update.commitmentC = commitmentRandomness.commitment(issuerKey, update.dsidStar, token.v.sub(pp.zp.valueOf(k)));
+        });
+
+        //Put usk into Schnorr trick
+        update.schnorrTrickC = token.usk.mul(gamma).add(token.dsrnd);
+
+        //Encrypt dsid*
+        parallel.run(() -> {
+            SpendPrecomputationPool.TraceRandomness traceRandomness = pool != null ? pool.takeTraceRandomness() : new SpendPrecomputationPool.TraceRandomness(pp, token.usk, false);
+            update.r = traceRandomness.r;
+            update.ctrace0 = traceRandomness.ctrace0;
+            update.ctrace1 = traceRandomness.ctrace1(pp, update.dsidStar);
+        });
+
+        //Randomize credential
+        parallel.run(() -> {
+            SpendPrecomputationPool.SignatureRandomization randomization = pool != null ? pool.takeSignatureRandomization(token) : new SpendPrecomputationPool.SignatureRandomization(pp, token);
+            update.rPrime = randomization.rPrime;
+            update.rPrimePrime = randomization.rPrimePrime;
+            update.sigma0prime = randomization.sigma0prime;
+            update.sigma1prime = randomization.sigma1prime;
+        });
+        parallel.join();
+        return update;
+    }
+
+    /**
+     * Restores the values sent by {@link Update#send(BiConsumer)}.
+     */
+    Update receiveUpdate(ForkJoinPool parallelism, Function<String, Representation> receive) {
+        Update update = new Update();
+        GroupElement[] points = pp.restoreG1Elements(parallelism,
+                receive.apply("C"), receive.apply("ctrace0"), receive.apply("ctrace1"), receive.apply("sigma0prime"), receive.apply("sigma1prime"));
+        update.commitmentC = points[0];
+        update.ctrace0 = points[1];
+        update.ctrace1 = points[2];
+        update.sigma0prime = points[3];
+        update.sigma1prime = points[4];
+        update.schnorrTrickC = pp.zp.restoreElement(receive.apply("c"));
+        return update;
+    }
+
+    /**
+     * Blindly signs the commitment C to the new token, returns (sigma0primeprime, sigma1primeprime).
+     */
+    GroupElement[] sign(PSSigningKey sk, ProviderPrecomputationPool providerPool, GroupElement commitmentC) {
+        ProviderPrecomputationPool.SigningRandomness signingRandomness = providerPool != null ? providerPool.takeSigningRandomness() : new ProviderPrecomputationPool.SigningRandomness(pp, issuerKey, sk);
+        return new GroupElement[] {signingRandomness.gToR, signingRandomness.gXToR.op(commitmentC.pow(signingRandomness.r)).compute()};
+    }
+
+    /**
+     * Unblinds the received signature on the new token and checks it. Hands the new token to the pool (if any) for
+     * precomputing its next Spend.
+     */
+    Token unblind(int k, Token token, Update update, SpendPrecomputationPool pool, ForkJoinPool parallelism,
+                  Representation sigma0primeprime, Representation sigma1primeprime) {
+        GroupElement[] signature = pp.restoreG1Elements(parallelism, sigma0primeprime, sigma1primeprime);
+        PSSignature sigmaStar = new PSSignature(signature[0], roundEvaluation.evaluate(signature[1].op(signature[0].pow(update.rCommitmentC.neg()))));
+        Token resultToken = new Token(token.usk, update.dsidStar, update.dsrndStar, token.v.sub(pp.zp.valueOf(k)), sigmaStar);
+        if (!pp.verifyToken(resultToken, issuerKey.pk))
+            throw new IllegalStateException("Invalid signature");
+        if (pool != null)
+            pool.prepare(resultToken);
+        return resultToken;
+    }
+}
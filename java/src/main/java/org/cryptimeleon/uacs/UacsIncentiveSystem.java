@@ -18,16 +18,32 @@ import org.cryptimeleon.math.serialization.annotations.ReprUtil;
 import org.cryptimeleon.math.serialization.annotations.Represented;
 import org.cryptimeleon.math.structures.cartesian.Vector;
 import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.groups.cartesian.GroupElementVector;
 import org.cryptimeleon.math.structures.groups.elliptic.BilinearGroup;
+import org.cryptimeleon.math.structures.groups.elliptic.BilinearMap;
 import org.cryptimeleon.math.structures.rings.cartesian.RingElementVector;
 import org.cryptimeleon.math.structures.rings.zn.Zn;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * System as outlined in Appendix E of https://eprint.iacr.org/2019/169
  */
 public class UacsIncentiveSystem implements StandaloneRepresentable {
+    /**
+     * Bit length of the random exponents used in {@link #verifyTokens(Collection, PSVerificationKey)}
+     * (and {@link WellFormednessProof#verifyAll(List)}).
+     * An invalid batch passes with probability at most 2^-BATCH_EXPONENT_BITS.
+     */
+    static final int BATCH_EXPONENT_BITS = 64;
+    static final int BATCH_MULTIEXP_SIZE = 64;
+    private static final SecureRandom batchRandom = new SecureRandom();
+
     @Represented
     public BilinearGroup group;
     @Represented(restorer = "group::getZn")
@@ -38,14 +54,38 @@ public class UacsIncentiveSystem implements StandaloneRepresentable {
     public PSExtendedSignatureScheme psSigs;
     @Represented
     public CommitmentScheme commitmentSchemeForDamgard;
+    /**
+     * Spend proves that the remaining points are in [0, rangeBase^rangePower) by proving membership of each of the
+     * rangePower base-rangeBase digits in the set {0, ..., rangeBase-1} (for which setMembershipPp holds a signature per element).
+     */
     @Represented
-    public Integer rangeBase = 256;
+    public Integer rangeBase;
     @Represented
-    public Integer rangePower = 8;
+    public Integer rangePower;
     @Represented(restorer = "setMembershipRestorer")
     public SetMembershipPublicParameters setMembershipPp;
 
+    public static final int DEFAULT_RANGE_BASE = 256;
+    public static final int DEFAULT_RANGE_POWER = 8;
+
+    /**
+     * Sets up the system for point balances below 2^64.
+     */
     public UacsIncentiveSystem(BilinearGroup group) {
+        this(group, DEFAULT_RANGE_BASE, DEFAULT_RANGE_POWER);
+    }
+
+    /**
+     * Sets up the system for point balances below rangeBase^rangePower (see {@link #rangePowerFor(int, long)}).
+     * A larger base means fewer digits to prove per Spend, but setup signs (and the parameters contain) rangeBase elements.
+     */
+    public UacsIncentiveSystem(BilinearGroup group, int rangeBase, int rangePower) {
+        if (rangeBase < 2 || rangePower < 1)
+            throw new IllegalArgumentException("rangeBase must be at least 2 and rangePower positive");
+        if (BigInteger.valueOf(rangeBase).pow(rangePower).shiftLeft(1).compareTo(group.getZn().size()) >= 0)
+            throw new IllegalArgumentException("rangeBase^rangePower must be smaller than half the group order");
+        this.rangeBase = rangeBase;
+        this.rangePower = rangePower;
         this.group = group;
         zp = group.getZn();
         w = group.getG1().getUniformlyRandomElement().precomputePow();
@@ -56,6 +96,22 @@ public class UacsIncentiveSystem implements StandaloneRepresentable {
         setMembershipPp = SetMembershipPublicParameters.generateInterval(group, 0, rangeBase);
     }
 
+    /**
+     * Returns the smallest rangePower such that balances up to maxBalance can be proven with the given base.
+     */
+    public static int rangePowerFor(int rangeBase, long maxBalance) {
+        if (rangeBase < 2 || maxBalance < 0)
+            throw new IllegalArgumentException("rangeBase must be at least 2 and maxBalance non-negative");
+        BigInteger limit = BigInteger.valueOf(maxBalance);
+        BigInteger power = BigInteger.valueOf(rangeBase);
+        int rangePower = 1;
+        while (power.compareTo(limit) <= 0) {
+            power = power.multiply(BigInteger.valueOf(rangeBase));
+            rangePower++;
+        }
+        return rangePower;
+    }
+
     public UacsIncentiveSystem(Representation repr) {
         new ReprUtil(this).register(r -> new SetMembershipPublicParameters(group, r), "setMembershipRestorer").deserialize(repr);
         w.precomputePow();
@@ -63,6 +119,23 @@ public class UacsIncentiveSystem implements StandaloneRepresentable {
         h.precomputePow();
     }
 
+    /**
+     * Restores the G1 elements of one received message together.
+     * With a pool, they are decoded and validated in parallel on it, otherwise one after the other.
+     *
+     * @param pool the pool to run on (may be null)
+     */
+    public GroupElement[] restoreG1Elements(ForkJoinPool pool, Representation... representations) {
+        GroupElement[] result = new GroupElement[representations.length];
+        ParallelRound round = new ParallelRound(pool);
+        for (int i = 0; i < result.length; i++) {
+            int index = i;
+            round.run(() -> result[index] = group.getG1().restoreElement(representations[index]));
+        }
+        round.join();
+        return result;
+    }
+
     public KeyPair<GroupElement, Zn.ZnElement> keyGen() {
         Zn.ZnElement sk = zp.getUniformlyRandomElement();
         GroupElement pk = w.pow(sk).precomputePow();
@@ -78,6 +151,73 @@ public class UacsIncentiveSystem implements StandaloneRepresentable {
         return psSigs.verify(issuerPk, token.sig, signedMessage);
     }
 
+    /**
+     * Verifies many tokens at once using small-exponent batch verification.
+     * For random delta_j, all equations e(sigma1_j, X~ * prod_i Y~_i^m_ij) = e(sigma2_j, g~) hold (w.h.p.) iff
+     * e(prod_j sigma1_j^delta_j, X~) * prod_i e(prod_j sigma1_j^(delta_j*m_ij), Y~_i) = e(prod_j sigma2_j^delta_j, g~).
+     * So a batch costs 2 + (number of messages) pairings, independent of its size, plus multi-exponentiations in G1.
+     * If the batch equation does not hold, the batch is bisected to find the invalid tokens.
+     *
+     * @return the invalid tokens (empty iff all tokens are valid)
+     */
+    public List<Token> verifyTokens(Collection<Token> tokens, PSVerificationKey issuerPk) {
+        List<Token> invalidTokens = new ArrayList<>();
+        findInvalidTokens(new ArrayList<>(tokens), issuerPk, invalidTokens);
+        return invalidTokens;
+    }
+
+    private void findInvalidTokens(List<Token> tokens, PSVerificationKey issuerPk, List<Token> invalidTokens) {
+        if (tokens.isEmpty())
+            return;
+        if (tokens.size() == 1) {
+            if (!verifyToken(tokens.get(0), issuerPk))
+                invalidTokens.add(tokens.get(0));
+            return;
+        }
+        if (batchVerifyTokens(tokens, issuerPk))
+            return;
+
+        int middle = tokens.size() / 2;
+        findInvalidTokens(tokens.subList(0, middle), issuerPk, invalidTokens);
+        findInvalidTokens(tokens.subList(middle, tokens.size()), issuerPk, invalidTokens);
+    }
+
+    private boolean batchVerifyTokens(List<Token> tokens, PSVerificationKey issuerPk) {
+        GroupElementVector tildeYi = issuerPk.getGroup2ElementsTildeYi();
+        GroupElement sigma1Product = group.getG1().getNeutralElement();
+        GroupElement sigma2Product = group.getG1().getNeutralElement();
+        GroupElement[] sigma1ProductForYi = new GroupElement[tildeYi.length()];
+        for (int i = 0; i < sigma1ProductForYi.length; i++)
+            sigma1ProductForYi[i] = group.getG1().getNeutralElement();
+
+        int count = 0;
+        for (Token token : tokens) {
+            RingElementVector messages = token.getMessageVector();
+            GroupElement sigma1 = token.sig.getGroup1ElementSigma1();
+            if (sigma1.isNeutralElement() || messages.length() != tildeYi.length())
+                return false;
+
+            Zn.ZnElement delta = zp.valueOf(new BigInteger(BATCH_EXPONENT_BITS, batchRandom).add(BigInteger.ONE));
+            sigma1Product = sigma1Product.op(sigma1.pow(delta));
+            sigma2Product = sigma2Product.op(token.sig.getGroup1ElementSigma2().pow(delta));
+            for (int i = 0; i < sigma1ProductForYi.length; i++)
+                sigma1ProductForYi[i] = sigma1ProductForYi[i].op(sigma1.pow(delta.mul((Zn.ZnElement) messages.get(i))));
+
+            if (++count % BATCH_MULTIEXP_SIZE == 0) { //keep the lazy expressions (and multi-exponentiations) at a manageable size
+                sigma1Product = sigma1Product.compute();
+                sigma2Product = sigma2Product.compute();
+                for (int i = 0; i < sigma1ProductForYi.length; i++)
+                    sigma1ProductForYi[i] = sigma1ProductForYi[i].compute();
+            }
+        }
+
+        BilinearMap e = group.getBilinearMap();
+        GroupElement lhs = e.apply(sigma1Product, issuerPk.getGroup2ElementTildeX());
+        for (int i = 0; i < sigma1ProductForYi.length; i++)
+            lhs = lhs.op(e.apply(sigma1ProductForYi[i], tildeYi.get(i)));
+        return lhs.equals(e.apply(sigma2Product, issuerPk.getGroup2ElementTildeG()));
+    }
+
     @Override
     public Representation getRepresentation() {
         return ReprUtil.serialize(this);
@@ -85,24 +225,43 @@ public class UacsIncentiveSystem implements StandaloneRepresentable {
 
     public static class ProviderInput implements SecretInput {
         public final PSSigningKey sk;
+        public final ProviderPrecomputationPool providerPool;
 
         public ProviderInput(PSSigningKey sk) {
+            this(sk, null);
+        }
+
+        /**
+         * @param providerPool precomputed values for the provider's rounds (may be null)
+         */
+        public ProviderInput(PSSigningKey sk, ProviderPrecomputationPool providerPool) {
             this.sk = sk;
+            this.providerPool = providerPool;
         }
     }
 
     public static class UserInput implements SecretInput {
         public final Zn.ZnElement usk;
         public final Token token;
+        public final SpendPrecomputationPool spendPool;
 
         public UserInput(Token token) {
+            this(token, null);
+        }
+
+        /**
+         * @param spendPool precomputed values for Spend (may be null)
+         */
+        public UserInput(Token token, SpendPrecomputationPool spendPool) {
             this.token = token;
             this.usk = token.usk;
+            this.spendPool = spendPool;
         }
 
         public UserInput(Zn.ZnElement usk) {
             this.usk = usk;
             this.token = null;
+            this.spendPool = null;
         }
     }
 
@@ -0,0 +1,158 @@
+package org.cryptimeleon.uacs;
+
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.cartesian.Vector;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fiat-Shamir proof for the well-formedness statement of {@link IssueJoinFiatShamirProtocol}, i.e. that
+ * c = Y_0^usk Y_1^dsid Y_2^dsrnd g^r, upk = w^usk, commitDsid0 = g^dsid h^open and commitDsid1 = g^open
+ * (the same statement as {@link ProofTemplates#bindWellFormedness(GroupElement, GroupElement, GroupElement, GroupElement)}).
+ * <p>
+ * The proof consists of the announcements and the responses (the challenge is recomputed from the announcements
+ * and the session's transcript digest). Unlike a (challenge, response) proof, this lets the provider check the
+ * verification equations of many proofs together, see {@link #verifyAll(List)}.
+ */
+class WellFormednessProof {
+    private static final SecureRandom batchRandom = new SecureRandom();
+
+    private final UacsIncentiveSystem pp;
+    private final PSExtendedVerificationKey pk;
+    private final GroupElement c, upk, commitDsid0, commitDsid1;
+    private final byte[] transcriptDigest;
+    /**
+     * Announcements for the four equations (in the order above).
+     */
+    private final GroupElement[] announcements;
+    private final Zn.ZnElement uskResponse, dsidResponse, dsrndResponse, rResponse, openResponse;
+
+    private WellFormednessProof(UacsIncentiveSystem pp, PSExtendedVerificationKey pk,
+                                GroupElement c, GroupElement upk, GroupElement commitDsid0, GroupElement commitDsid1, byte[] transcriptDigest,
+                                GroupElement[] announcements,
+                                Zn.ZnElement uskResponse, Zn.ZnElement dsidResponse, Zn.ZnElement dsrndResponse, Zn.ZnElement rResponse, Zn.ZnElement openResponse) {
+        this.pp = pp;
+        this.pk = pk;
+        this.c = c;
+        this.upk = upk;
+        this.commitDsid0 = commitDsid0;
+        this.commitDsid1 = commitDsid1;
+        this.transcriptDigest = transcriptDigest;
+        this.announcements = announcements;
+        this.uskResponse = uskResponse;
+        this.dsidResponse = dsidResponse;
+        this.dsrndResponse = dsrndResponse;
+        this.rResponse = rResponse;
+        this.openResponse = openResponse;
+    }
+
+    static WellFormednessProof prove(UacsIncentiveSystem pp, PSExtendedVerificationKey pk,
+                                     GroupElement c, GroupElement upk, GroupElement commitDsid0, GroupElement commitDsid1, byte[] transcriptDigest,
+                                     Zn.ZnElement usk, Zn.ZnElement dsid, Zn.ZnElement dsrnd, Zn.ZnElement r, Zn.ZnElement open) {
+        Zn.ZnElement uskRandom = pp.zp.getUniformlyRandomElement();
+        Zn.ZnElement dsidRandom = pp.zp.getUniformlyRandomElement();
+        Zn.ZnElement dsrndRandom = pp.zp.getUniformlyRandomElement();
+        Zn.ZnElement rRandom = pp.zp.getUniformlyRandomElement();
+        Zn.ZnElement openRandom = pp.zp.getUniformlyRandomElement();
+        GroupElement[] announcements = {
+                pk.getGroup1ElementsYi().expr().innerProduct(Vector.of(uskRandom, dsidRandom, dsrndRandom, pp.zp.getZeroElement()))
+                        .op(pk.getGroup1ElementG().pow(rRandom)).evaluate(),
+                pp.w.pow(uskRandom).compute(),
+                pp.g.pow(dsidRandom).op(pp.h.pow(openRandom)).compute(),
+                pp.g.pow(openRandom).compute()
+        };
+
+        Zn.ZnElement challenge = challenge(pp, transcriptDigest, announcements);
+        return new WellFormednessProof(pp, pk, c, upk, commitDsid0, commitDsid1, transcriptDigest, announcements,
+                uskRandom.add(challenge.mul(usk)), dsidRandom.add(challenge.mul(dsid)), dsrndRandom.add(challenge.mul(dsrnd)),
+                rRandom.add(challenge.mul(r)), openRandom.add(challenge.mul(open)));
+    }
+
+    static WellFormednessProof restore(UacsIncentiveSystem pp, PSExtendedVerificationKey pk,
+                                       GroupElement c, GroupElement upk, GroupElement commitDsid0, GroupElement commitDsid1, byte[] transcriptDigest,
+                                       Representation repr) {
+        ObjectRepresentation obj = repr.obj();
+        GroupElement[] announcements = pp.restoreG1Elements(null, obj.get("A0"), obj.get("A1"), obj.get("A2"), obj.get("A3"));
+        return new WellFormednessProof(pp, pk, c, upk, commitDsid0, commitDsid1, transcriptDigest, announcements,
+                pp.zp.restoreElement(obj.get("usk")), pp.zp.restoreElement(obj.get("dsid")), pp.zp.restoreElement(obj.get("dsrnd")),
+                pp.zp.restoreElement(obj.get("r")), pp.zp.restoreElement(obj.get("open")));
+    }
+
+    Representation getRepresentation() {
+        ObjectRepresentation obj = new ObjectRepresentation();
+        for (int i = 0; i < announcements.length; i++)
+            obj.put("A" + i, announcements[i].getRepresentation());
+        obj.put("usk", uskResponse.getRepresentation());
+        obj.put("dsid", dsidResponse.getRepresentation());
+        obj.put("dsrnd", dsrndResponse.getRepresentation());
+        obj.put("r", rResponse.getRepresentation());
+        obj.put("open", openResponse.getRepresentation());
+        return obj;
+    }
+
+    boolean verify() {
+        return verifyAll(Collections.singletonList(this));
+    }
+
+    /**
+     * Checks the proofs (which must all be for the same pp and pk) using small-exponent batch verification:
+     * each verification equation lhs = A * X^challenge is raised to its own random delta and all of them are multiplied
+     * into one, so that the fixed bases (Y_i, g, h, w) appear once in a single multi-exponentiation
+     * however many proofs there are. Returns true if all proofs are valid (with overwhelming probability)
+     * and false if at least one is invalid.
+     */
+    static boolean verifyAll(List<WellFormednessProof> proofs) {
+        if (proofs.isEmpty())
+            return true;
+        UacsIncentiveSystem pp = proofs.get(0).pp;
+        PSExtendedVerificationKey pk = proofs.get(0).pk;
+        Zn.ZnElement y0Exponent = pp.zp.getZeroElement(), y1Exponent = pp.zp.getZeroElement(), y2Exponent = pp.zp.getZeroElement();
+        Zn.ZnElement gPkExponent = pp.zp.getZeroElement(), wExponent = pp.zp.getZeroElement();
+        Zn.ZnElement gExponent = pp.zp.getZeroElement(), hExponent = pp.zp.getZeroElement();
+        GroupElement product = pp.group.getG1().getNeutralElement();
+
+        int count = 0;
+        for (WellFormednessProof proof : proofs) {
+            Zn.ZnElement challenge = challenge(pp, proof.transcriptDigest, proof.announcements);
+            GroupElement[] statement = {proof.c, proof.upk, proof.commitDsid0, proof.commitDsid1};
+            Zn.ZnElement[] deltas = new Zn.ZnElement[statement.length];
+            for (int i = 0; i < statement.length; i++) {
+                deltas[i] = pp.zp.valueOf(new BigInteger(UacsIncentiveSystem.BATCH_EXPONENT_BITS, batchRandom).add(BigInteger.ONE));
+                product = product.op(proof.announcements[i].pow(deltas[i].neg())).op(statement[i].pow(deltas[i].mul(challenge).neg()));
+            }
+            y0Exponent = y0Exponent.add(deltas[0].mul(proof.uskResponse));
+            y1Exponent = y1Exponent.add(deltas[0].mul(proof.dsidResponse));
+            y2Exponent = y2Exponent.add(deltas[0].mul(proof.dsrndResponse));
+            gPkExponent = gPkExponent.add(deltas[0].mul(proof.rResponse));
+            wExponent = wExponent.add(deltas[1].mul(proof.uskResponse));
+            gExponent = gExponent.add(deltas[2].mul(proof.dsidResponse)).add(deltas[3].mul(proof.openResponse));
+            hExponent = hExponent.add(deltas[2].mul(proof.openResponse));
+
+            if (++count % UacsIncentiveSystem.BATCH_MULTIEXP_SIZE == 0) //keep the lazy expression (and multi-exponentiation) at a manageable size
+                product = product.compute();
+        }
+
+        return product.op(pk.getGroup1ElementsYi().get(0).pow(y0Exponent))
+                .op(pk.getGroup1ElementsYi().get(1).pow(y1Exponent))
+                .op(pk.getGroup1ElementsYi().get(2).pow(y2Exponent))
+                .op(pk.getGroup1ElementG().pow(gPkExponent))
+                .op(pp.w.pow(wExponent))
+                .op(pp.g.pow(gExponent))
+                .op(pp.h.pow(hExponent))
+                .isNeutralElement();
+    }
+
+    private static Zn.ZnElement challenge(UacsIncentiveSystem pp, byte[] transcriptDigest, GroupElement[] announcements) {
+        SessionTranscript transcript = new SessionTranscript("IssueJoinWellFormedness", transcriptDigest);
+        for (GroupElement announcement : announcements)
+            transcript.append(announcement);
+        return pp.zp.valueOf(new BigInteger(1, transcript.digest()));
+    }
+}
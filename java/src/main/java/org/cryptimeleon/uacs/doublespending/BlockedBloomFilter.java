@@ -0,0 +1,104 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap split-block Bloom filter over fixed-width keys (encoded dsids).
+ * <p>
+ * The filter is an array of 256-bit blocks, each made of eight 32-bit words. A key selects one block with the top
+ * half of its hash and sets (or checks) one bit in each of the block's words, chosen by multiplying the bottom half
+ * of the hash with a different odd constant per word. So a lookup touches a single cache line, and with 16 bits
+ * per expected entry the false-positive rate is about 0.1% (about 3% with 8 bits).
+ * Beyond the expected number of entries, the false-positive rate rises, but there are never false negatives.
+ * <p>
+ * Lookups are lock-free. Adds lock a stripe of blocks, so that concurrent adds to the same word do not lose bits.
+ */
+public class BlockedBloomFilter {
+    public static final int DEFAULT_BITS_PER_ENTRY = 16;
+
+    private static final int[] SALT = {0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d, 0x705495c7, 0x2df1424b, 0x9efc4947, 0x5c6bfb31};
+    private static final int BLOCK_BYTES = 32;
+    private static final int BLOCKS_PER_BUFFER_BITS = 25; //2^25 blocks = 1 GiB per direct buffer
+    private static final int LOCK_STRIPES = 64;
+
+    private final ByteBuffer[] buffers;
+    private final long expectedEntries;
+    private final long blocks;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param expectedEntries how many keys the filter is sized for
+     * @param bitsPerEntry    filter bits per expected key
+     */
+    public BlockedBloomFilter(long expectedEntries, int bitsPerEntry) {
+        if (expectedEntries < 1 || bitsPerEntry < 1)
+            throw new IllegalArgumentException("expectedEntries and bitsPerEntry must be positive");
+        this.expectedEntries = expectedEntries;
+        blocks = Math.max(1, (expectedEntries * bitsPerEntry + 8 * BLOCK_BYTES - 1) / (8 * BLOCK_BYTES));
+        if (blocks >= 1L << 32)
+            throw new IllegalArgumentException("Filter too large");
+        buffers = new ByteBuffer[(int) ((blocks - 1) >>> BLOCKS_PER_BUFFER_BITS) + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            long blocksInBuffer = Math.min(1L << BLOCKS_PER_BUFFER_BITS, blocks - ((long) i << BLOCKS_PER_BUFFER_BITS));
+            buffers[i] = ByteBuffer.allocateDirect((int) (blocksInBuffer * BLOCK_BYTES));
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    public BlockedBloomFilter(long expectedEntries) {
+        this(expectedEntries, DEFAULT_BITS_PER_ENTRY);
+    }
+
+    public void add(byte[] key) {
+        long hash = DsidIndex.hash(key);
+        long block = block(hash);
+        ByteBuffer buffer = buffers[(int) (block >>> BLOCKS_PER_BUFFER_BITS)];
+        int offset = blockOffset(block);
+        synchronized (locks[(int) (block & (LOCK_STRIPES - 1))]) {
+            for (int i = 0; i < SALT.length; i++) {
+                int index = offset + i * Integer.BYTES;
+                buffer.putInt(index, buffer.getInt(index) | bit((int) hash, i));
+            }
+        }
+    }
+
+    /**
+     * Returns false if the key has definitely not been added, true if it may have been.
+     */
+    public boolean mightContain(byte[] key) {
+        long hash = DsidIndex.hash(key);
+        long block = block(hash);
+        ByteBuffer buffer = buffers[(int) (block >>> BLOCKS_PER_BUFFER_BITS)];
+        int offset = blockOffset(block);
+        for (int i = 0; i < SALT.length; i++) {
+            int bit = bit((int) hash, i);
+            if ((buffer.getInt(offset + i * Integer.BYTES) & bit) != bit)
+                return false;
+        }
+        return true;
+    }
+
+    public long getExpectedEntries() {
+        return expectedEntries;
+    }
+
+    public long sizeInBytes() {
+        return blocks * BLOCK_BYTES;
+    }
+
+    /**
+     * Maps the top 32 bits of the hash to [0, blocks) without a division.
+     */
+    private long block(long hash) {
+        return ((hash >>> 32) * blocks) >>> 32;
+    }
+
+    private static int blockOffset(long block) {
+        return (int) (block & ((1L << BLOCKS_PER_BUFFER_BITS) - 1)) * BLOCK_BYTES;
+    }
+
+    private static int bit(int hash, int word) {
+        return 1 << ((hash * SALT[word]) >>> 27);
+    }
+}
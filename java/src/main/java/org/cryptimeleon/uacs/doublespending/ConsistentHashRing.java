@@ -0,0 +1,84 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hashing of keys (encoded dsids) to named nodes.
+ * Each node is placed on a 64-bit ring at several pseudo-random points (virtual nodes), and a key belongs to the node
+ * at the first point at or after the key's hash. Adding or removing a node thus only moves the keys
+ * of the ring segments it gains or loses, and the virtual nodes keep the segments of all nodes about equally large.
+ * <p>
+ * Not thread-safe; {@link ShardedDoubleSpendService} replaces the whole ring when nodes change.
+ */
+public class ConsistentHashRing<T> {
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Map<String, T> nodes = new LinkedHashMap<>();
+
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        this.virtualNodes = virtualNodes;
+    }
+
+    public ConsistentHashRing<T> copy() {
+        ConsistentHashRing<T> copy = new ConsistentHashRing<>(virtualNodes);
+        copy.ring.putAll(ring);
+        copy.nodes.putAll(nodes);
+        return copy;
+    }
+
+    public void add(String name, T node) {
+        if (nodes.containsKey(name))
+            throw new IllegalArgumentException("Node " + name + " already exists");
+        nodes.put(name, node);
+        for (int i = 0; i < virtualNodes; i++)
+            ring.putIfAbsent(hash((name + "#" + i).getBytes(StandardCharsets.UTF_8)), name);
+    }
+
+    public T remove(String name) {
+        T node = nodes.remove(name);
+        if (node == null)
+            throw new IllegalArgumentException("Unknown node " + name);
+        ring.values().removeIf(name::equals);
+        return node;
+    }
+
+    /**
+     * Returns the name of the node responsible for the given key.
+     */
+    public String nameFor(byte[] key) {
+        if (ring.isEmpty())
+            throw new IllegalStateException("Ring has no nodes");
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public T nodeFor(byte[] key) {
+        return nodes.get(nameFor(key));
+    }
+
+    public T get(String name) {
+        return nodes.get(name);
+    }
+
+    public Map<String, T> getNodes() {
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    /**
+     * FNV-1a with a different offset basis than {@link DsidIndex#hash(byte[])}, plus the splitmix64 finalizer.
+     * Independent of the index hash so that the dsids of one node still spread over all stripes and slots of its index.
+     */
+    static long hash(byte[] key) {
+        long h = 0x84222325cbf29ce4L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,378 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import org.cryptimeleon.math.serialization.converter.JSONConverter;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Provider-side store of spent dsids and the {@link DoubleSpendTag}s recorded for them.
+ * <p>
+ * Tags are kept in an append-only segment file. Each record is laid out as
+ * {@code [int length][dsid][tag][int crc32]}, where the dsid is fixed-width big-endian and the tag is its
+ * JSON representation. Which dsids have been seen (and where their first record is) is kept in an
+ * off-heap hash index, so "seen before?" checks never touch the file. The later records of a double-spent dsid are
+ * found through a second off-heap index, keyed by the dsid and the record's number among that dsid's records.
+ * Since nearly every spend brings a fresh dsid, lookups first ask a {@link BlockedBloomFilter} over the encoded dsids,
+ * and only go to the index if the filter reports a possible match.
+ * When the database is opened, the index and filter are rebuilt from the segment file; a torn or corrupt record at
+ * the end (e.g., from a crash during a write) is cut off. If the file holds more dsids than the filter is sized for,
+ * the filter is rebuilt for twice as many. The filter does not grow while the database is open;
+ * a warning is logged each time the number of dsids reaches a further doubling of its capacity.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class DoubleSpendDatabase implements Closeable {
+    /**
+     * Number of dsids the filter is sized for by default (2 MiB of filter). Opening a larger database sizes it up.
+     */
+    public static final long DEFAULT_EXPECTED_DSIDS = 1 << 20;
+
+    private static final Logger logger = Logger.getLogger(DoubleSpendDatabase.class.getName());
+
+    private final UacsIncentiveSystem pp;
+    private final int dsidWidth;
+    private final DsidIndex index;
+    private final DsidIndex laterRecords;
+    private final BlockedBloomFilter filter;
+    private final AtomicLong dsidCount = new AtomicLong();
+    private final FileChannel segment;
+    private final Object appendLock = new Object();
+    private long endOfSegment;
+
+    /**
+     * Opens (or creates) the database backed by the given segment file.
+     */
+    public DoubleSpendDatabase(UacsIncentiveSystem pp, Path segmentFile) throws IOException {
+        this(pp, segmentFile, DEFAULT_EXPECTED_DSIDS);
+    }
+
+    /**
+     * Opens (or creates) the database backed by the given segment file, with the lookup filter sized for
+     * expectedDsids entries, or for twice the number of dsids in the file if that is larger
+     * (beyond the filter's capacity, more lookups of fresh dsids fall through to the index).
+     */
+    public DoubleSpendDatabase(UacsIncentiveSystem pp, Path segmentFile, long expectedDsids) throws IOException {
+        this.pp = pp;
+        this.dsidWidth = dsidWidth(pp);
+        this.index = new DsidIndex(dsidWidth);
+        this.laterRecords = new DsidIndex(dsidWidth + Integer.BYTES);
+        this.segment = FileChannel.open(segmentFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.filter = recover(expectedDsids);
+    }
+
+    /**
+     * Returns true iff a tag has been recorded for the given dsid.
+     */
+    public boolean containsDsid(Zn.ZnElement dsid) {
+        byte[] key = encodeDsid(dsid);
+        return filter.mightContain(key) && index.get(key) != -1;
+    }
+
+    /**
+     * Returns the (first) tag recorded for the given dsid, or null if the dsid has not been spent.
+     */
+    public DoubleSpendTag getTag(Zn.ZnElement dsid) {
+        byte[] key = encodeDsid(dsid);
+        if (!filter.mightContain(key))
+            return null;
+        long offset = index.get(key);
+        if (offset == -1)
+            return null;
+        try {
+            return decodeTag(readRecord(offset));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records that dsid has been spent with the given tag.
+     * If dsid has been spent before, the new tag is appended to the log as well (so that it survives for tracing),
+     * but {@link #getTag(Zn.ZnElement)} keeps returning the first one ({@link #getTags(Zn.ZnElement)} returns all of them).
+     *
+     * @return null if dsid is fresh, otherwise the tag that was recorded for dsid earlier (i.e. this is a double-spending)
+     */
+    public DoubleSpendTag addEntry(Zn.ZnElement dsid, DoubleSpendTag tag) {
+        byte[] key = encodeDsid(dsid);
+        byte[] record = encodeRecord(key, tag);
+        filter.add(key); //before the index, so that a lookup that finds the dsid in the index also passes the filter
+        try {
+            long existing = index.putIfAbsent(key, () -> append(record));
+            if (existing == -1) {
+                checkFilterLoad(dsidCount.incrementAndGet());
+                return null;
+            }
+
+            addLaterRecord(key, () -> append(record));
+            return decodeTag(readRecord(existing));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns all tags recorded for the given dsid, in the order they were added (empty if the dsid has not been spent).
+     */
+    public List<DoubleSpendTag> getTags(Zn.ZnElement dsid) {
+        List<DoubleSpendTag> tags = new ArrayList<>();
+        byte[] key = encodeDsid(dsid);
+        if (!filter.mightContain(key))
+            return tags;
+        try {
+            long offset = index.get(key);
+            for (int number = 1; offset != -1; number++) {
+                tags.add(decodeTag(readRecord(offset)));
+                offset = laterRecords.get(laterRecordKey(key, number));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return tags;
+    }
+
+    /**
+     * Number of distinct dsids in the database.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Calls consumer with every spent dsid and its (first) tag, in no particular order.
+     */
+    public void forEach(BiConsumer<Zn.ZnElement, DoubleSpendTag> consumer) {
+        index.forEachValue(offset -> {
+            try {
+                byte[] record = readRecord(offset);
+                consumer.accept(decodeDsid(record), decodeTag(record));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Log offset of the first record of dsid, or -1 if dsid has not been spent.
+     */
+    long offsetOf(Zn.ZnElement dsid) {
+        return index.get(encodeDsid(dsid));
+    }
+
+    /**
+     * The dsid of the record at the given log offset.
+     */
+    Zn.ZnElement dsidAt(long offset) {
+        try {
+            return decodeDsid(readRecord(offset));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Calls consumer with the dsid and tag of every record in the log from the given position on, in the order they
+     * were written (so a double-spent dsid comes up once per tag). Records that are appended concurrently may or may
+     * not be included.
+     *
+     * @param position 0 or a value returned by an earlier call
+     * @return the log position after the last record passed to consumer, to continue from in the next call
+     */
+    public long forEachRecordSince(long position, BiConsumer<Zn.ZnElement, DoubleSpendTag> consumer) {
+        long end;
+        synchronized (appendLock) {
+            end = endOfSegment;
+        }
+        try {
+            while (position < end) {
+                byte[] record = readRecord(position);
+                consumer.accept(decodeDsid(record), decodeTag(record));
+                position += 2L * Integer.BYTES + record.length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return position;
+    }
+
+    /**
+     * Number of dsids the lookup filter is sized for.
+     */
+    public long getFilterCapacity() {
+        return filter.getExpectedEntries();
+    }
+
+    /**
+     * Forces all records written so far to disk.
+     */
+    public void sync() throws IOException {
+        segment.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment.close();
+    }
+
+    /**
+     * Fixed-width big-endian encoding of a dsid, as used for the index and the segment file.
+     */
+    public byte[] encodeDsid(Zn.ZnElement dsid) {
+        return encodeDsid(dsid, dsidWidth);
+    }
+
+    static int dsidWidth(UacsIncentiveSystem pp) {
+        return (pp.zp.size().bitLength() + 7) / 8;
+    }
+
+    static byte[] encodeDsid(Zn.ZnElement dsid, int dsidWidth) {
+        byte[] bytes = dsid.getInteger().toByteArray(); //may have a leading zero byte
+        byte[] result = new byte[dsidWidth];
+        int length = Math.min(bytes.length, dsidWidth);
+        System.arraycopy(bytes, bytes.length - length, result, dsidWidth - length, length);
+        return result;
+    }
+
+    private Zn.ZnElement decodeDsid(byte[] record) {
+        return pp.zp.valueOf(new BigInteger(1, Arrays.copyOf(record, dsidWidth)));
+    }
+
+    private DoubleSpendTag decodeTag(byte[] record) {
+        String json = new String(record, dsidWidth, record.length - dsidWidth, StandardCharsets.UTF_8);
+        return pp.restoreDoubleSpendTag(new JSONConverter().deserialize(json));
+    }
+
+    private byte[] encodeRecord(byte[] key, DoubleSpendTag tag) {
+        byte[] json = new JSONConverter().serialize(tag.getRepresentation()).getBytes(StandardCharsets.UTF_8);
+        int length = key.length + json.length;
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length + Integer.BYTES);
+        buffer.putInt(length);
+        buffer.put(key);
+        buffer.put(json);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), Integer.BYTES, length);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Stores the offset from offsetSupplier under the first free record number (from 1 on) of the dsid.
+     */
+    private void addLaterRecord(byte[] key, DsidIndex.LongSupplierWithIO offsetSupplier) throws IOException {
+        for (int number = 1; laterRecords.putIfAbsent(laterRecordKey(key, number), offsetSupplier) != -1; number++)
+            ;
+    }
+
+    private static byte[] laterRecordKey(byte[] key, int number) {
+        return ByteBuffer.allocate(key.length + Integer.BYTES).put(key).putInt(number).array();
+    }
+
+    /**
+     * Appends a record to the segment file.
+     *
+     * @return the offset of the record
+     */
+    private long append(byte[] record) throws IOException {
+        synchronized (appendLock) {
+            long offset = endOfSegment;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining())
+                segment.write(buffer, offset + buffer.position());
+            endOfSegment += record.length;
+            return offset;
+        }
+    }
+
+    /**
+     * Reads the body (dsid and tag) of the record at the given offset.
+     */
+    private byte[] readRecord(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        readFully(header, offset);
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        readFully(body, offset + Integer.BYTES);
+        return body.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining())
+            if (segment.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException();
+    }
+
+    /**
+     * Logs a warning when count reaches the filter's capacity or a power-of-two multiple of it,
+     * since each doubling halves the filter bits per dsid.
+     */
+    private void checkFilterLoad(long count) {
+        long capacity = filter.getExpectedEntries();
+        if (count % capacity == 0 && Long.bitCount(count / capacity) == 1)
+            logger.warning(String.format("Double-spend filter holds %d dsids but is sized for %d (%.1f bits per dsid), so its false-positive rate "
+                    + "has risen and more lookups go to the index. Reopening the database resizes it.", count, capacity, 8.0 * filter.sizeInBytes() / count));
+    }
+
+    /**
+     * Rebuilds the index and filter from the segment file and truncates the file after the last intact record.
+     *
+     * @return the filter, sized for expectedDsids or twice the number of dsids in the file, whichever is larger
+     */
+    private BlockedBloomFilter recover(long expectedDsids) throws IOException {
+        BlockedBloomFilter filter = new BlockedBloomFilter(expectedDsids);
+        long size = segment.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        while (offset + Integer.BYTES <= size) {
+            header.clear();
+            readFully(header, offset);
+            int length = header.getInt(0);
+            if (length < dsidWidth || offset + 2L * Integer.BYTES + length > size)
+                break; //torn write
+
+            ByteBuffer body = ByteBuffer.allocate(length + Integer.BYTES);
+            readFully(body, offset + Integer.BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != body.getInt(length))
+                break; //corrupt tail
+
+            long recordOffset = offset;
+            byte[] key = Arrays.copyOf(body.array(), dsidWidth);
+            filter.add(key);
+            if (index.putIfAbsent(key, () -> recordOffset) != -1)
+                addLaterRecord(key, () -> recordOffset);
+            offset += 2L * Integer.BYTES + length;
+        }
+
+        if (offset < size)
+            segment.truncate(offset);
+        endOfSegment = offset;
+
+        int dsids = index.size();
+        dsidCount.set(dsids);
+        if (dsids > expectedDsids) {
+            BlockedBloomFilter grown = new BlockedBloomFilter(2L * dsids);
+            index.forEachKey(grown::add);
+            logger.info("Resized double-spend filter from " + expectedDsids + " to " + grown.getExpectedEntries() + " dsids");
+            return grown;
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,52 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * A node of a {@link ShardedDoubleSpendService}, storing the spent dsids of its part of the hash ring.
+ * {@link DoubleSpendShard} is the local implementation; a remote node would forward these calls over the network.
+ */
+public interface DoubleSpendNode {
+    /**
+     * Records that dsid has been spent with the given tag (see {@link DoubleSpendDatabase#addEntry(Zn.ZnElement, DoubleSpendTag)}).
+     *
+     * @return a future completed once the entry is durable, with null if dsid was fresh
+     *         or the tag recorded for dsid earlier (i.e. this is a double-spending)
+     */
+    CompletableFuture<DoubleSpendTag> addEntry(Zn.ZnElement dsid, DoubleSpendTag tag);
+
+    boolean containsDsid(Zn.ZnElement dsid);
+
+    /**
+     * Returns the (first) tag recorded for the given dsid, or null if the dsid has not been spent.
+     */
+    DoubleSpendTag getTag(Zn.ZnElement dsid);
+
+    /**
+     * Returns all tags recorded for the given dsid, in the order they were added.
+     */
+    List<DoubleSpendTag> getTags(Zn.ZnElement dsid);
+
+    /**
+     * Calls consumer with every spent dsid and its (first) tag, in no particular order.
+     */
+    void forEach(BiConsumer<Zn.ZnElement, DoubleSpendTag> consumer);
+
+    /**
+     * Calls consumer with every record from the given position on, in the order they were added
+     * (see {@link DoubleSpendDatabase#forEachRecordSince(long, BiConsumer)}).
+     *
+     * @return the position to continue from in the next call
+     */
+    long forEachRecordSince(long position, BiConsumer<Zn.ZnElement, DoubleSpendTag> consumer);
+
+    /**
+     * Returns a future completed once all entries added before have been committed.
+     */
+    CompletableFuture<Void> flush();
+}
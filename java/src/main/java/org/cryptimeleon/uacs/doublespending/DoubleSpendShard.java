@@ -0,0 +1,186 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link DoubleSpendDatabase} with group commit: entries are queued, and a committer thread appends
+ * all queued entries (up to maxBatchSize) and then forces them to disk with a single sync.
+ * Under load, many writers thus share one sync instead of each paying for their own.
+ * <p>
+ * Lookups go to the database directly, so an entry is visible (e.g. to {@link #containsDsid(Zn.ZnElement)})
+ * as soon as it has been appended, possibly shortly before its future completes.
+ */
+public class DoubleSpendShard implements DoubleSpendNode, Closeable {
+    private final DoubleSpendDatabase database;
+    private final int maxBatchSize;
+    private final BlockingQueue<PendingEntry> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private final LongAdder commits = new LongAdder(), entries = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * An entry waiting to be committed, or a flush marker (without dsid).
+     */
+    private static class PendingEntry {
+        final Zn.ZnElement dsid;
+        final DoubleSpendTag tag;
+        final CompletableFuture<DoubleSpendTag> future = new CompletableFuture<>();
+        DoubleSpendTag previous;
+
+        PendingEntry(Zn.ZnElement dsid, DoubleSpendTag tag) {
+            this.dsid = dsid;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Takes ownership of the database (it is closed with the shard).
+     */
+    public DoubleSpendShard(DoubleSpendDatabase database, int maxBatchSize, String name) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        this.database = database;
+        this.maxBatchSize = maxBatchSize;
+        this.committer = new Thread(this::commitLoop, "double-spend-shard-" + name);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @Override
+    public CompletableFuture<DoubleSpendTag> addEntry(Zn.ZnElement dsid, DoubleSpendTag tag) {
+        return enqueue(new PendingEntry(dsid, tag));
+    }
+
+    @Override
+    public CompletableFuture<Void> flush() {
+        return enqueue(new PendingEntry(null, null)).thenApply(ignored -> null);
+    }
+
+    private CompletableFuture<DoubleSpendTag> enqueue(PendingEntry entry) {
+        if (closed) {
+            entry.future.completeExceptionally(new IllegalStateException("Shard is closed"));
+            return entry.future;
+        }
+        queue.add(entry);
+        return entry.future;
+    }
+
+    @Override
+    public boolean containsDsid(Zn.ZnElement dsid) {
+        return database.containsDsid(dsid);
+    }
+
+    @Override
+    public DoubleSpendTag getTag(Zn.ZnElement dsid) {
+        return database.getTag(dsid);
+    }
+
+    @Override
+    public List<DoubleSpendTag> getTags(Zn.ZnElement dsid) {
+        return database.getTags(dsid);
+    }
+
+    @Override
+    public void forEach(BiConsumer<Zn.ZnElement, DoubleSpendTag> consumer) {
+        database.forEach(consumer);
+    }
+
+    @Override
+    public long forEachRecordSince(long position, BiConsumer<Zn.ZnElement, DoubleSpendTag> consumer) {
+        return database.forEachRecordSince(position, consumer);
+    }
+
+    /**
+     * Number of distinct dsids in the shard.
+     */
+    public int size() {
+        return database.size();
+    }
+
+    /**
+     * Number of syncs so far. Together with {@link #getCommittedEntries()}, this gives the average group size.
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getCommittedEntries() {
+        return entries.sum();
+    }
+
+    private void commitLoop() {
+        List<PendingEntry> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                //Not interrupted by close(), since interrupting a thread in FileChannel I/O closes the channel
+                PendingEntry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<PendingEntry> batch) {
+        List<PendingEntry> appended = new ArrayList<>(batch.size());
+        for (PendingEntry entry : batch) {
+            if (entry.dsid == null) {
+                appended.add(entry);
+                continue;
+            }
+            try {
+                entry.previous = database.addEntry(entry.dsid, entry.tag);
+                appended.add(entry);
+            } catch (RuntimeException e) {
+                entry.future.completeExceptionally(e);
+            }
+        }
+
+        try {
+            database.sync();
+        } catch (IOException e) {
+            for (PendingEntry entry : appended)
+                entry.future.completeExceptionally(e);
+            return;
+        }
+        commits.increment();
+        for (PendingEntry entry : appended) {
+            if (entry.dsid != null)
+                entries.increment();
+            entry.future.complete(entry.previous);
+        }
+    }
+
+    /**
+     * Commits the queued entries and closes the database.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingEntry entry; (entry = queue.poll()) != null; ) //raced with close()
+            entry.future.completeExceptionally(new IllegalStateException("Shard is closed"));
+        database.close();
+    }
+}
@@ -0,0 +1,235 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import org.cryptimeleon.math.hash.impl.SHA256HashFunction;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Resolves double-spendings: recovers the cheating user's key from two tags for the same dsid
+ * and follows the chain of dsids of all tokens that were derived from the double-spent one.
+ * <p>
+ * For a tag, c = usk*gamma + dsrnd, where dsrnd is fixed per token. So two tags for the same dsid
+ * (i.e. the same token) with different gamma reveal usk = (c - c')/(gamma - gamma').
+ * With usk, (ctrace0, ctrace1) = (w^r, w^(r*usk) * w^dsid*) decrypts to w^dsid*, the dsid of the token issued in that spend.
+ * If that token was spent as well, the database contains its tag, which again decrypts to the next dsid, and so on.
+ * <p>
+ * Since tags encrypt w^dsid* (not dsid* itself), the tracer keeps an index from w^dsid to the log offset of dsid's
+ * record for all dsids in the database. Like the database's own index, it is kept off-heap (a {@link DsidIndex} keyed
+ * by the SHA-256 hash of w^dsid). {@link #refreshIndex()} remembers how far into the database's log it has read, so each
+ * refresh only reads the records added since.
+ */
+public class DoubleSpendTracer {
+    private final UacsIncentiveSystem pp;
+    private final DoubleSpendDatabase database;
+    private final ForkJoinPool pool;
+    private final SHA256HashFunction hashFunction = new SHA256HashFunction();
+    private final DsidIndex offsetByPublicDsid = new DsidIndex(hashFunction.getOutputLength());
+    private long indexedUpTo = 0;
+
+    /**
+     * Number of cases (and index entries) a fork-join task handles without splitting further.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 16;
+
+    public DoubleSpendTracer(UacsIncentiveSystem pp, DoubleSpendDatabase database, ForkJoinPool pool) {
+        this.pp = pp;
+        this.database = database;
+        this.pool = pool;
+    }
+
+    public DoubleSpendTracer(UacsIncentiveSystem pp, DoubleSpendDatabase database) {
+        this(pp, database, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Two tags that were recorded for the same dsid.
+     */
+    public static class DoubleSpendCase {
+        public final Zn.ZnElement dsid;
+        public final DoubleSpendTag tag0, tag1;
+
+        public DoubleSpendCase(Zn.ZnElement dsid, DoubleSpendTag tag0, DoubleSpendTag tag1) {
+            this.dsid = dsid;
+            this.tag0 = tag0;
+            this.tag1 = tag1;
+        }
+    }
+
+    public static class TraceResult {
+        public final DoubleSpendCase doubleSpendCase;
+        public final Zn.ZnElement usk;
+        public final GroupElement upk;
+        /**
+         * w^dsid for all tokens derived from the double-spent one (spent or not). These can be blacklisted.
+         */
+        public final List<GroupElement> tracedPublicDsids;
+        /**
+         * The dsids among the traced tokens that have already been spent.
+         */
+        public final List<Zn.ZnElement> spentDsids;
+        /**
+         * Why tracing this case failed (e.g. both tags have the same gamma), or null if it succeeded.
+         * If set, all other fields except doubleSpendCase are null.
+         */
+        public final RuntimeException failure;
+
+        public TraceResult(DoubleSpendCase doubleSpendCase, Zn.ZnElement usk, GroupElement upk, List<GroupElement> tracedPublicDsids, List<Zn.ZnElement> spentDsids) {
+            this.doubleSpendCase = doubleSpendCase;
+            this.usk = usk;
+            this.upk = upk;
+            this.tracedPublicDsids = tracedPublicDsids;
+            this.spentDsids = spentDsids;
+            this.failure = null;
+        }
+
+        public TraceResult(DoubleSpendCase doubleSpendCase, RuntimeException failure) {
+            this.doubleSpendCase = doubleSpendCase;
+            this.usk = null;
+            this.upk = null;
+            this.tracedPublicDsids = null;
+            this.spentDsids = null;
+            this.failure = failure;
+        }
+
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+    }
+
+    /**
+     * Recovers the user secret key from two tags for the same dsid.
+     *
+     * @throws IllegalArgumentException if both tags have the same gamma (then they don't reveal anything)
+     */
+    public Zn.ZnElement recoverUsk(DoubleSpendTag tag0, DoubleSpendTag tag1) {
+        Zn.ZnElement gammaDiff = tag0.gamma.sub(tag1.gamma);
+        if (gammaDiff.isZero())
+            throw new IllegalArgumentException("Tags have the same challenge gamma");
+        return tag0.c.sub(tag1.c).mul(gammaDiff.inv());
+    }
+
+    /**
+     * Decrypts ctrace of the given tag, yielding w^dsid* for the token that was issued in that spend.
+     */
+    public GroupElement decryptPublicDsid(DoubleSpendTag tag, Zn.ZnElement usk) {
+        return tag.ctrace1.op(tag.ctrace0.pow(usk.neg())).compute();
+    }
+
+    /**
+     * Adds all dsids that were added to the database since the last call to the w^dsid index.
+     */
+    public synchronized void refreshIndex() {
+        List<Zn.ZnElement> newDsids = new ArrayList<>();
+        indexedUpTo = database.forEachRecordSince(indexedUpTo, (dsid, tag) -> newDsids.add(dsid));
+        pool.invoke(new IndexTask(newDsids));
+    }
+
+    /**
+     * Traces a single double-spending. Expects the index to be up to date.
+     */
+    public TraceResult trace(DoubleSpendCase doubleSpendCase) {
+        Zn.ZnElement usk = recoverUsk(doubleSpendCase.tag0, doubleSpendCase.tag1);
+        List<GroupElement> tracedPublicDsids = new ArrayList<>();
+        List<Zn.ZnElement> spentDsids = new ArrayList<>();
+        Set<Zn.ZnElement> visited = new HashSet<>();
+        visited.add(doubleSpendCase.dsid);
+
+        //Both spends of the double-spent token issued a new token, so there are two chains to follow
+        for (DoubleSpendTag start : Arrays.asList(doubleSpendCase.tag0, doubleSpendCase.tag1)) {
+            DoubleSpendTag tag = start;
+            while (tag != null) {
+                GroupElement publicDsid = decryptPublicDsid(tag, usk);
+                tracedPublicDsids.add(publicDsid);
+                long offset = offsetByPublicDsid.get(publicDsidKey(publicDsid));
+                if (offset == -1)
+                    break; //token has not been spent (yet)
+                Zn.ZnElement dsid = database.dsidAt(offset);
+                if (!visited.add(dsid))
+                    break;
+                spentDsids.add(dsid);
+                tag = database.getTag(dsid);
+            }
+        }
+
+        return new TraceResult(doubleSpendCase, usk, pp.w.pow(usk).compute(), tracedPublicDsids, spentDsids);
+    }
+
+    /**
+     * Refreshes the index and traces all given double-spendings in parallel on this tracer's fork-join pool.
+     * A case that cannot be traced does not stop the others; its result carries the {@link TraceResult#failure}.
+     *
+     * @return the results, in the same order as the cases
+     */
+    public List<TraceResult> traceAll(List<DoubleSpendCase> cases) {
+        refreshIndex();
+        return pool.invoke(new TraceTask(cases));
+    }
+
+    private byte[] publicDsidKey(GroupElement publicDsid) {
+        return hashFunction.hash(publicDsid.getUniqueByteRepresentation());
+    }
+
+    private class TraceTask extends RecursiveTask<List<TraceResult>> {
+        private final List<DoubleSpendCase> cases;
+
+        TraceTask(List<DoubleSpendCase> cases) {
+            this.cases = cases;
+        }
+
+        @Override
+        protected List<TraceResult> compute() {
+            if (cases.size() <= SEQUENTIAL_THRESHOLD) {
+                List<TraceResult> results = new ArrayList<>();
+                for (DoubleSpendCase doubleSpendCase : cases) {
+                    try {
+                        results.add(trace(doubleSpendCase));
+                    } catch (RuntimeException e) {
+                        results.add(new TraceResult(doubleSpendCase, e));
+                    }
+                }
+                return results;
+            }
+
+            int middle = cases.size() / 2;
+            TraceTask left = new TraceTask(cases.subList(0, middle));
+            TraceTask right = new TraceTask(cases.subList(middle, cases.size()));
+            left.fork();
+            List<TraceResult> results = new ArrayList<>(right.compute());
+            results.addAll(0, left.join());
+            return results;
+        }
+    }
+
+    private class IndexTask extends RecursiveTask<Void> {
+        private final List<Zn.ZnElement> dsids;
+
+        IndexTask(List<Zn.ZnElement> dsids) {
+            this.dsids = dsids;
+        }
+
+        @Override
+        protected Void compute() {
+            if (dsids.size() <= SEQUENTIAL_THRESHOLD) {
+                try {
+                    for (Zn.ZnElement dsid : dsids)
+                        offsetByPublicDsid.putIfAbsent(publicDsidKey(pp.w.pow(dsid)), () -> database.offsetOf(dsid));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+
+            int middle = dsids.size() / 2;
+            invokeAll(new IndexTask(dsids.subList(0, middle)), new IndexTask(dsids.subList(middle, dsids.size())));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Off-heap open-addressing hash index from fixed-width dsid bytes to a (non-negative) long value.
+ * <p>
+ * The table is split into stripes with their own lock, so concurrent lookups and inserts for different dsids
+ * rarely contend. Lookups first try an optimistic read and only fall back to the read lock if a writer interfered.
+ * Each slot stores the key bytes followed by value+1 (so that 0 marks an empty slot).
+ */
+class DsidIndex {
+    private static final int STRIPE_BITS = 6;
+    private static final int INITIAL_STRIPE_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private final int keyWidth;
+    private final int slotWidth;
+    private final Stripe[] stripes;
+
+    private static class Stripe {
+        final StampedLock lock = new StampedLock();
+        volatile Table table;
+        int size;
+    }
+
+    private static class Table {
+        final ByteBuffer slots;
+        final int mask;
+
+        Table(ByteBuffer slots, int mask) {
+            this.slots = slots;
+            this.mask = mask;
+        }
+    }
+
+    DsidIndex(int keyWidth) {
+        this.keyWidth = keyWidth;
+        this.slotWidth = keyWidth + Long.BYTES;
+        stripes = new Stripe[1 << STRIPE_BITS];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+            stripes[i].table = new Table(ByteBuffer.allocateDirect(INITIAL_STRIPE_CAPACITY * slotWidth), INITIAL_STRIPE_CAPACITY - 1);
+        }
+    }
+
+    /**
+     * Returns the value stored for key, or -1 if there is none.
+     */
+    long get(byte[] key) {
+        long hash = hash(key);
+        Stripe stripe = stripes[(int) (hash >>> (64 - STRIPE_BITS))];
+
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long result = find(stripe.table, key, hash);
+            if (stripe.lock.validate(stamp))
+                return result;
+        }
+
+        stamp = stripe.lock.readLock();
+        try {
+            return find(stripe.table, key, hash);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Stores value for key unless key is already present.
+     * valueSupplier is only called (under the stripe's lock) if the key is absent.
+     *
+     * @return the value that was already stored for key, or -1 if the key was inserted
+     */
+    long putIfAbsent(byte[] key, LongSupplierWithIO valueSupplier) throws IOException {
+        long hash = hash(key);
+        Stripe stripe = stripes[(int) (hash >>> (64 - STRIPE_BITS))];
+
+        long stamp = stripe.lock.writeLock();
+        try {
+            long existing = find(stripe.table, key, hash);
+            if (existing != -1)
+                return existing;
+
+            if (stripe.size + 1 > MAX_LOAD * (stripe.table.mask + 1))
+                grow(stripe);
+            insert(stripe.table, key, hash, valueSupplier.get());
+            stripe.size++;
+            return -1;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        int result = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                result += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calls consumer with every value in the index (in no particular order).
+     * The values of a stripe are copied under its read lock, and consumer runs after the lock has been released,
+     * so it may insert into the index (and does not hold up writers while it runs).
+     */
+    void forEachValue(LongConsumer consumer) {
+        for (Stripe stripe : stripes) {
+            long[] values;
+            long stamp = stripe.lock.readLock();
+            try {
+                Table table = stripe.table;
+                values = new long[stripe.size];
+                int count = 0;
+                for (int slot = 0; slot <= table.mask; slot++) {
+                    long storedValue = table.slots.getLong(slot * slotWidth + keyWidth);
+                    if (storedValue != 0)
+                        values[count++] = storedValue - 1;
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            for (long value : values)
+                consumer.accept(value);
+        }
+    }
+
+    /**
+     * Calls consumer with every key in the index (in no particular order), like {@link #forEachValue(LongConsumer)}.
+     */
+    void forEachKey(Consumer<byte[]> consumer) {
+        for (Stripe stripe : stripes) {
+            byte[][] keys;
+            long stamp = stripe.lock.readLock();
+            try {
+                Table table = stripe.table;
+                keys = new byte[stripe.size][];
+                int count = 0;
+                for (int slot = 0; slot <= table.mask; slot++) {
+                    int offset = slot * slotWidth;
+                    if (table.slots.getLong(offset + keyWidth) == 0)
+                        continue;
+                    byte[] key = new byte[keyWidth];
+                    for (int i = 0; i < keyWidth; i++)
+                        key[i] = table.slots.get(offset + i);
+                    keys[count++] = key;
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            for (byte[] key : keys)
+                consumer.accept(key);
+        }
+    }
+
+    private long find(Table table, byte[] key, long hash) {
+        for (int slot = (int) hash & table.mask; ; slot = (slot + 1) & table.mask) {
+            int offset = slot * slotWidth;
+            long storedValue = table.slots.getLong(offset + keyWidth);
+            if (storedValue == 0)
+                return -1;
+            if (keyEquals(table.slots, offset, key))
+                return storedValue - 1;
+        }
+    }
+
+    private void insert(Table table, byte[] key, long hash, long value) {
+        int slot = (int) hash & table.mask;
+        while (table.slots.getLong(slot * slotWidth + keyWidth) != 0)
+            slot = (slot + 1) & table.mask;
+        int offset = slot * slotWidth;
+        for (int i = 0; i < keyWidth; i++)
+            table.slots.put(offset + i, key[i]);
+        table.slots.putLong(offset + keyWidth, value + 1);
+    }
+
+    private void grow(Stripe stripe) {
+        Table old = stripe.table;
+        int newCapacity = (old.mask + 1) * 2;
+        Table grown = new Table(ByteBuffer.allocateDirect(newCapacity * slotWidth), newCapacity - 1);
+        byte[] key = new byte[keyWidth];
+        for (int slot = 0; slot <= old.mask; slot++) {
+            int offset = slot * slotWidth;
+            long storedValue = old.slots.getLong(offset + keyWidth);
+            if (storedValue == 0)
+                continue;
+            for (int i = 0; i < keyWidth; i++)
+                key[i] = old.slots.get(offset + i);
+            insert(grown, key, hash(key), storedValue - 1);
+        }
+        stripe.table = grown;
+    }
+
+    private boolean keyEquals(ByteBuffer slots, int offset, byte[] key) {
+        for (int i = 0; i < keyWidth; i++)
+            if (slots.get(offset + i) != key[i])
+                return false;
+        return true;
+    }
+
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        //Final mix so that both the top bits (stripe) and the low bits (slot) depend on all key bytes
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    interface LongSupplierWithIO {
+        long get() throws IOException;
+    }
+}
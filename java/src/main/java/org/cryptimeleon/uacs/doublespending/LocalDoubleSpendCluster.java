@@ -0,0 +1,80 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for a cluster of double-spend nodes within one process: every node is a {@link DoubleSpendShard}
+ * with its own segment file (in the given directory) and committer thread, behind a {@link ShardedDoubleSpendService}.
+ * Lets sharding, rebalancing and throughput scaling be tested on one machine.
+ */
+public class LocalDoubleSpendCluster implements Closeable {
+    private final UacsIncentiveSystem pp;
+    private final Path directory;
+    private final int maxBatchSize;
+    private final ShardedDoubleSpendService service;
+    private final Map<String, DoubleSpendShard> shards = new LinkedHashMap<>();
+    private int nextNode = 0;
+
+    /**
+     * Starts the given number of nodes (with segment files "node-i.seg" in directory, reopened if they exist).
+     */
+    public LocalDoubleSpendCluster(UacsIncentiveSystem pp, Path directory, int nodes, int maxBatchSize) throws IOException {
+        this.pp = pp;
+        this.directory = directory;
+        this.maxBatchSize = maxBatchSize;
+        this.service = new ShardedDoubleSpendService(pp);
+        Files.createDirectories(directory);
+        for (int i = 0; i < nodes; i++)
+            addNode();
+    }
+
+    public ShardedDoubleSpendService getService() {
+        return service;
+    }
+
+    public synchronized DoubleSpendShard getShard(String name) {
+        return shards.get(name);
+    }
+
+    public synchronized Map<String, DoubleSpendShard> getShards() {
+        return new LinkedHashMap<>(shards);
+    }
+
+    /**
+     * Starts a new node and rebalances onto it.
+     *
+     * @return the node's name
+     */
+    public synchronized String addNode() throws IOException {
+        String name = "node-" + nextNode++;
+        DoubleSpendShard shard = new DoubleSpendShard(new DoubleSpendDatabase(pp, directory.resolve(name + ".seg")), maxBatchSize, name);
+        shards.put(name, shard);
+        service.addNode(name, shard);
+        return name;
+    }
+
+    /**
+     * Rebalances the node's entries onto the remaining nodes and stops it (its segment file is kept).
+     */
+    public synchronized void removeNode(String name) throws IOException {
+        DoubleSpendShard shard = shards.remove(name);
+        if (shard == null)
+            throw new IllegalArgumentException("Unknown node " + name);
+        service.removeNode(name);
+        shard.close();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (DoubleSpendShard shard : shards.values())
+            shard.close();
+        shards.clear();
+    }
+}
@@ -0,0 +1,186 @@
+package org.cryptimeleon.uacs.doublespending;
+
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Client-side router of a double-spend store partitioned over several {@link DoubleSpendNode}s:
+ * each dsid is stored on (and looked up at) the node that owns it on a {@link ConsistentHashRing}.
+ * <p>
+ * When a node is added or removed, the records whose owner changes are copied to their new owner before the new ring
+ * takes effect. Operations keep using the old ring during the copy and only wait for the final catch-up pass.
+ * Copies left on a node that lost a segment are never read again (the nodes' logs are append-only).
+ * <p>
+ * To record the tags of a {@link org.cryptimeleon.uacs.provider.ProviderEngine}, set its
+ * {@link org.cryptimeleon.uacs.provider.ProviderEngine#setDoubleSpendTagSink(java.util.function.BiFunction) sink} to
+ * {@code (dsid, tag) -> service.addEntry(dsid, tag).join()}.
+ */
+public class ShardedDoubleSpendService {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    /**
+     * Rebalancing copies the logs again until a pass copies at most this many records (or after MAX_CATCH_UP_PASSES),
+     * then copies the rest under the write lock.
+     */
+    private static final int FINAL_PASS_RECORDS = 1024;
+    private static final int MAX_CATCH_UP_PASSES = 8;
+
+    private final int dsidWidth;
+    private final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+    private volatile ConsistentHashRing<DoubleSpendNode> ring;
+
+    public ShardedDoubleSpendService(UacsIncentiveSystem pp, int virtualNodes) {
+        this.dsidWidth = DoubleSpendDatabase.dsidWidth(pp);
+        this.ring = new ConsistentHashRing<>(virtualNodes);
+    }
+
+    public ShardedDoubleSpendService(UacsIncentiveSystem pp) {
+        this(pp, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Routes to the node owning dsid, see {@link DoubleSpendNode#addEntry(Zn.ZnElement, DoubleSpendTag)}.
+     */
+    public CompletableFuture<DoubleSpendTag> addEntry(Zn.ZnElement dsid, DoubleSpendTag tag) {
+        ringLock.readLock().lock();
+        try {
+            return ring.nodeFor(key(dsid)).addEntry(dsid, tag);
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    public boolean containsDsid(Zn.ZnElement dsid) {
+        ringLock.readLock().lock();
+        try {
+            return ring.nodeFor(key(dsid)).containsDsid(dsid);
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    public DoubleSpendTag getTag(Zn.ZnElement dsid) {
+        ringLock.readLock().lock();
+        try {
+            return ring.nodeFor(key(dsid)).getTag(dsid);
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the name of the node that owns dsid.
+     */
+    public String nodeFor(Zn.ZnElement dsid) {
+        return ring.nameFor(key(dsid));
+    }
+
+    public Map<String, DoubleSpendNode> getNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Adds a node and copies the records of the ring segments it takes over from the other nodes to it.
+     *
+     * @return the number of records copied
+     */
+    public synchronized int addNode(String name, DoubleSpendNode node) {
+        ConsistentHashRing<DoubleSpendNode> newRing = ring.copy();
+        newRing.add(name, node);
+        return migrate(newRing);
+    }
+
+    /**
+     * Removes a node after copying its records to their new owners. The node itself is not closed.
+     *
+     * @return the removed node
+     */
+    public synchronized DoubleSpendNode removeNode(String name) {
+        ConsistentHashRing<DoubleSpendNode> newRing = ring.copy();
+        DoubleSpendNode node = newRing.remove(name);
+        if (newRing.getNodes().isEmpty()) {
+            ringLock.writeLock().lock();
+            try {
+                ring = newRing;
+            } finally {
+                ringLock.writeLock().unlock();
+            }
+        } else {
+            migrate(newRing);
+        }
+        return node;
+    }
+
+    /**
+     * Copies every record whose owner differs between the current and the new ring to its new owner, then switches
+     * to the new ring. The current ring stays in use while the logs are copied, and records that arrive meanwhile
+     * are picked up by further passes. Only the last pass, over the records added since the one before,
+     * runs under the write lock (after flushing the nodes), right before the switch.
+     *
+     * @return the number of records copied
+     */
+    private int migrate(ConsistentHashRing<DoubleSpendNode> newRing) {
+        ConsistentHashRing<DoubleSpendNode> oldRing = ring;
+        Map<String, Long> positions = new HashMap<>();
+        int copied = 0;
+        for (int pass = 0; pass < MAX_CATCH_UP_PASSES; pass++) {
+            int passCopied = copyRecords(oldRing, newRing, positions);
+            copied += passCopied;
+            if (passCopied <= FINAL_PASS_RECORDS)
+                break;
+        }
+
+        ringLock.writeLock().lock();
+        try {
+            for (DoubleSpendNode node : oldRing.getNodes().values())
+                node.flush().join();
+            copied += copyRecords(oldRing, newRing, positions);
+            ring = newRing;
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the records of each node from its position in positions on (and advances the positions).
+     * All tags of a double-spent dsid are copied, in their original order, so the new owner can still trace it.
+     */
+    private int copyRecords(ConsistentHashRing<DoubleSpendNode> oldRing, ConsistentHashRing<DoubleSpendNode> newRing, Map<String, Long> positions) {
+        List<CompletableFuture<DoubleSpendTag>> copies = new ArrayList<>();
+        for (Map.Entry<String, DoubleSpendNode> entry : oldRing.getNodes().entrySet()) {
+            String name = entry.getKey();
+            long position = entry.getValue().forEachRecordSince(positions.getOrDefault(name, 0L), (dsid, tag) -> {
+                byte[] key = key(dsid);
+                if (!name.equals(oldRing.nameFor(key)))
+                    return; //stale copy from an earlier rebalancing
+                if (newRing.nameFor(key).equals(name))
+                    return;
+                DoubleSpendNode newOwner = newRing.nodeFor(key);
+                for (DoubleSpendTag present : newOwner.getTags(dsid))
+                    if (sameTag(present, tag))
+                        return; //the new owner kept a copy from an earlier rebalancing
+                copies.add(newOwner.addEntry(dsid, tag));
+            });
+            positions.put(name, position);
+        }
+        CompletableFuture.allOf(copies.toArray(new CompletableFuture[0])).join();
+        return copies.size();
+    }
+
+    private static boolean sameTag(DoubleSpendTag tag0, DoubleSpendTag tag1) {
+        return tag0.gamma.equals(tag1.gamma) && tag0.c.equals(tag1.c);
+    }
+
+    private byte[] key(Zn.ZnElement dsid) {
+        return DoubleSpendDatabase.encodeDsid(dsid, dsidWidth);
+    }
+}
@@ -0,0 +1,83 @@
+package org.cryptimeleon.uacs.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram: values are counted in buckets whose width grows with the value,
+ * so that every value is represented with a relative error below 1% over the whole range of longs, in constant memory.
+ * <p>
+ * Recording is lock-free and can be done from many threads concurrently.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 2) * HALF);
+    private final LongAdder totalCount = new LongAdder(), totalValue = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a (non-negative) value, e.g. a latency in nanoseconds.
+     */
+    public void record(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative value " + value);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.increment();
+        totalValue.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * Returns the value below which (up to the histogram's precision) the given percentage of the recorded values lie,
+     * e.g. 99.9 for the p999. Returns 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueInBucket(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each. A larger value with highest bit h is put into one of HALF buckets
+     * for its magnitude m = h - (SUB_BUCKET_BITS - 1) by its top SUB_BUCKET_BITS bits (value >>> m, in [HALF, SUB_BUCKETS)).
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return magnitude * HALF + (int) (value >>> magnitude);
+    }
+
+    private static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int magnitude = index / HALF - 1;
+        long subBucket = index - magnitude * HALF;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
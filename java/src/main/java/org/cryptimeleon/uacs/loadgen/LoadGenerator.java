@@ -0,0 +1,393 @@
+package org.cryptimeleon.uacs.loadgen;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.provider.ProviderEngine;
+import org.cryptimeleon.uacs.transport.ProviderServer;
+import org.cryptimeleon.uacs.transport.UserClient;
+import org.cryptimeleon.uacs.transport.WireCodec;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates many concurrent users earning and spending points against a provider and reports throughput and latency
+ * percentiles per protocol and per role.
+ * <p>
+ * Each simulated user joins once and then repeatedly runs Earn or Spend (with probability earnRatio for Earn,
+ * and always Earn if the balance does not cover a spend), without think time. Latencies are recorded after the warm-up for
+ * <ul>
+ *     <li>user: the time spent computing the user's rounds,</li>
+ *     <li>provider: the rest of the session, i.e. the provider's rounds including queueing (and network, if any),</li>
+ *     <li>session: the whole session.</li>
+ * </ul>
+ * Usage (all options are optional):
+ * <pre>
+ * LoadGenerator [--mode=inprocess|loopback|remote|serve] [--users=16] [--duration=30] [--warmup=5] [--earn-ratio=0.5]
+ *               [--connections=2] [--out=results.json] [--snapshot=pp.snapshot] [--address=host:port] [--port=4711]
+ * </pre>
+ * inprocess drives a {@link ProviderEngine} directly, loopback goes through a {@link ProviderServer} in the same process.
+ * For an out-of-process provider, start one with {@code --mode=serve --snapshot=... --port=...} (it writes the snapshot of
+ * its public parameters) and point the generator at it with {@code --mode=remote --snapshot=... --address=...}.
+ */
+public class LoadGenerator {
+    public static final String[] PROTOCOLS = {"issue", "earn", "spend"};
+    public static final String[] ROLES = {"user", "provider", "session"};
+
+    public static class Config {
+        public String mode = "inprocess";
+        public int users = 16;
+        public long durationMillis = 30000;
+        public long warmupMillis = 5000;
+        public double earnRatio = 0.5;
+        public int earnAmount = 10;
+        public int spendAmount = 5;
+        public int connections = 2;
+        public String snapshot = null;
+        public String address = "127.0.0.1:4711";
+        public String out = null;
+
+        public static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("="))
+                    throw new IllegalArgumentException("Invalid argument " + arg);
+                String key = arg.substring(2, arg.indexOf('=')), value = arg.substring(arg.indexOf('=') + 1);
+                switch (key) {
+                    case "mode": config.mode = value; break;
+                    case "users": config.users = Integer.parseInt(value); break;
+                    case "duration": config.durationMillis = Long.parseLong(value) * 1000; break;
+                    case "warmup": config.warmupMillis = Long.parseLong(value) * 1000; break;
+                    case "earn-ratio": config.earnRatio = Double.parseDouble(value); break;
+                    case "earn-amount": config.earnAmount = Integer.parseInt(value); break;
+                    case "spend-amount": config.spendAmount = Integer.parseInt(value); break;
+                    case "connections": config.connections = Integer.parseInt(value); break;
+                    case "snapshot": config.snapshot = value; break;
+                    case "address": config.address = value; break;
+                    case "port": config.address = "0.0.0.0:" + value; break;
+                    case "out": config.out = value; break;
+                    default: throw new IllegalArgumentException("Unknown option " + key);
+                }
+            }
+            return config;
+        }
+
+        InetSocketAddress socketAddress() {
+            int colon = address.lastIndexOf(':');
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+    }
+
+    /**
+     * Latencies and counts of the measured (post-warm-up) sessions.
+     */
+    public static class Report {
+        public final Map<String, Map<String, LatencyHistogram>> latencies = new LinkedHashMap<>();
+        public final Map<String, LongAdder> errors = new LinkedHashMap<>();
+        public volatile long measuredNanos;
+        private volatile boolean recording = false;
+
+        Report() {
+            for (String protocol : PROTOCOLS) {
+                Map<String, LatencyHistogram> roles = new LinkedHashMap<>();
+                for (String role : ROLES)
+                    roles.put(role, new LatencyHistogram());
+                latencies.put(protocol, roles);
+                errors.put(protocol, new LongAdder());
+            }
+        }
+
+        void record(String protocol, long userNanos, long totalNanos) {
+            if (!recording)
+                return;
+            Map<String, LatencyHistogram> roles = latencies.get(protocol);
+            roles.get("user").record(userNanos);
+            roles.get("provider").record(Math.max(0, totalNanos - userNanos));
+            roles.get("session").record(totalNanos);
+        }
+
+        void recordError(String protocol) {
+            if (recording)
+                errors.get(protocol).increment();
+        }
+
+        public double getThroughput(String protocol) {
+            return latencies.get(protocol).get("session").getCount() / (measuredNanos / 1e9);
+        }
+
+        public void writeJson(Writer out, Config config) throws IOException {
+            out.write("{\n  \"config\": {\"mode\": \"" + config.mode + "\", \"users\": " + config.users
+                    + ", \"durationSeconds\": " + config.durationMillis / 1000.0 + ", \"earnRatio\": " + config.earnRatio
+                    + ", \"earnAmount\": " + config.earnAmount + ", \"spendAmount\": " + config.spendAmount + "},\n");
+            out.write("  \"measuredSeconds\": " + measuredNanos / 1e9 + ",\n  \"protocols\": {");
+            String protocolSeparator = "\n";
+            for (String protocol : PROTOCOLS) {
+                out.write(protocolSeparator + "    \"" + protocol + "\": {\"sessions\": " + latencies.get(protocol).get("session").getCount()
+                        + ", \"errors\": " + errors.get(protocol).sum()
+                        + String.format(Locale.ROOT, ", \"throughputPerSecond\": %.2f", getThroughput(protocol)) + ", \"latencyMillis\": {");
+                String roleSeparator = "";
+                for (String role : ROLES) {
+                    LatencyHistogram histogram = latencies.get(protocol).get(role);
+                    out.write(String.format(Locale.ROOT, "%s\"%s\": {\"mean\": %.3f, \"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+                            roleSeparator, role, histogram.getMean() / 1e6, histogram.getValueAtPercentile(50) / 1e6,
+                            histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+                    roleSeparator = ", ";
+                }
+                out.write("}}");
+                protocolSeparator = ",\n";
+            }
+            out.write("\n  }\n}\n");
+        }
+    }
+
+    /**
+     * Runs sessions against the provider and reports their timings to the report.
+     */
+    private interface Driver extends AutoCloseable {
+        Token issue(GroupElement upk, Zn.ZnElement usk) throws Exception;
+
+        Token earn(int k, Token token) throws Exception;
+
+        Token spend(int k, Token token) throws Exception;
+    }
+
+    /**
+     * Runs the user's rounds on the calling thread and the provider's rounds on a {@link ProviderEngine}.
+     */
+    private static class InProcessDriver implements Driver {
+        private final ProviderEngine engine;
+        private final Report report;
+        private final IssueJoinProtocol issueProtocol;
+        private final CreditEarnProtocol earnProtocol;
+        private final SpendDeductProtocol spendProtocol;
+        private final AtomicInteger sessionIds = new AtomicInteger();
+
+        InProcessDriver(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, ProviderEngine engine, Report report) {
+            this.engine = engine;
+            this.report = report;
+            this.issueProtocol = new IssueJoinProtocol(pp, issuerKey);
+            this.earnProtocol = new CreditEarnProtocol(pp, issuerKey);
+            this.spendProtocol = new SpendDeductProtocol(pp, issuerKey);
+        }
+
+        private void run(String protocol, String sessionId, TwoPartyProtocolInstance user) throws ExecutionException, InterruptedException {
+            long start = System.nanoTime(), userNanos = 0;
+            long roundStart = System.nanoTime();
+            Representation message = user.nextMessage(null);
+            userNanos += System.nanoTime() - roundStart;
+            while (!user.hasTerminated()) {
+                Representation reply = engine.handle(sessionId, message).get();
+                roundStart = System.nanoTime();
+                message = user.nextMessage(reply);
+                userNanos += System.nanoTime() - roundStart;
+            }
+            report.record(protocol, userNanos, System.nanoTime() - start);
+        }
+
+        @Override
+        public Token issue(GroupElement upk, Zn.ZnElement usk) throws Exception {
+            String sessionId = "issue" + sessionIds.incrementAndGet();
+            IssueJoinProtocol.IssueJoinProtocolInstance user = issueProtocol.instantiateUser(upk, usk);
+            engine.openIssue(sessionId, upk);
+            run("issue", sessionId, user);
+            return user.getUserResult();
+        }
+
+        @Override
+        public Token earn(int k, Token token) throws Exception {
+            String sessionId = "earn" + sessionIds.incrementAndGet();
+            CreditEarnProtocol.CreditEarnProtocolInstance user = earnProtocol.instantiateUser(k, token);
+            engine.openEarn(sessionId, k);
+            run("earn", sessionId, user);
+            return user.getUserResult();
+        }
+
+        @Override
+        public Token spend(int k, Token token) throws Exception {
+            String sessionId = "spend" + sessionIds.incrementAndGet();
+            SpendDeductProtocol.SpendDeductProtocolInstance user = spendProtocol.instantiateUser(k, token);
+            engine.openSpend(sessionId, k, token.dsid);
+            run("spend", sessionId, user);
+            return user.getUserResult();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Runs sessions through {@link UserClient}s, spreading users over the connections.
+     */
+    private static class TransportDriver implements Driver {
+        private final List<UserClient> clients = new ArrayList<>();
+        private final ExecutorService clientExecutor;
+        private final ThreadLocal<UserClient> client;
+
+        TransportDriver(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, InetSocketAddress address, int connections, Report report) throws IOException {
+            clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            for (int i = 0; i < connections; i++) {
+                UserClient userClient = new UserClient(pp, issuerKey, new WireCodec(pp.zp), address, clientExecutor);
+                userClient.setSessionListener(report::record);
+                clients.add(userClient);
+            }
+            AtomicInteger users = new AtomicInteger();
+            client = ThreadLocal.withInitial(() -> clients.get(users.getAndIncrement() % clients.size()));
+        }
+
+        @Override
+        public Token issue(GroupElement upk, Zn.ZnElement usk) throws Exception {
+            return client.get().issue(upk, usk).get();
+        }
+
+        @Override
+        public Token earn(int k, Token token) throws Exception {
+            return client.get().earn(k, token).get();
+        }
+
+        @Override
+        public Token spend(int k, Token token) throws Exception {
+            return client.get().spend(k, token).get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (UserClient userClient : clients)
+                userClient.close();
+            clientExecutor.shutdown();
+        }
+    }
+
+    private final Config config;
+
+    public LoadGenerator(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the load against a provider running in this process (modes inprocess and loopback).
+     */
+    public Report run(UacsIncentiveSystem pp, SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey) throws Exception {
+        PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+        Report report = new Report();
+        try (ProviderEngine engine = new ProviderEngine(pp, preparedIssuerKey, issuerKey.getSigningKey(), 60000)) {
+            if (config.mode.equals("loopback")) {
+                try (ProviderServer server = new ProviderServer(pp, engine, new WireCodec(pp.zp), new InetSocketAddress("127.0.0.1", 0));
+                     TransportDriver driver = new TransportDriver(pp, preparedIssuerKey, server.getLocalAddress(), config.connections, report)) {
+                    return run(pp, driver, report);
+                }
+            }
+            try (InProcessDriver driver = new InProcessDriver(pp, preparedIssuerKey, engine, report)) {
+                return run(pp, driver, report);
+            }
+        }
+    }
+
+    /**
+     * Runs the load against a provider in another process (mode remote).
+     */
+    public Report runRemote(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, InetSocketAddress address) throws Exception {
+        Report report = new Report();
+        try (TransportDriver driver = new TransportDriver(pp, issuerKey, address, config.connections, report)) {
+            return run(pp, driver, report);
+        }
+    }
+
+    private Report run(UacsIncentiveSystem pp, Driver driver, Report report) throws InterruptedException {
+        ExecutorService users = Executors.newFixedThreadPool(config.users);
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.MILLISECONDS.toNanos(config.warmupMillis);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(config.durationMillis);
+        for (int i = 0; i < config.users; i++)
+            users.execute(() -> simulateUser(pp, driver, report, end));
+
+        TimeUnit.NANOSECONDS.sleep(measureStart - System.nanoTime());
+        report.recording = true;
+        TimeUnit.NANOSECONDS.sleep(end - System.nanoTime());
+        report.recording = false;
+        report.measuredNanos = System.nanoTime() - measureStart;
+
+        users.shutdown();
+        users.awaitTermination(1, TimeUnit.MINUTES);
+        return report;
+    }
+
+    private void simulateUser(UacsIncentiveSystem pp, Driver driver, Report report, long end) {
+        Random random = new Random();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = pp.keyGen();
+        Token token = null;
+        long balance = 0;
+        while (System.nanoTime() < end) {
+            String protocol = token == null ? "issue"
+                    : balance < config.spendAmount || random.nextDouble() < config.earnRatio ? "earn" : "spend";
+            try {
+                switch (protocol) {
+                    case "issue":
+                        token = driver.issue(userKey.pk, userKey.sk);
+                        break;
+                    case "earn":
+                        token = driver.earn(config.earnAmount, token);
+                        balance += config.earnAmount;
+                        break;
+                    default:
+                        token = driver.spend(config.spendAmount, token);
+                        balance -= config.spendAmount;
+                }
+            } catch (Exception e) {
+                report.recordError(protocol);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        Report report;
+        if (config.mode.equals("serve")) {
+            UacsIncentiveSystem pp = new UacsIncentiveSystem(new MclBilinearGroup());
+            SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = pp.issuerKeyGen();
+            PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+            if (config.snapshot != null)
+                ParameterSnapshot.write(Paths.get(config.snapshot), pp, issuerKey.getVerificationKey());
+            ProviderEngine engine = new ProviderEngine(pp, preparedIssuerKey, issuerKey.getSigningKey(), 60000);
+            ProviderServer server = new ProviderServer(pp, engine, new WireCodec(pp.zp), config.socketAddress());
+            System.out.println("Serving on " + server.getLocalAddress());
+            Thread.currentThread().join();
+            return;
+        } else if (config.mode.equals("remote")) {
+            if (config.snapshot == null)
+                throw new IllegalArgumentException("remote mode needs the provider's --snapshot");
+            ParameterSnapshot snapshot = ParameterSnapshot.load(Paths.get(config.snapshot));
+            report = new LoadGenerator(config).runRemote(snapshot.pp, snapshot.prepareIssuerKey(), config.socketAddress());
+        } else {
+            UacsIncentiveSystem pp = new UacsIncentiveSystem(new MclBilinearGroup());
+            report = new LoadGenerator(config).run(pp, pp.issuerKeyGen());
+        }
+
+        if (config.out != null) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(config.out), StandardCharsets.UTF_8)) {
+                report.writeJson(out, config);
+            }
+        }
+        for (String protocol : PROTOCOLS) {
+            LatencyHistogram session = report.latencies.get(protocol).get("session");
+            System.out.printf(Locale.ROOT, "%-6s %8.1f/s  p50 %7.2f ms  p99 %7.2f ms  p999 %7.2f ms  errors %d%n", protocol,
+                    report.getThroughput(protocol), session.getValueAtPercentile(50) / 1e6, session.getValueAtPercentile(99) / 1e6,
+                    session.getValueAtPercentile(99.9) / 1e6, report.errors.get(protocol).sum());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.cryptimeleon.uacs.provider;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ReplayGuard} for provider nodes in the same process (or a single node).
+ * Ids are kept until their state expires.
+ */
+public class InMemoryReplayGuard implements ReplayGuard {
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final ConcurrentHashMap<ByteBuffer, Long> usedIds = new ConcurrentHashMap<>();
+    private final AtomicInteger callsSinceSweep = new AtomicInteger();
+
+    @Override
+    public boolean markUsed(byte[] stateId, long expiresAtMillis) {
+        if (callsSinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+            callsSinceSweep.set(0);
+            long now = System.currentTimeMillis();
+            usedIds.values().removeIf(expiresAt -> expiresAt < now);
+        }
+        return usedIds.putIfAbsent(ByteBuffer.wrap(stateId.clone()), expiresAtMillis) == null;
+    }
+
+    /**
+     * Number of ids currently remembered.
+     */
+    public int size() {
+        return usedIds.size();
+    }
+}
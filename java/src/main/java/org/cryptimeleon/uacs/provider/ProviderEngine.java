@@ -0,0 +1,266 @@
+package org.cryptimeleon.uacs.provider;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendTracer;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Runs the provider side of many concurrent Issue/Earn/Spend sessions.
+ * <p>
+ * A session is opened with one of the open methods and then driven by passing each user message to
+ * {@link #handle(String, Representation)}, which runs the provider's next round on a bounded executor and returns the reply.
+ * Messages of the same session are processed one at a time, different sessions in parallel.
+ * Sessions are removed when the provider terminates, fails or has been idle for longer than the session timeout.
+ * <p>
+ * Completed Spend sessions record their tag through the double-spend tag sink. If the dsid turns out to have been spent
+ * before, the session fails instead of returning the updated signature, and the case is reported to the double-spend
+ * listener (e.g. to hand it to a {@link DoubleSpendTracer}).
+ * <p>
+ * All sessions share one {@link UacsIncentiveSystem}, one {@link PreparedIssuerKey} and (optionally) one
+ * {@link ProviderPrecomputationPool}.
+ */
+public class ProviderEngine implements Closeable {
+    private final PSSigningKey sk;
+    private final long sessionTimeoutNanos;
+    private final int maxSessions;
+
+    private final IssueJoinProtocol issueProtocol;
+    private final CreditEarnProtocol earnProtocol;
+    private final SpendDeductProtocol spendProtocol;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService evictionExecutor;
+    private final LongAdder completedSessions = new LongAdder(), failedSessions = new LongAdder(), evictedSessions = new LongAdder();
+    private final LongAdder doubleSpendings = new LongAdder();
+
+    private volatile ProviderPrecomputationPool pool;
+    private volatile BiFunction<Zn.ZnElement, DoubleSpendTag, DoubleSpendTag> doubleSpendTagSink = (dsid, tag) -> null;
+    private volatile Consumer<DoubleSpendTracer.DoubleSpendCase> doubleSpendListener = doubleSpendCase -> {};
+
+    private class Session {
+        final String id;
+        final TwoPartyProtocolInstance instance;
+        final Runnable onCompletion;
+        volatile long lastActivity = System.nanoTime();
+        boolean closed = false;
+
+        Session(String id, TwoPartyProtocolInstance instance, Runnable onCompletion) {
+            this.id = id;
+            this.instance = instance;
+            this.onCompletion = onCompletion;
+        }
+
+        synchronized Representation step(Representation message) {
+            if (closed)
+                throw new IllegalStateException("Session " + id + " expired");
+            lastActivity = System.nanoTime();
+            Representation reply;
+            try {
+                reply = instance.nextMessage(message);
+            } catch (RuntimeException e) {
+                close();
+                failedSessions.increment();
+                throw e;
+            }
+            if (instance.hasTerminated()) {
+                close();
+                try {
+                    if (onCompletion != null)
+                        onCompletion.run();
+                } catch (RuntimeException e) {
+                    failedSessions.increment();
+                    throw e;
+                }
+                completedSessions.increment();
+            }
+            return reply;
+        }
+
+        /**
+         * Removes the session if it has been idle for too long. Returns whether it was removed.
+         */
+        synchronized boolean evictIfExpired(long now) {
+            if (closed || now - lastActivity <= sessionTimeoutNanos)
+                return false;
+            close();
+            return true;
+        }
+
+        private void close() {
+            closed = true;
+            sessions.remove(id, this);
+        }
+    }
+
+    /**
+     * @param threads              number of threads running protocol rounds
+     * @param queueCapacity        number of rounds that may wait for a thread before {@link #handle(String, Representation)} rejects new ones
+     * @param sessionTimeoutMillis sessions idle for longer than this are evicted
+     * @param maxSessions          maximum number of concurrently open sessions
+     */
+    public ProviderEngine(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk,
+                          int threads, int queueCapacity, long sessionTimeoutMillis, int maxSessions) {
+        this.sk = sk;
+        this.sessionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis);
+        this.maxSessions = maxSessions;
+        this.issueProtocol = new IssueJoinProtocol(pp, issuerKey);
+        this.earnProtocol = new CreditEarnProtocol(pp, issuerKey);
+        this.spendProtocol = new SpendDeductProtocol(pp, issuerKey);
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("provider-engine"));
+        this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("provider-engine-eviction"));
+        long sweepInterval = Math.max(10, sessionTimeoutMillis / 4);
+        evictionExecutor.scheduleWithFixedDelay(this::evictExpiredSessions, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates an engine with one thread per core.
+     */
+    public ProviderEngine(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk, long sessionTimeoutMillis) {
+        this(pp, issuerKey, sk, Runtime.getRuntime().availableProcessors(), 10000, sessionTimeoutMillis, 100000);
+    }
+
+    /**
+     * Sets the pool used by all sessions opened afterwards (null for none).
+     */
+    public void setPrecomputationPool(ProviderPrecomputationPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets where the double-spending tags of completed Spend sessions go, e.g. {@code db::addEntry}.
+     * The sink returns the tag recorded earlier for the dsid if it has been spent before, otherwise null.
+     * It is called from the engine's threads.
+     */
+    public void setDoubleSpendTagSink(BiFunction<Zn.ZnElement, DoubleSpendTag, DoubleSpendTag> doubleSpendTagSink) {
+        this.doubleSpendTagSink = doubleSpendTagSink;
+    }
+
+    /**
+     * Sets who is told about Spend sessions whose dsid the sink reported as already spent.
+     * The case holds the earlier tag and the new one. The listener is called from the engine's threads.
+     */
+    public void setDoubleSpendListener(Consumer<DoubleSpendTracer.DoubleSpendCase> doubleSpendListener) {
+        this.doubleSpendListener = doubleSpendListener;
+    }
+
+    public void openIssue(String sessionId, GroupElement upk) {
+        openSession(sessionId, issueProtocol.instantiateProvider(upk, sk, pool), null);
+    }
+
+    public void openEarn(String sessionId, int k) {
+        openSession(sessionId, earnProtocol.instantiateProvider(k, sk, pool), null);
+    }
+
+    public void openSpend(String sessionId, int k, Zn.ZnElement dsid) {
+        SpendDeductProtocol.SpendDeductProtocolInstance instance = spendProtocol.instantiateProvider(k, dsid, sk, pool);
+        openSession(sessionId, instance, () -> recordSpend(dsid, instance.getProviderResult()));
+    }
+
+    /**
+     * Passes the tag to the sink. If the dsid has been spent before, reports the case and fails the session,
+     * so that the double-spender does not get the updated signature.
+     */
+    private void recordSpend(Zn.ZnElement dsid, DoubleSpendTag tag) {
+        DoubleSpendTag previousTag = doubleSpendTagSink.apply(dsid, tag);
+        if (previousTag == null)
+            return;
+        doubleSpendings.increment();
+        doubleSpendListener.accept(new DoubleSpendTracer.DoubleSpendCase(dsid, previousTag, tag));
+        throw new IllegalStateException("dsid has already been spent");
+    }
+
+    /**
+     * Opens a session for an arbitrary provider instance (e.g. of one of the Fiat-Shamir variants).
+     *
+     * @param onCompletion called once the instance has terminated successfully (may be null). If it throws,
+     *                     the session fails and the instance's last message is not returned.
+     */
+    public void openSession(String sessionId, TwoPartyProtocolInstance providerInstance, Runnable onCompletion) {
+        if (sessions.size() >= maxSessions)
+            throw new IllegalStateException("Too many open sessions");
+        if (sessions.putIfAbsent(sessionId, new Session(sessionId, providerInstance, onCompletion)) != null)
+            throw new IllegalArgumentException("Session " + sessionId + " already exists");
+    }
+
+    /**
+     * Runs the provider's next round of the given session on the user's message.
+     * The future completes with the provider's reply, or exceptionally if the session is unknown or expired,
+     * the round failed (e.g. because of an invalid proof) or the engine is overloaded.
+     */
+    public CompletableFuture<Representation> handle(String sessionId, Representation message) {
+        Session session = sessions.get(sessionId);
+        if (session == null)
+            return failedFuture(new IllegalStateException("Unknown or expired session " + sessionId));
+        try {
+            return CompletableFuture.supplyAsync(() -> session.step(message), executor);
+        } catch (RejectedExecutionException e) {
+            return failedFuture(e);
+        }
+    }
+
+    public int getOpenSessions() {
+        return sessions.size();
+    }
+
+    public long getCompletedSessions() {
+        return completedSessions.sum();
+    }
+
+    public long getFailedSessions() {
+        return failedSessions.sum();
+    }
+
+    public long getEvictedSessions() {
+        return evictedSessions.sum();
+    }
+
+    /**
+     * Number of Spend sessions that were refused because their dsid had been spent before.
+     */
+    public long getDoubleSpendings() {
+        return doubleSpendings.sum();
+    }
+
+    private void evictExpiredSessions() {
+        long now = System.nanoTime();
+        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+            if (it.next().evictIfExpired(now))
+                evictedSessions.increment();
+        }
+    }
+
+    @Override
+    public void close() {
+        evictionExecutor.shutdownNow();
+        executor.shutdown();
+        sessions.clear();
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package org.cryptimeleon.uacs.provider;
+
+/**
+ * Remembers which sealed session states have been opened, so that each one finishes at most one session
+ * (see {@link SessionStateSealer#open(String, byte[], byte[])}).
+ * <p>
+ * All provider nodes that share a sealing key have to share the guard (e.g. a table in a shared store with an
+ * atomic insert), since any of them may be sent a given state.
+ */
+public interface ReplayGuard {
+    /**
+     * Atomically marks the state id as used.
+     *
+     * @param stateId         random id sealed into the state
+     * @param expiresAtMillis when the state expires; afterwards it is rejected anyway, so the id may be forgotten
+     * @return true if the id was fresh, false if it had been marked before
+     */
+    boolean markUsed(byte[] stateId, long expiresAtMillis);
+}
@@ -0,0 +1,125 @@
+package org.cryptimeleon.uacs.provider;
+
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.uacs.transport.WireCodec;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Seals provider session state into an opaque blob (AES-GCM) that the client stores and sends back with its next message,
+ * so that any provider node holding the same key can continue the session.
+ * <p>
+ * A blob is laid out as {@code [version][12 byte nonce][ciphertext and tag]}, where the plaintext is
+ * {@code [long expiry][16 byte state id][state]}. It is bound to a context (the protocol name)
+ * and the session id, and expires after a configurable time.
+ * <p>
+ * Each blob can be opened once: opening marks its state id as used in the {@link ReplayGuard} shared by all nodes.
+ * Otherwise a client could send the same Spend state twice and get two tags with the same gamma,
+ * which do not reveal the user's key.
+ */
+public class SessionStateSealer {
+    private static final byte VERSION = 1;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int STATE_ID_LENGTH = 16;
+
+    private final SecretKey key;
+    private final WireCodec codec;
+    private final long ttlMillis;
+    private final ReplayGuard replayGuard;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param key         AES key shared by all provider nodes
+     * @param ttlMillis   time after which sealed states are rejected
+     * @param replayGuard records opened states; shared by all provider nodes
+     */
+    public SessionStateSealer(SecretKey key, WireCodec codec, long ttlMillis, ReplayGuard replayGuard) {
+        this.key = key;
+        this.codec = codec;
+        this.ttlMillis = ttlMillis;
+        this.replayGuard = replayGuard;
+    }
+
+    public static SecretKey generateKey() {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256);
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] seal(String context, byte[] sessionId, Representation state) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        byte[] stateId = new byte[STATE_ID_LENGTH];
+        random.nextBytes(stateId);
+
+        ByteBuffer plaintext = ByteBuffer.allocate(Long.BYTES + STATE_ID_LENGTH + codec.encodedLength(state));
+        plaintext.putLong(System.currentTimeMillis() + ttlMillis);
+        plaintext.put(stateId);
+        codec.encode(state, plaintext);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            cipher.updateAAD(associatedData(context, sessionId));
+            byte[] ciphertext = cipher.doFinal(plaintext.array());
+
+            ByteBuffer result = ByteBuffer.allocate(1 + NONCE_LENGTH + ciphertext.length);
+            result.put(VERSION).put(nonce).put(ciphertext);
+            return result.array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the state sealed in blob and marks blob as used, so that it cannot be opened again.
+     *
+     * @throws IllegalArgumentException if blob was not sealed with this key for this context and session, has expired,
+     *                                  or has been opened before
+     */
+    public Representation open(String context, byte[] sessionId, byte[] blob) {
+        if (blob.length < 1 + NONCE_LENGTH || blob[0] != VERSION)
+            throw new IllegalArgumentException("Invalid session state");
+        byte[] plaintext;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, blob, 1, NONCE_LENGTH));
+            cipher.updateAAD(associatedData(context, sessionId));
+            plaintext = cipher.doFinal(blob, 1 + NONCE_LENGTH, blob.length - 1 - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new IllegalArgumentException("Invalid session state");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+        long expiresAt = buffer.getLong();
+        if (expiresAt < System.currentTimeMillis())
+            throw new IllegalArgumentException("Session state expired");
+        byte[] stateId = new byte[STATE_ID_LENGTH];
+        buffer.get(stateId);
+        if (!replayGuard.markUsed(stateId, expiresAt))
+            throw new IllegalArgumentException("Session state has already been used");
+        return codec.decode(buffer);
+    }
+
+    private static byte[] associatedData(String context, byte[] sessionId) {
+        byte[] contextBytes = context.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer result = ByteBuffer.allocate(1 + Integer.BYTES + contextBytes.length + sessionId.length);
+        result.put(VERSION).putInt(contextBytes.length).put(contextBytes).put(sessionId);
+        return result.array();
+    }
+}
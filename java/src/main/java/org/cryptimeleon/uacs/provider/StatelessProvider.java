@@ -0,0 +1,102 @@
+package org.cryptimeleon.uacs.provider;
+
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.*;
+
+/**
+ * Provider for the Fiat-Shamir protocol variants that keeps no state between requests.
+ * <p>
+ * After its first round, the provider's state is sealed (see {@link SessionStateSealer}) and returned along with its reply.
+ * The client sends the sealed state back with its next message, and any node sharing the sealing key (and replay guard)
+ * can finish the session. A sealed state finishes at most one session; it is consumed before the provider signs.
+ * Earn only has a single provider round, so it is stateless anyway.
+ * <p>
+ * The interactive variants are not supported, since the state of their Damgard proof verifiers cannot be exported.
+ */
+public class StatelessProvider {
+    private static final String ISSUE_CONTEXT = "IssueJoin";
+    private static final String SPEND_CONTEXT = "SpendDeduct";
+
+    private final UacsIncentiveSystem pp;
+    private final PSSigningKey sk;
+    private final SessionStateSealer sealer;
+    private final IssueJoinFiatShamirProtocol issueProtocol;
+    private final CreditEarnFiatShamirProtocol earnProtocol;
+    private final SpendDeductFiatShamirProtocol spendProtocol;
+    private volatile ProviderPrecomputationPool pool;
+
+    /**
+     * The provider's reply and its sealed state, which the client has to send back with its next message.
+     */
+    public static class Reply {
+        public final Representation message;
+        public final byte[] sealedState;
+
+        public Reply(Representation message, byte[] sealedState) {
+            this.message = message;
+            this.sealedState = sealedState;
+        }
+    }
+
+    public static class SpendResult {
+        public final Representation message;
+        public final Zn.ZnElement dsid;
+        public final DoubleSpendTag doubleSpendTag;
+
+        public SpendResult(Representation message, Zn.ZnElement dsid, DoubleSpendTag doubleSpendTag) {
+            this.message = message;
+            this.dsid = dsid;
+            this.doubleSpendTag = doubleSpendTag;
+        }
+    }
+
+    public StatelessProvider(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, PSSigningKey sk, SessionStateSealer sealer) {
+        this.pp = pp;
+        this.sk = sk;
+        this.sealer = sealer;
+        this.issueProtocol = new IssueJoinFiatShamirProtocol(pp, issuerKey);
+        this.earnProtocol = new CreditEarnFiatShamirProtocol(pp, issuerKey);
+        this.spendProtocol = new SpendDeductFiatShamirProtocol(pp, issuerKey);
+    }
+
+    public void setPrecomputationPool(ProviderPrecomputationPool pool) {
+        this.pool = pool;
+    }
+
+    public Reply startIssue(GroupElement upk, byte[] sessionId, Representation userMessage) {
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance instance = issueProtocol.instantiateProvider(upk, sessionId, sk, pool);
+        Representation reply = instance.nextMessage(userMessage);
+        return new Reply(reply, sealer.seal(ISSUE_CONTEXT, sessionId, instance.exportProviderState()));
+    }
+
+    public Representation finishIssue(byte[] sessionId, byte[] sealedState, Representation userMessage) {
+        Representation state = sealer.open(ISSUE_CONTEXT, sessionId, sealedState);
+        return issueProtocol.resumeProvider(state, sessionId, sk, pool).nextMessage(userMessage);
+    }
+
+    public Representation earn(int k, byte[] sessionId, Representation userMessage) {
+        return earnProtocol.instantiateProvider(k, sessionId, sk, pool).nextMessage(userMessage);
+    }
+
+    public Reply startSpend(int k, Zn.ZnElement dsid, byte[] sessionId, Representation userMessage) {
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance instance = spendProtocol.instantiateProvider(k, dsid, sessionId, sk, pool);
+        Representation reply = instance.nextMessage(userMessage);
+        return new Reply(reply, sealer.seal(SPEND_CONTEXT, sessionId, instance.exportProviderState()));
+    }
+
+    /**
+     * Finishes a spend. The caller is responsible for recording the double-spending tag (e.g. in a
+     * {@link org.cryptimeleon.uacs.doublespending.DoubleSpendDatabase}).
+     *
+     * @throws IllegalArgumentException if the sealed state is invalid, expired or has been used before
+     */
+    public SpendResult finishSpend(byte[] sessionId, byte[] sealedState, Representation userMessage) {
+        Representation state = sealer.open(SPEND_CONTEXT, sessionId, sealedState);
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance instance = spendProtocol.resumeProvider(state, sessionId, sk, pool);
+        Representation reply = instance.nextMessage(userMessage);
+        return new SpendResult(reply, pp.zp.restoreElement(state.obj().get("dsid")), instance.getProviderResult());
+    }
+}
@@ -0,0 +1,50 @@
+package org.cryptimeleon.uacs.transport;
+
+import org.cryptimeleon.math.serialization.Representation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Payload of a frame exchanged between {@link UserClient} and {@link ProviderServer}:
+ * {@code [long stream id][byte type][wire codec frame of the body]}.
+ * The stream id identifies the protocol session within the connection, so that many sessions can be pipelined over it.
+ */
+public class Envelope {
+    /**
+     * Opens a session. The body is an object with the protocol ("issue", "earn" or "spend"),
+     * its parameters and the user's first message.
+     */
+    public static final byte OPEN = 1;
+    /**
+     * A protocol message within an open session.
+     */
+    public static final byte MESSAGE = 2;
+    /**
+     * The session failed. The body is a string describing the error.
+     */
+    public static final byte ERROR = 3;
+
+    public final long streamId;
+    public final byte type;
+    public final Representation body;
+
+    public Envelope(long streamId, byte type, Representation body) {
+        this.streamId = streamId;
+        this.type = type;
+        this.body = body;
+    }
+
+    public ByteBuffer encode(WireCodec codec) {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 1 + codec.encodedLength(body));
+        buffer.putLong(streamId).put(type);
+        codec.encode(body, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static Envelope decode(WireCodec codec, ByteBuffer payload) {
+        long streamId = payload.getLong();
+        byte type = payload.get();
+        return new Envelope(streamId, type, codec.decode(payload));
+    }
+}
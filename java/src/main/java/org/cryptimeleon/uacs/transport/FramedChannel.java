@@ -0,0 +1,129 @@
+package org.cryptimeleon.uacs.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Length-prefixed frames ({@code [int length][payload]}) over a non-blocking {@link SocketChannel}.
+ * <p>
+ * Reading is meant to be done by a single (selector) thread. Frames can be enqueued for writing from any thread;
+ * they are written by {@link #flush()}.
+ */
+public class FramedChannel {
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+    public FramedChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads whatever is available and returns the payloads of all frames completed by it.
+     *
+     * @throws EOFException if the peer closed the connection
+     * @throws IOException  if a frame exceeds {@link #MAX_FRAME_LENGTH}
+     */
+    public List<ByteBuffer> read() throws IOException {
+        if (channel.read(readBuffer) < 0)
+            throw new EOFException("Connection closed");
+
+        List<ByteBuffer> frames = new ArrayList<>();
+        readBuffer.flip();
+        while (readBuffer.remaining() >= Integer.BYTES) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > MAX_FRAME_LENGTH)
+                throw new IOException("Invalid frame length " + length);
+            if (readBuffer.remaining() < Integer.BYTES + length) {
+                if (readBuffer.capacity() < Integer.BYTES + length) { //frame does not fit, grow buffer
+                    ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + length);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                    return frames;
+                }
+                break;
+            }
+            readBuffer.position(readBuffer.position() + Integer.BYTES);
+            byte[] payload = new byte[length];
+            readBuffer.get(payload);
+            frames.add(ByteBuffer.wrap(payload));
+        }
+        readBuffer.compact();
+        return frames;
+    }
+
+    /**
+     * Enqueues payload (from its position to its limit) to be written as one frame.
+     */
+    public void enqueue(ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payload.remaining());
+        frame.putInt(payload.remaining());
+        frame.put(payload);
+        frame.flip();
+        writeQueue.add(frame);
+    }
+
+    /**
+     * Writes as many enqueued frames as the channel accepts. Returns whether everything has been written.
+     */
+    public boolean flush() throws IOException {
+        ByteBuffer frame;
+        while ((frame = writeQueue.peek()) != null) {
+            channel.write(frame);
+            if (frame.hasRemaining())
+                return false;
+            writeQueue.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Writes a frame to a blocking channel.
+     */
+    public static void writeFrame(WritableByteChannel channel, ByteBuffer payload) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        header.putInt(payload.remaining());
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        while (payload.hasRemaining())
+            channel.write(payload);
+    }
+
+    /**
+     * Reads a frame from a blocking channel and returns its payload.
+     *
+     * @throws EOFException if the peer closed the connection
+     */
+    public static ByteBuffer readFrame(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, header);
+        int length = header.getInt(0);
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length " + length);
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload);
+        payload.flip();
+        return payload;
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Connection closed");
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.cryptimeleon.uacs.transport;
+
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.serialization.StringRepresentation;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+import org.cryptimeleon.uacs.provider.ProviderEngine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector-based server that runs the provider side of protocol sessions sent by {@link UserClient}s.
+ * <p>
+ * A single thread handles all connections. Protocol rounds run on the {@link ProviderEngine}'s executor,
+ * so many sessions can be in flight on the same connection at once.
+ */
+public class ProviderServer implements Closeable {
+    private final UacsIncentiveSystem pp;
+    private final ProviderEngine engine;
+    private final WireCodec codec;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread selectorThread;
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong connectionIds = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private class Connection {
+        final long id = connectionIds.incrementAndGet();
+        final FramedChannel channel;
+        final SelectionKey key;
+
+        Connection(SocketChannel socketChannel) throws IOException {
+            this.channel = new FramedChannel(socketChannel);
+            this.key = socketChannel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        String sessionId(long streamId) {
+            return id + ":" + streamId;
+        }
+
+        void send(Envelope envelope) {
+            channel.enqueue(envelope.encode(codec));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Binds to address (use port 0 for any free port) and starts serving.
+     */
+    public ProviderServer(UacsIncentiveSystem pp, ProviderEngine engine, WireCodec codec, InetSocketAddress address) throws IOException {
+        this.pp = pp;
+        this.engine = engine;
+        this.codec = codec;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        selectorThread = new Thread(this::run, "provider-server");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+                Connection pending;
+                while ((pending = pendingWrites.poll()) != null)
+                    write(pending);
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel != null) {
+                            channel.configureBlocking(false);
+                            channel.socket().setTcpNoDelay(true);
+                            new Connection(channel);
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable())
+                        read(connection);
+                    if (key.isValid() && key.isWritable())
+                        write(connection);
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads and dispatches the connection's complete frames. Any failure (including malformed frames, which can throw
+     * all kinds of runtime exceptions while decoding) closes only this connection.
+     */
+    private void read(Connection connection) {
+        try {
+            for (ByteBuffer frame : connection.channel.read())
+                dispatch(connection, Envelope.decode(codec, frame));
+        } catch (IOException | RuntimeException e) {
+            close(connection);
+        }
+    }
+
+    private void write(Connection connection) {
+        if (!connection.key.isValid())
+            return;
+        try {
+            boolean done = connection.channel.flush();
+            connection.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void dispatch(Connection connection, Envelope envelope) {
+        String sessionId = connection.sessionId(envelope.streamId);
+        Representation message;
+        try {
+            if (envelope.type == Envelope.OPEN) {
+                ObjectRepresentation open = envelope.body.obj();
+                switch (open.get("protocol").str().get()) {
+                    case "issue":
+                        engine.openIssue(sessionId, pp.group.getG1().restoreElement(open.get("upk")));
+                        break;
+                    case "earn":
+                        engine.openEarn(sessionId, open.get("k").bigInt().get().intValueExact());
+                        break;
+                    case "spend":
+                        engine.openSpend(sessionId, open.get("k").bigInt().get().intValueExact(), pp.zp.restoreElement(open.get("dsid")));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown protocol");
+                }
+                message = open.get("message");
+            } else if (envelope.type == Envelope.MESSAGE) {
+                message = envelope.body;
+            } else {
+                throw new IllegalArgumentException("Unexpected envelope type " + envelope.type);
+            }
+        } catch (RuntimeException e) {
+            connection.send(new Envelope(envelope.streamId, Envelope.ERROR, new StringRepresentation(String.valueOf(e.getMessage()))));
+            return;
+        }
+
+        engine.handle(sessionId, message).whenComplete((reply, error) -> {
+            if (error != null)
+                connection.send(new Envelope(envelope.streamId, Envelope.ERROR, new StringRepresentation(String.valueOf(error.getMessage()))));
+            else
+                connection.send(new Envelope(envelope.streamId, Envelope.MESSAGE, reply));
+        });
+    }
+
+    private void close(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.getChannel().close();
+        } catch (IOException e) {
+            //already closing
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+    }
+}
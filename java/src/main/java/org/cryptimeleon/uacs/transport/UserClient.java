@@ -0,0 +1,193 @@
+package org.cryptimeleon.uacs.transport;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.math.serialization.BigIntegerRepresentation;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.serialization.StringRepresentation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.uacs.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs the user side of Issue/Earn/Spend against a {@link ProviderServer}.
+ * <p>
+ * All sessions share one connection. Each session gets its own stream id, so any number of them can be in flight at once
+ * (e.g. from different threads). User rounds run on the given executor, not on the thread reading from the connection.
+ */
+public class UserClient implements Closeable {
+    private final IssueJoinProtocol issueProtocol;
+    private final CreditEarnProtocol earnProtocol;
+    private final SpendDeductProtocol spendProtocol;
+    private final WireCodec codec;
+    private final SocketChannel channel;
+    private final Executor executor;
+    private final Thread readerThread;
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong streamIds = new AtomicLong();
+    private volatile SessionListener sessionListener;
+    private volatile boolean closed = false;
+
+    /**
+     * Gets the timings of completed sessions, e.g. for load testing.
+     */
+    public interface SessionListener {
+        /**
+         * @param protocol  "issue", "earn" or "spend"
+         * @param userNanos time spent computing the user's rounds
+         * @param totalNanos time from opening the session to its result (the rest is provider and network time)
+         */
+        void sessionCompleted(String protocol, long userNanos, long totalNanos);
+    }
+
+    private class Session {
+        final long streamId;
+        final String protocol;
+        final TwoPartyProtocolInstance user;
+        final Supplier<Token> result;
+        final CompletableFuture<Token> future = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        volatile long userNanos = 0;
+
+        Session(long streamId, String protocol, TwoPartyProtocolInstance user, Supplier<Token> result) {
+            this.streamId = streamId;
+            this.protocol = protocol;
+            this.user = user;
+            this.result = result;
+        }
+
+        /**
+         * Runs the user's next round (rounds of a session never run concurrently).
+         */
+        Representation nextMessage(Representation message) {
+            long roundStart = System.nanoTime();
+            try {
+                return user.nextMessage(message);
+            } finally {
+                userNanos += System.nanoTime() - roundStart;
+            }
+        }
+
+        void receive(Representation message) {
+            try {
+                Representation reply = nextMessage(message);
+                if (reply != null)
+                    send(new Envelope(streamId, Envelope.MESSAGE, reply));
+                if (user.hasTerminated()) {
+                    sessions.remove(streamId);
+                    Token token = result.get();
+                    SessionListener listener = sessionListener;
+                    if (listener != null)
+                        listener.sessionCompleted(protocol, userNanos, System.nanoTime() - start);
+                    future.complete(token);
+                }
+            } catch (RuntimeException | IOException e) {
+                fail(e);
+            }
+        }
+
+        void fail(Throwable e) {
+            sessions.remove(streamId);
+            future.completeExceptionally(e);
+        }
+    }
+
+    public UserClient(UacsIncentiveSystem pp, PreparedIssuerKey issuerKey, WireCodec codec, InetSocketAddress address, Executor executor) throws IOException {
+        this.issueProtocol = new IssueJoinProtocol(pp, issuerKey);
+        this.earnProtocol = new CreditEarnProtocol(pp, issuerKey);
+        this.spendProtocol = new SpendDeductProtocol(pp, issuerKey);
+        this.codec = codec;
+        this.executor = executor;
+        this.channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+
+        readerThread = new Thread(this::readLoop, "user-client");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    public void setSessionListener(SessionListener sessionListener) {
+        this.sessionListener = sessionListener;
+    }
+
+    public CompletableFuture<Token> issue(GroupElement upk, Zn.ZnElement usk) {
+        IssueJoinProtocol.IssueJoinProtocolInstance user = issueProtocol.instantiateUser(upk, usk);
+        ObjectRepresentation params = new ObjectRepresentation();
+        params.put("upk", upk.getRepresentation());
+        return open("issue", params, user, user::getUserResult);
+    }
+
+    public CompletableFuture<Token> earn(int k, Token token) {
+        CreditEarnProtocol.CreditEarnProtocolInstance user = earnProtocol.instantiateUser(k, token);
+        ObjectRepresentation params = new ObjectRepresentation();
+        params.put("k", new BigIntegerRepresentation(BigInteger.valueOf(k)));
+        return open("earn", params, user, user::getUserResult);
+    }
+
+    public CompletableFuture<Token> spend(int k, Token token) {
+        SpendDeductProtocol.SpendDeductProtocolInstance user = spendProtocol.instantiateUser(k, token);
+        ObjectRepresentation params = new ObjectRepresentation();
+        params.put("k", new BigIntegerRepresentation(BigInteger.valueOf(k)));
+        params.put("dsid", token.dsid.getRepresentation());
+        return open("spend", params, user, user::getUserResult);
+    }
+
+    private CompletableFuture<Token> open(String protocol, ObjectRepresentation params, TwoPartyProtocolInstance user, Supplier<Token> result) {
+        Session session = new Session(streamIds.incrementAndGet(), protocol, user, result);
+        sessions.put(session.streamId, session);
+        executor.execute(() -> {
+            try {
+                params.put("protocol", new StringRepresentation(protocol));
+                params.put("message", session.nextMessage(null));
+                send(new Envelope(session.streamId, Envelope.OPEN, params));
+            } catch (RuntimeException | IOException e) {
+                session.fail(e);
+            }
+        });
+        return session.future;
+    }
+
+    private void send(Envelope envelope) throws IOException {
+        synchronized (channel) {
+            FramedChannel.writeFrame(channel, envelope.encode(codec));
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                Envelope envelope = Envelope.decode(codec, FramedChannel.readFrame(channel));
+                Session session = sessions.get(envelope.streamId);
+                if (session == null)
+                    continue;
+                if (envelope.type == Envelope.ERROR)
+                    session.fail(new IllegalStateException("Provider rejected session: " + envelope.body.str().get()));
+                else
+                    executor.execute(() -> session.receive(envelope.body));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Session session : sessions.values())
+                session.fail(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        try {
+            readerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package org.cryptimeleon.uacs.transport;
+
+import org.cryptimeleon.math.serialization.*;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of protocol messages (and other {@link Representation}s) into {@link ByteBuffer}s.
+ * <p>
+ * A frame is laid out as {@code [magic 'U' 'W'][version][flags][int payload length][payload]}.
+ * The payload is the representation, written as a tag byte followed by the value:
+ * <ul>
+ *     <li>integers in [0, p) (i.e. Zn scalars) as fixed-width big-endian numbers, other integers length-prefixed,</li>
+ *     <li>strings that are sequences of decimal numbers (which is how e.g. mcl encodes group elements)
+ *     as the binary numbers instead of their digits,</li>
+ *     <li>object keys once per frame, later occurrences as a back-reference,</li>
+ *     <li>lengths as unsigned LEB128 varints.</li>
+ * </ul>
+ * Encoding writes straight from the representation into the buffer, without building intermediate objects.
+ * Decoding treats the frame as untrusted: it never reads past the frame's length, never allocates more than the frame
+ * could hold, and rejects lists and objects nested deeper than {@link #MAX_DEPTH}.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+public class WireCodec {
+    public static final byte VERSION = 1;
+    private static final byte MAGIC0 = 'U', MAGIC1 = 'W';
+    public static final int HEADER_LENGTH = 8;
+    /**
+     * Maximum nesting depth of lists, objects and representables in a decoded frame.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_SCALAR = 1;
+    private static final byte TAG_BIGINT = 2;
+    private static final byte TAG_BYTES = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_NUMERIC_STRING = 5;
+    private static final byte TAG_LIST = 6;
+    private static final byte TAG_OBJECT = 7;
+    private static final byte TAG_REPRESENTABLE = 8;
+
+    private final int scalarWidth;
+
+    /**
+     * @param zp the ring whose elements should be encoded fixed-width (usually the incentive system's Zp)
+     */
+    public WireCodec(Zn zp) {
+        this(getScalarWidth(zp));
+    }
+
+    /**
+     * @param scalarWidth the number of bytes of fixed-width integers, see {@link #getScalarWidth(Zn)}
+     */
+    public WireCodec(int scalarWidth) {
+        if (scalarWidth < 1)
+            throw new IllegalArgumentException("scalarWidth must be positive");
+        this.scalarWidth = scalarWidth;
+    }
+
+    /**
+     * Returns the number of bytes needed for elements of zp.
+     */
+    public static int getScalarWidth(Zn zp) {
+        return (zp.size().bitLength() + 7) / 8;
+    }
+
+    /**
+     * Returns the number of bytes {@link #encode(Representation, ByteBuffer)} will write for repr (including the header).
+     */
+    public int encodedLength(Representation repr) {
+        Encoder encoder = new Encoder(null);
+        encoder.write(repr);
+        return HEADER_LENGTH + encoder.length;
+    }
+
+    /**
+     * Writes a frame containing repr to buffer, starting at its current position.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small (see {@link #encodedLength(Representation)})
+     */
+    public void encode(Representation repr, ByteBuffer buffer) {
+        int headerPosition = buffer.position();
+        buffer.put(MAGIC0).put(MAGIC1).put(VERSION).put((byte) 0).putInt(0);
+        Encoder encoder = new Encoder(buffer);
+        encoder.write(repr);
+        buffer.putInt(headerPosition + 4, encoder.length);
+    }
+
+    public byte[] encode(Representation repr) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(repr));
+        encode(repr, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a frame from buffer, starting at its current position. Afterwards, the position is right after the frame.
+     *
+     * @throws IllegalArgumentException if the frame is malformed or of an unsupported version
+     */
+    public Representation decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH)
+            throw new IllegalArgumentException("Truncated frame");
+        if (buffer.get() != MAGIC0 || buffer.get() != MAGIC1)
+            throw new IllegalArgumentException("Not a wire codec frame");
+        byte version = buffer.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported wire format version " + version);
+        buffer.get(); //flags, none defined yet
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("Truncated frame");
+
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        Representation result;
+        try {
+            result = new Decoder(payload).read(0);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+        if (payload.hasRemaining())
+            throw new IllegalArgumentException("Frame length does not match its content");
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    public Representation decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Writes repr to buffer (or only counts its length if buffer is null).
+     */
+    private class Encoder {
+        private final ByteBuffer buffer;
+        private final Map<String, Integer> keyIndices = new HashMap<>();
+        int length = 0;
+
+        Encoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void write(Representation repr) {
+            if (repr == null) {
+                putByte(TAG_NULL);
+            } else if (repr instanceof BigIntegerRepresentation) {
+                BigInteger value = ((BigIntegerRepresentation) repr).get();
+                if (value.signum() >= 0 && value.bitLength() <= 8 * scalarWidth) {
+                    putByte(TAG_SCALAR);
+                    putFixedWidth(value, scalarWidth);
+                } else {
+                    putByte(TAG_BIGINT);
+                    putLengthPrefixed(value.toByteArray());
+                }
+            } else if (repr instanceof ByteArrayRepresentation) {
+                putByte(TAG_BYTES);
+                putLengthPrefixed(((ByteArrayRepresentation) repr).get());
+            } else if (repr instanceof StringRepresentation) {
+                String value = ((StringRepresentation) repr).get();
+                if (isNumericString(value)) {
+                    putByte(TAG_NUMERIC_STRING);
+                    String[] numbers = value.split(" ");
+                    putVarint(numbers.length);
+                    for (String number : numbers) {
+                        byte[] magnitude = new BigInteger(number).toByteArray();
+                        //toByteArray() may add a leading zero byte for the sign, which we don't need
+                        int offset = magnitude.length > 1 && magnitude[0] == 0 ? 1 : 0;
+                        putVarint(magnitude.length - offset);
+                        putBytes(magnitude, offset, magnitude.length - offset);
+                    }
+                } else {
+                    putByte(TAG_STRING);
+                    putLengthPrefixed(value.getBytes(StandardCharsets.UTF_8));
+                }
+            } else if (repr instanceof ListRepresentation) {
+                List<Representation> list = ((ListRepresentation) repr).getList();
+                putByte(TAG_LIST);
+                putVarint(list.size());
+                for (Representation element : list)
+                    write(element);
+            } else if (repr instanceof ObjectRepresentation) {
+                ObjectRepresentation obj = (ObjectRepresentation) repr;
+                putByte(TAG_OBJECT);
+                putVarint(obj.getKeys().size());
+                for (String key : obj.getKeys()) {
+                    putKey(key);
+                    write(obj.get(key));
+                }
+            } else if (repr instanceof RepresentableRepresentation) {
+                RepresentableRepresentation representable = (RepresentableRepresentation) repr;
+                putByte(TAG_REPRESENTABLE);
+                putKey(representable.getRepresentedTypeName());
+                write(representable.getRepresentation());
+            } else {
+                throw new IllegalArgumentException("Unsupported representation type " + repr.getClass().getName());
+            }
+        }
+
+        /**
+         * Keys (and type names) are written once per frame; later occurrences refer to the index of the first one.
+         */
+        private void putKey(String key) {
+            Integer index = keyIndices.get(key);
+            if (index != null) {
+                putVarint(index + 1);
+            } else {
+                putVarint(0);
+                putLengthPrefixed(key.getBytes(StandardCharsets.UTF_8));
+                keyIndices.put(key, keyIndices.size());
+            }
+        }
+
+        private void putFixedWidth(BigInteger value, int width) {
+            byte[] bytes = value.toByteArray();
+            int significant = Math.min(bytes.length, width);
+            for (int i = significant; i < width; i++)
+                putByte((byte) 0);
+            putBytes(bytes, bytes.length - significant, significant);
+        }
+
+        private void putLengthPrefixed(byte[] bytes) {
+            putVarint(bytes.length);
+            putBytes(bytes, 0, bytes.length);
+        }
+
+        private void putVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                putByte((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            putByte((byte) value);
+        }
+
+        private void putByte(byte value) {
+            if (buffer != null)
+                buffer.put(value);
+            length++;
+        }
+
+        private void putBytes(byte[] bytes, int offset, int count) {
+            if (buffer != null)
+                buffer.put(bytes, offset, count);
+            length += count;
+        }
+    }
+
+    private class Decoder {
+        private final ByteBuffer buffer;
+        private final List<String> keys = new ArrayList<>();
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Reads a value nested in depth lists/objects/representables.
+         */
+        Representation read(int depth) {
+            if (depth > MAX_DEPTH)
+                throw new IllegalArgumentException("Frame nested too deeply");
+            byte tag = buffer.get();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_SCALAR:
+                    return new BigIntegerRepresentation(new BigInteger(1, getBytes(scalarWidth)));
+                case TAG_BIGINT:
+                    return new BigIntegerRepresentation(new BigInteger(getLengthPrefixed()));
+                case TAG_BYTES:
+                    return new ByteArrayRepresentation(getLengthPrefixed());
+                case TAG_STRING:
+                    return new StringRepresentation(new String(getLengthPrefixed(), StandardCharsets.UTF_8));
+                case TAG_NUMERIC_STRING: {
+                    int count = getCount();
+                    StringBuilder result = new StringBuilder();
+                    for (int i = 0; i < count; i++) {
+                        if (i > 0)
+                            result.append(' ');
+                        result.append(new BigInteger(1, getLengthPrefixed()).toString());
+                    }
+                    return new StringRepresentation(result.toString());
+                }
+                case TAG_LIST: {
+                    int size = getCount();
+                    List<Representation> list = new ArrayList<>();
+                    for (int i = 0; i < size; i++)
+                        list.add(read(depth + 1));
+                    return new ListRepresentation(list);
+                }
+                case TAG_OBJECT: {
+                    int size = getCount();
+                    ObjectRepresentation obj = new ObjectRepresentation();
+                    for (int i = 0; i < size; i++) {
+                        String key = getKey();
+                        obj.put(key, read(depth + 1));
+                    }
+                    return obj;
+                }
+                case TAG_REPRESENTABLE: {
+                    String typeName = getKey();
+                    return new RepresentableRepresentation(typeName, read(depth + 1));
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown tag " + tag);
+            }
+        }
+
+        private String getKey() {
+            int reference = getVarint();
+            if (reference > 0) {
+                if (reference > keys.size())
+                    throw new IllegalArgumentException("Invalid key reference");
+                return keys.get(reference - 1);
+            }
+            String key = new String(getLengthPrefixed(), StandardCharsets.UTF_8);
+            keys.add(key);
+            return key;
+        }
+
+        /**
+         * Reads the number of entries of a list, object or numeric string. Each entry takes at least one byte,
+         * so a count larger than what is left of the frame cannot be genuine.
+         */
+        private int getCount() {
+            int count = getVarint();
+            if (count < 0 || count > buffer.remaining())
+                throw new IllegalArgumentException("Truncated frame");
+            return count;
+        }
+
+        private byte[] getLengthPrefixed() {
+            return getBytes(getVarint());
+        }
+
+        private byte[] getBytes(int count) {
+            if (count < 0 || count > buffer.remaining())
+                throw new IllegalArgumentException("Truncated frame");
+            byte[] result = new byte[count];
+            buffer.get(result);
+            return result;
+        }
+
+        private int getVarint() {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return result;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+
+    /**
+     * Checks whether value is a sequence of canonical (no leading zeros) non-negative decimal numbers,
+     * separated by single spaces, so that it can be reconstructed exactly from the numbers.
+     */
+    private static boolean isNumericString(String value) {
+        if (value.isEmpty())
+            return false;
+        boolean atNumberStart = true;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == ' ') {
+                if (atNumberStart)
+                    return false;
+                atNumberStart = true;
+            } else if (ch >= '0' && ch <= '9') {
+                boolean nextIsDigit = i + 1 < value.length() && value.charAt(i + 1) != ' ';
+                if (atNumberStart && ch == '0' && nextIsDigit)
+                    return false; //leading zero
+                atNumberStart = false;
+            } else {
+                return false;
+            }
+        }
+        return !atNumberStart;
+    }
+}
@@ -18,6 +18,8 @@ public class Benchmark {
     UacsIncentiveSystem incentiveSystem;
     KeyPair<GroupElement, Zn.ZnElement> userKey;
     SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey;
+    PreparedIssuerKey preparedIssuerKey;
+    boolean deferredEvaluation = false;
 
     Token token;
 
@@ -27,6 +29,7 @@ public class Benchmark {
     public void setup(BilinearGroup bilinearGroup) {
         incentiveSystem = new UacsIncentiveSystem(bilinearGroup);
         issuerKey = incentiveSystem.issuerKeyGen();
+        preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
         userKey = incentiveSystem.keyGen();
         try {
             Thread.sleep(1000);
@@ -39,14 +42,16 @@ public class Benchmark {
         //Set up user
         countTowards(true);
         startStopwatch();
-        IssueJoinProtocol protocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinProtocol protocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+        protocol.setDeferredEvaluation(deferredEvaluation);
         IssueJoinProtocol.IssueJoinProtocolInstance userInstance = protocol.instantiateUser(userKey.pk, userKey.sk);
         addTimeToUser();
 
         //Set up provider
         countTowards(false);
         startStopwatch();
-        IssueJoinProtocol protocol2 = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinProtocol protocol2 = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+        protocol2.setDeferredEvaluation(deferredEvaluation);
         IssueJoinProtocol.IssueJoinProtocolInstance providerInstance = protocol2.instantiateProvider(userKey.pk, issuerKey.getSigningKey());
         addTimeToProvider();
 
@@ -64,14 +69,14 @@ public class Benchmark {
         //Set up user
         countTowards(true);
         startStopwatch();
-        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
         CreditEarnProtocol.CreditEarnProtocolInstance earnUserInstance = earnProtocol.instantiateUser(k, token);
         addTimeToUser();
 
         //Set up provider
         countTowards(false);
         startStopwatch();
-        CreditEarnProtocol earnProtocol2 = new CreditEarnProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        CreditEarnProtocol earnProtocol2 = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
         CreditEarnProtocol.CreditEarnProtocolInstance earnProviderInstance = earnProtocol2.instantiateProvider(k, issuerKey.getSigningKey());
         addTimeToProvider();
 
@@ -88,13 +93,15 @@ public class Benchmark {
         //Set up user
         countTowards(true);
         startStopwatch();
-        SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+        spendProtocol.setDeferredEvaluation(deferredEvaluation);
         SpendDeductProtocol.SpendDeductProtocolInstance spendUserInstance = spendProtocol.instantiateUser(k, token);
         addTimeToUser();
 
         countTowards(false);
         startStopwatch();
-        SpendDeductProtocol spendProtocol2 = new SpendDeductProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        SpendDeductProtocol spendProtocol2 = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+        spendProtocol2.setDeferredEvaluation(deferredEvaluation);
         SpendDeductProtocol.SpendDeductProtocolInstance spendProviderInstance = spendProtocol2.instantiateProvider(k, token.dsid, issuerKey.getSigningKey());
         addTimeToProvider();
 
@@ -231,5 +238,35 @@ public class Benchmark {
             e.printStackTrace();
         }
 
+        //Count ops again with intermediates left unevaluated until forced (Earn has none, so it is the same)
+        try {
+            Benchmark benchmark = new Benchmark();
+            DebugBilinearGroup bilinearGroup = new DebugBilinearGroup(new MclBilinearGroup().size(), BilinearGroup.Type.TYPE_3);
+            benchmark.setup(bilinearGroup);
+            benchmark.deferredEvaluation = true;
+
+            bilinearGroup.resetCounters("user");
+            bilinearGroup.resetCounters("provider");
+            benchmark.join();
+            System.out.println("Join User (deferred)");
+            System.out.println(bilinearGroup.formatCounterData("user"));
+            System.out.println();
+            System.out.println("Join Provider (deferred)");
+            System.out.println(bilinearGroup.formatCounterData("provider"));
+            System.out.println();
+
+            bilinearGroup.resetCounters("user");
+            bilinearGroup.resetCounters("provider");
+            benchmark.spend(30);
+            System.out.println("Spend User (deferred)");
+            System.out.println(bilinearGroup.formatCounterData("user"));
+            System.out.println();
+            System.out.println("Spend Provider (deferred)");
+            System.out.println(bilinearGroup.formatCounterData("provider"));
+            System.out.println();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
     }
 }
@@ -0,0 +1,139 @@
+package prototype;
+
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendShard;
+import org.cryptimeleon.uacs.doublespending.LocalDoubleSpendCluster;
+import org.cryptimeleon.uacs.doublespending.ShardedDoubleSpendService;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class DoubleSpendClusterTest {
+    static UacsIncentiveSystem incentiveSystem;
+    static DoubleSpendTag tag;
+
+    @BeforeClass
+    public static void setup() {
+        incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        tag = new DoubleSpendTag(incentiveSystem.zp.getUniformlyRandomElement(), incentiveSystem.zp.getUniformlyRandomElement(),
+                incentiveSystem.group.getG1().getUniformlyRandomElement(), incentiveSystem.group.getG1().getUniformlyRandomElement());
+    }
+
+    @Test
+    public void shardsAndRebalances() throws IOException {
+        Path directory = Files.createTempDirectory("dscluster");
+        List<Zn.ZnElement> dsids = new ArrayList<>();
+
+        try (LocalDoubleSpendCluster cluster = new LocalDoubleSpendCluster(incentiveSystem, directory, 3, 64)) {
+            ShardedDoubleSpendService service = cluster.getService();
+            List<CompletableFuture<DoubleSpendTag>> results = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                dsids.add(incentiveSystem.zp.getUniformlyRandomElement());
+                results.add(service.addEntry(dsids.get(i), tag));
+            }
+            for (CompletableFuture<DoubleSpendTag> result : results)
+                assertNull(result.join());
+
+            //Every dsid is on the node that owns it, and all nodes got a fair share
+            Map<Zn.ZnElement, String> owners = new HashMap<>();
+            for (Zn.ZnElement dsid : dsids) {
+                String node = service.nodeFor(dsid);
+                assertTrue(cluster.getShard(node).containsDsid(dsid));
+                owners.put(dsid, node);
+            }
+            for (DoubleSpendShard shard : cluster.getShards().values()) {
+                assertTrue(shard.size() > 500);
+                assertTrue(shard.getCommits() <= shard.getCommittedEntries());
+            }
+
+            //Double-spending is detected through the router
+            assertNotNull(service.addEntry(dsids.get(7), tag).join());
+
+            //A new node takes over part of the ring, without losing anything
+            DoubleSpendTag secondTag = new DoubleSpendTag(incentiveSystem.zp.getUniformlyRandomElement(), incentiveSystem.zp.getUniformlyRandomElement(),
+                    incentiveSystem.group.getG1().getUniformlyRandomElement(), incentiveSystem.group.getG1().getUniformlyRandomElement());
+            for (int i = 100; i < 400; i++)
+                assertNotNull(service.addEntry(dsids.get(i), secondTag).join());
+            String added = cluster.addNode();
+            assertTrue(cluster.getShard(added).size() > 0);
+
+            //Both tags of a double-spent dsid moved with it
+            Map<Zn.ZnElement, Integer> records = new HashMap<>();
+            cluster.getShard(added).forEachRecordSince(0, (dsid, t) -> records.merge(dsid, 1, Integer::sum));
+            int movedDoubleSpendings = 0;
+            for (int i = 100; i < 400; i++) {
+                if (service.nodeFor(dsids.get(i)).equals(added)) {
+                    assertEquals(Integer.valueOf(2), records.get(dsids.get(i)));
+                    movedDoubleSpendings++;
+                }
+            }
+            assertTrue(movedDoubleSpendings > 0);
+            for (Zn.ZnElement dsid : dsids)
+                assertTrue(service.containsDsid(dsid));
+            assertNotNull(service.addEntry(dsids.get(8), tag).join());
+
+            //Only dsids in the new node's segments moved
+            for (Zn.ZnElement dsid : dsids) {
+                String node = service.nodeFor(dsid);
+                assertTrue(node.equals(added) || node.equals(owners.get(dsid)));
+            }
+
+            //Entries added while a node is removed end up on their owner
+            List<Zn.ZnElement> concurrentDsids = new ArrayList<>();
+            for (int i = 0; i < 500; i++)
+                concurrentDsids.add(incentiveSystem.zp.getUniformlyRandomElement());
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                for (Zn.ZnElement dsid : concurrentDsids)
+                    assertNull(service.addEntry(dsid, tag).join());
+            });
+            cluster.removeNode("node-0");
+            writer.join();
+            for (Zn.ZnElement dsid : dsids)
+                assertTrue(service.containsDsid(dsid));
+            for (Zn.ZnElement dsid : concurrentDsids)
+                assertTrue(service.containsDsid(dsid));
+            assertFalse(service.containsDsid(incentiveSystem.zp.getUniformlyRandomElement()));
+        }
+    }
+
+    @Test
+    public void rebalancesDoubleSpendingsRepeatedly() throws IOException {
+        Path directory = Files.createTempDirectory("dscluster");
+        List<Zn.ZnElement> dsids = new ArrayList<>();
+
+        try (LocalDoubleSpendCluster cluster = new LocalDoubleSpendCluster(incentiveSystem, directory, 3, 64)) {
+            ShardedDoubleSpendService service = cluster.getService();
+            DoubleSpendTag secondTag = new DoubleSpendTag(incentiveSystem.zp.getUniformlyRandomElement(), incentiveSystem.zp.getUniformlyRandomElement(),
+                    incentiveSystem.group.getG1().getUniformlyRandomElement(), incentiveSystem.group.getG1().getUniformlyRandomElement());
+            for (int i = 0; i < 300; i++) {
+                dsids.add(incentiveSystem.zp.getUniformlyRandomElement());
+                assertNull(service.addEntry(dsids.get(i), tag).join());
+                assertNotNull(service.addEntry(dsids.get(i), secondTag).join());
+            }
+
+            //The dsids moved to the added node move back to their old owners, which still have both tags
+            String added = cluster.addNode();
+            cluster.removeNode(added);
+            cluster.addNode();
+            for (Zn.ZnElement dsid : dsids) {
+                List<DoubleSpendTag> tags = cluster.getShard(service.nodeFor(dsid)).getTags(dsid);
+                assertEquals(2, tags.size());
+                assertEquals(tag.gamma, tags.get(0).gamma);
+                assertEquals(secondTag.gamma, tags.get(1).gamma);
+            }
+        }
+    }
+}
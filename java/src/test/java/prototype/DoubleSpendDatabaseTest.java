@@ -0,0 +1,140 @@
+package prototype;
+
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.DoubleSpendTag;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+import org.cryptimeleon.uacs.doublespending.BlockedBloomFilter;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendDatabase;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DoubleSpendDatabaseTest {
+    static UacsIncentiveSystem incentiveSystem;
+
+    @BeforeClass
+    public static void setup() {
+        incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+    }
+
+    private DoubleSpendTag randomTag() {
+        return new DoubleSpendTag(incentiveSystem.zp.getUniformlyRandomElement(), incentiveSystem.zp.getUniformlyRandomElement(),
+                incentiveSystem.group.getG1().getUniformlyRandomElement(), incentiveSystem.group.getG1().getUniformlyRandomElement());
+    }
+
+    @Test
+    public void detectsDoubleSpendingAndRecovers() throws IOException {
+        Path file = Files.createTempFile("dsdb", ".seg");
+        List<Zn.ZnElement> dsids = new ArrayList<>();
+        List<DoubleSpendTag> tags = new ArrayList<>();
+
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file)) {
+            for (int i = 0; i < 3000; i++) {
+                dsids.add(incentiveSystem.zp.getUniformlyRandomElement());
+                tags.add(randomTag());
+                assertNull(db.addEntry(dsids.get(i), tags.get(i)));
+            }
+            assertEquals(3000, db.size());
+            assertTrue(db.containsDsid(dsids.get(42)));
+            assertFalse(db.containsDsid(incentiveSystem.zp.getUniformlyRandomElement()));
+
+            //Double-spending returns the first tag
+            DoubleSpendTag previous = db.addEntry(dsids.get(7), randomTag());
+            assertEquals(tags.get(7).c, previous.c);
+            assertEquals(tags.get(7).ctrace1, previous.ctrace1);
+            assertEquals(3000, db.size());
+        }
+
+        //Simulate a torn write at the end of the segment
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 42}));
+        }
+
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file)) {
+            assertEquals(3000, db.size());
+            for (int i = 0; i < dsids.size(); i += 100)
+                assertEquals(tags.get(i).gamma, db.getTag(dsids.get(i)).gamma);
+            assertNull(db.getTag(incentiveSystem.zp.getUniformlyRandomElement()));
+            assertNull(db.addEntry(incentiveSystem.zp.getUniformlyRandomElement(), randomTag()));
+        }
+
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file)) {
+            assertEquals(3001, db.size());
+        }
+        Files.delete(file);
+    }
+
+    @Test(timeout = 60000)
+    public void forEachConsumerMayAddEntries() throws IOException {
+        Path file = Files.createTempFile("dsdb", ".seg");
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file)) {
+            for (int i = 0; i < 500; i++)
+                db.addEntry(incentiveSystem.zp.getUniformlyRandomElement(), randomTag());
+
+            //Re-adding each dsid write-locks the stripe that is being iterated
+            List<DoubleSpendTag> previous = new ArrayList<>();
+            db.forEach((dsid, tag) -> previous.add(db.addEntry(dsid, randomTag())));
+            assertEquals(500, previous.size());
+            assertFalse(previous.contains(null));
+            assertEquals(500, db.size());
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void bloomFilter() {
+        BlockedBloomFilter filter = new BlockedBloomFilter(100000);
+        Random random = new Random(1);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            keys.add(key);
+            filter.add(key);
+        }
+        for (byte[] key : keys)
+            assertTrue(filter.mightContain(key));
+
+        int falsePositives = 0;
+        byte[] fresh = new byte[32];
+        for (int i = 0; i < 100000; i++) {
+            random.nextBytes(fresh);
+            if (filter.mightContain(fresh))
+                falsePositives++;
+        }
+        assertTrue("false-positive rate " + falsePositives / 1000.0 + "%", falsePositives < 1000);
+    }
+
+    @Test
+    public void lookupsPastFilterCapacity() throws IOException {
+        Path file = Files.createTempFile("dsdb", ".seg");
+        List<Zn.ZnElement> dsids = new ArrayList<>();
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file, 100)) {
+            for (int i = 0; i < 1000; i++) {
+                dsids.add(incentiveSystem.zp.getUniformlyRandomElement());
+                db.addEntry(dsids.get(i), randomTag());
+            }
+            for (Zn.ZnElement dsid : dsids)
+                assertTrue(db.containsDsid(dsid));
+            assertEquals(100, db.getFilterCapacity()); //does not grow while open
+        }
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file, 100)) { //filter rebuilt from the log
+            assertEquals(2000, db.getFilterCapacity());
+            for (Zn.ZnElement dsid : dsids)
+                assertTrue(db.containsDsid(dsid));
+            assertFalse(db.containsDsid(incentiveSystem.zp.getUniformlyRandomElement()));
+        }
+        Files.delete(file);
+    }
+}
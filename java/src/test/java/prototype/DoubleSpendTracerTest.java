@@ -0,0 +1,91 @@
+package prototype;
+
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendDatabase;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendTracer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DoubleSpendTracerTest {
+    UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+    SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+    KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+    SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, issuerKey.getVerificationKey());
+    DoubleSpendTag lastTag, previousTag;
+
+    private Token issueToken() {
+        IssueJoinProtocol protocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinProtocol.IssueJoinProtocolInstance userInstance = protocol.instantiateUser(userKey.pk, userKey.sk);
+        protocol.runProtocolLocally(userInstance, protocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+
+        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        CreditEarnProtocol.CreditEarnProtocolInstance earnUserInstance = earnProtocol.instantiateUser(10, userInstance.getUserResult());
+        earnProtocol.runProtocolLocally(earnUserInstance, earnProtocol.instantiateProvider(10, issuerKey.getSigningKey()));
+        return earnUserInstance.getUserResult();
+    }
+
+    /**
+     * Spends token, records the tag in db and returns the new token.
+     */
+    private Token spend(Token token, DoubleSpendDatabase db) {
+        SpendDeductProtocol.SpendDeductProtocolInstance userInstance = spendProtocol.instantiateUser(1, token);
+        SpendDeductProtocol.SpendDeductProtocolInstance providerInstance = spendProtocol.instantiateProvider(1, token.dsid, issuerKey.getSigningKey());
+        spendProtocol.runProtocolLocally(userInstance, providerInstance);
+        lastTag = providerInstance.getProviderResult();
+        previousTag = db.addEntry(token.dsid, lastTag);
+        return userInstance.getUserResult();
+    }
+
+    @Test
+    public void tracesDoubleSpender() throws IOException {
+        Path file = Files.createTempFile("dsdb", ".seg");
+        try (DoubleSpendDatabase db = new DoubleSpendDatabase(incentiveSystem, file)) {
+            Token token0 = issueToken();
+
+            Token token1 = spend(token0, db);
+            assertNull(previousTag);
+            Token token2 = spend(token1, db);
+            assertNull(previousTag);
+            Token token1Prime = spend(token0, db); //double-spending
+            assertNotNull(previousTag);
+
+            DoubleSpendTracer tracer = new DoubleSpendTracer(incentiveSystem, db);
+            DoubleSpendTracer.DoubleSpendCase doubleSpendCase = new DoubleSpendTracer.DoubleSpendCase(token0.dsid, previousTag, lastTag);
+
+            //A case with two copies of the same tag cannot be traced, but does not stop the other one
+            DoubleSpendTracer.DoubleSpendCase untraceable = new DoubleSpendTracer.DoubleSpendCase(token0.dsid, lastTag, lastTag);
+            List<DoubleSpendTracer.TraceResult> results = tracer.traceAll(Arrays.asList(doubleSpendCase, untraceable));
+            DoubleSpendTracer.TraceResult result = results.get(0);
+            assertTrue(result.isSuccessful());
+            assertEquals(userKey.sk, result.usk);
+            assertEquals(userKey.pk, result.upk);
+            assertTrue(result.spentDsids.contains(token1.dsid));
+            assertTrue(result.tracedPublicDsids.contains(incentiveSystem.w.pow(token2.dsid).compute()));
+            assertTrue(result.tracedPublicDsids.contains(incentiveSystem.w.pow(token1Prime.dsid).compute()));
+            assertFalse(results.get(1).isSuccessful());
+            assertTrue(results.get(1).failure instanceof IllegalArgumentException);
+
+            //Records added after the first refresh are picked up by the next one
+            spend(token2, db);
+            spend(token1Prime, db);
+            result = tracer.traceAll(Collections.singletonList(doubleSpendCase)).get(0);
+            assertTrue(result.spentDsids.contains(token2.dsid));
+            assertTrue(result.spentDsids.contains(token1Prime.dsid));
+        }
+        Files.delete(file);
+    }
+}
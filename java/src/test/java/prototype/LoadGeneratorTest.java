@@ -0,0 +1,55 @@
+package prototype;
+
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.UacsIncentiveSystem;
+import org.cryptimeleon.uacs.loadgen.LatencyHistogram;
+import org.cryptimeleon.uacs.loadgen.LoadGenerator;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++)
+            histogram.record(i * 1000);
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000500, histogram.getMean(), 1);
+        for (double percentile : new double[] {10, 50, 99, 99.9}) {
+            double expected = percentile * 1000000;
+            assertEquals(expected, histogram.getValueAtPercentile(percentile), expected * 0.01);
+        }
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(3);
+        assertEquals(3, small.getValueAtPercentile(50));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void shortInProcessRun() throws Exception {
+        LoadGenerator.Config config = LoadGenerator.Config.parse(new String[] {"--users=2", "--duration=2", "--warmup=0"});
+        UacsIncentiveSystem pp = new UacsIncentiveSystem(new MclBilinearGroup());
+        LoadGenerator.Report report = new LoadGenerator(config).run(pp, pp.issuerKeyGen());
+
+        long sessions = 0;
+        for (String protocol : LoadGenerator.PROTOCOLS) {
+            assertEquals(0, report.errors.get(protocol).sum());
+            LatencyHistogram session = report.latencies.get(protocol).get("session");
+            assertEquals(session.getCount(), report.latencies.get(protocol).get("user").getCount());
+            assertTrue(session.getValueAtPercentile(50) <= session.getValueAtPercentile(99));
+            sessions += session.getCount();
+        }
+        assertTrue(sessions > 0);
+
+        StringWriter json = new StringWriter();
+        report.writeJson(json, config);
+        assertTrue(json.toString().contains("\"p999\""));
+    }
+}
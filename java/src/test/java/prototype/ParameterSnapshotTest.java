@@ -0,0 +1,49 @@
+package prototype;
+
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ParameterSnapshotTest {
+    @Test
+    public void loadedParametersRunProtocols() throws Exception {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        Path file = Files.createTempFile("uacs", ".snapshot");
+        try {
+            ParameterSnapshot.write(file, incentiveSystem, issuerKey.getVerificationKey());
+            ParameterSnapshot snapshot = ParameterSnapshot.load(file);
+            assertEquals(incentiveSystem.getRepresentation(), snapshot.pp.getRepresentation());
+            assertEquals(issuerKey.getVerificationKey(), snapshot.pk);
+
+            //provider on the loaded parameters, user on the original ones
+            KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+            IssueJoinProtocol userProtocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+            IssueJoinProtocol providerProtocol = new IssueJoinProtocol(snapshot.pp, snapshot.prepareIssuerKey());
+            IssueJoinProtocol.IssueJoinProtocolInstance user = userProtocol.instantiateUser(userKey.pk, userKey.sk);
+            GroupElement upk = snapshot.pp.group.getG1().restoreElement(userKey.pk.getRepresentation());
+            userProtocol.runProtocolLocally(user, providerProtocol.instantiateProvider(upk, issuerKey.getSigningKey()));
+            assertTrue(snapshot.pp.verifyToken(user.getUserResult(), snapshot.pk));
+
+            Files.write(file, new byte[] {'U', 'S', 99, 32});
+            try {
+                ParameterSnapshot.load(file);
+                fail("Unknown version should be rejected");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
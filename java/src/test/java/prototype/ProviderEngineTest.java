@@ -0,0 +1,153 @@
+package prototype;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.doublespending.DoubleSpendTracer;
+import org.cryptimeleon.uacs.provider.ProviderEngine;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ProviderEngineTest {
+    UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+    SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+    PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+
+    /**
+     * Runs the user side against the engine until the user terminates.
+     */
+    private void runAgainstEngine(ProviderEngine engine, String sessionId, TwoPartyProtocolInstance user) throws ExecutionException, InterruptedException {
+        Representation message = user.nextMessage(null);
+        while (!user.hasTerminated())
+            message = user.nextMessage(engine.handle(sessionId, message).get());
+    }
+
+    @Test
+    public void runsConcurrentSessions() throws Exception {
+        int clients = 8, spendsPerClient = 3;
+        ConcurrentHashMap<Zn.ZnElement, DoubleSpendTag> tags = new ConcurrentHashMap<>();
+        ExecutorService clientThreads = Executors.newFixedThreadPool(clients);
+
+        try (ProviderEngine engine = new ProviderEngine(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 10000);
+             ProviderPrecomputationPool pool = new ProviderPrecomputationPool(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 16)) {
+            engine.setPrecomputationPool(pool);
+            engine.setDoubleSpendTagSink(tags::putIfAbsent);
+
+            long start = System.nanoTime();
+            List<Future<Token>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                String client = "client" + i;
+                results.add(clientThreads.submit(() -> {
+                    KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+
+                    IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+                    IssueJoinProtocol.IssueJoinProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk);
+                    engine.openIssue(client + "-issue", userKey.pk);
+                    runAgainstEngine(engine, client + "-issue", issueUser);
+
+                    CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+                    CreditEarnProtocol.CreditEarnProtocolInstance earnUser = earnProtocol.instantiateUser(10, issueUser.getUserResult());
+                    engine.openEarn(client + "-earn", 10);
+                    runAgainstEngine(engine, client + "-earn", earnUser);
+                    Token token = earnUser.getUserResult();
+
+                    SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+                    for (int j = 0; j < spendsPerClient; j++) {
+                        SpendDeductProtocol.SpendDeductProtocolInstance spendUser = spendProtocol.instantiateUser(2, token);
+                        engine.openSpend(client + "-spend" + j, 2, token.dsid);
+                        runAgainstEngine(engine, client + "-spend" + j, spendUser);
+                        token = spendUser.getUserResult();
+                    }
+                    return token;
+                }));
+            }
+
+            for (Future<Token> result : results) {
+                Token token = result.get();
+                assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+                assertEquals(incentiveSystem.zp.valueOf(10 - 2 * spendsPerClient), token.v);
+            }
+            long sessions = clients * (2 + spendsPerClient);
+            System.out.printf("%d sessions in %d ms%n", sessions, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            assertEquals(sessions, engine.getCompletedSessions());
+            assertEquals(0, engine.getOpenSessions());
+            assertEquals(clients * spendsPerClient, tags.size());
+            assertEquals(0, engine.getDoubleSpendings());
+        } finally {
+            clientThreads.shutdown();
+        }
+    }
+
+    @Test
+    public void refusesAndReportsDoubleSpending() throws Exception {
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+        ConcurrentHashMap<Zn.ZnElement, DoubleSpendTag> tags = new ConcurrentHashMap<>();
+        List<DoubleSpendTracer.DoubleSpendCase> cases = new CopyOnWriteArrayList<>();
+
+        try (ProviderEngine engine = new ProviderEngine(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 10000)) {
+            engine.setDoubleSpendTagSink(tags::putIfAbsent);
+            engine.setDoubleSpendListener(cases::add);
+
+            IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+            IssueJoinProtocol.IssueJoinProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk);
+            engine.openIssue("issue", userKey.pk);
+            runAgainstEngine(engine, "issue", issueUser);
+            CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+            CreditEarnProtocol.CreditEarnProtocolInstance earnUser = earnProtocol.instantiateUser(10, issueUser.getUserResult());
+            engine.openEarn("earn", 10);
+            runAgainstEngine(engine, "earn", earnUser);
+            Token token = earnUser.getUserResult();
+
+            SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+            engine.openSpend("spend", 2, token.dsid);
+            runAgainstEngine(engine, "spend", spendProtocol.instantiateUser(2, token));
+
+            engine.openSpend("double-spend", 2, token.dsid);
+            try {
+                runAgainstEngine(engine, "double-spend", spendProtocol.instantiateUser(2, token));
+                fail("Double-spending should be refused");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+
+            assertEquals(1, engine.getDoubleSpendings());
+            assertEquals(1, engine.getFailedSessions());
+            assertEquals(1, cases.size());
+            assertEquals(token.dsid, cases.get(0).dsid);
+            assertSame(tags.get(token.dsid), cases.get(0).tag0);
+            assertNotEquals(cases.get(0).tag0.gamma, cases.get(0).tag1.gamma);
+        }
+    }
+
+    @Test
+    public void evictsIdleSessions() throws Exception {
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+        try (ProviderEngine engine = new ProviderEngine(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 2, 16, 50, 10)) {
+            engine.openIssue("idle", userKey.pk);
+            assertEquals(1, engine.getOpenSessions());
+            Thread.sleep(300);
+            assertEquals(0, engine.getOpenSessions());
+            assertEquals(1, engine.getEvictedSessions());
+
+            IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+            try {
+                engine.handle("idle", issueProtocol.instantiateUser(userKey.pk, userKey.sk).nextMessage(null)).get();
+                fail("Expired session should be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+}
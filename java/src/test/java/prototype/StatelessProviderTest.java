@@ -0,0 +1,131 @@
+package prototype;
+
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.Representation;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.provider.InMemoryReplayGuard;
+import org.cryptimeleon.uacs.provider.ReplayGuard;
+import org.cryptimeleon.uacs.provider.SessionStateSealer;
+import org.cryptimeleon.uacs.provider.StatelessProvider;
+import org.cryptimeleon.uacs.transport.WireCodec;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.*;
+
+public class StatelessProviderTest {
+    UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+    SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+    KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+    PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+    SecretKey sealingKey = SessionStateSealer.generateKey();
+    ReplayGuard replayGuard = new InMemoryReplayGuard();
+
+    /**
+     * An in-process provider node. Nodes only share the issuer key, the sealing key and the replay guard.
+     */
+    private StatelessProvider newNode() {
+        UacsIncentiveSystem nodeSystem = new UacsIncentiveSystem(incentiveSystem.getRepresentation());
+        SessionStateSealer sealer = new SessionStateSealer(sealingKey, new WireCodec(nodeSystem.zp), 60000, replayGuard);
+        return new StatelessProvider(nodeSystem, new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey()), issuerKey.getSigningKey(), sealer);
+    }
+
+    @Test
+    public void roundRobinAcrossNodes() {
+        StatelessProvider[] nodes = {newNode(), newNode(), newNode()};
+        int requests = 0;
+        byte[] sessionId = {1};
+
+        //Issue: first message to one node, second to another
+        IssueJoinFiatShamirProtocol issueProtocol = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk, sessionId);
+        StatelessProvider.Reply issueReply = nodes[requests++ % nodes.length].startIssue(userKey.pk, sessionId, issueUser.nextMessage(null));
+        Representation issueResult = nodes[requests++ % nodes.length].finishIssue(sessionId, issueReply.sealedState, issueUser.nextMessage(issueReply.message));
+        issueUser.nextMessage(issueResult);
+        assertTrue(issueUser.hasTerminated());
+
+        //Earn
+        sessionId = new byte[] {2};
+        CreditEarnFiatShamirProtocol earnProtocol = new CreditEarnFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        CreditEarnFiatShamirProtocol.CreditEarnFiatShamirProtocolInstance earnUser = earnProtocol.instantiateUser(10, issueUser.getUserResult(), sessionId);
+        earnUser.nextMessage(nodes[requests++ % nodes.length].earn(10, sessionId, earnUser.nextMessage(null)));
+        Token token = earnUser.getUserResult();
+
+        //Spend
+        SpendDeductFiatShamirProtocol spendProtocol = new SpendDeductFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        for (int i = 0; i < 3; i++) {
+            sessionId = new byte[] {3, (byte) i};
+            SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance spendUser = spendProtocol.instantiateUser(3, token, sessionId);
+            StatelessProvider.Reply spendReply = nodes[requests++ % nodes.length].startSpend(3, token.dsid, sessionId, spendUser.nextMessage(null));
+            StatelessProvider.SpendResult spendResult = nodes[requests++ % nodes.length].finishSpend(sessionId, spendReply.sealedState, spendUser.nextMessage(spendReply.message));
+            spendUser.nextMessage(spendResult.message);
+
+            assertEquals(token.dsid, spendResult.dsid);
+            assertNotNull(spendResult.doubleSpendTag);
+            token = spendUser.getUserResult();
+            assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+        }
+        assertEquals(incentiveSystem.zp.valueOf(1), token.v);
+    }
+
+    @Test
+    public void rejectsTamperedOrForeignState() {
+        StatelessProvider node = newNode();
+        byte[] sessionId = {1};
+        IssueJoinFiatShamirProtocol issueProtocol = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk, sessionId);
+        StatelessProvider.Reply reply = node.startIssue(userKey.pk, sessionId, issueUser.nextMessage(null));
+        Representation secondMessage = issueUser.nextMessage(reply.message);
+
+        byte[] tampered = reply.sealedState.clone();
+        tampered[tampered.length - 1] ^= 1;
+        try {
+            node.finishIssue(sessionId, tampered, secondMessage);
+            fail("Tampered state should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        try {
+            node.finishIssue(new byte[] {2}, reply.sealedState, secondMessage);
+            fail("State of another session should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void rejectsReplayedSpendState() {
+        StatelessProvider[] nodes = {newNode(), newNode()};
+        IssueJoinFiatShamirProtocol issueProtocol = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk, new byte[] {1});
+        StatelessProvider.Reply issueReply = nodes[0].startIssue(userKey.pk, new byte[] {1}, issueUser.nextMessage(null));
+        issueUser.nextMessage(nodes[1].finishIssue(new byte[] {1}, issueReply.sealedState, issueUser.nextMessage(issueReply.message)));
+        CreditEarnFiatShamirProtocol earnProtocol = new CreditEarnFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        CreditEarnFiatShamirProtocol.CreditEarnFiatShamirProtocolInstance earnUser = earnProtocol.instantiateUser(10, issueUser.getUserResult(), new byte[] {2});
+        earnUser.nextMessage(nodes[0].earn(10, new byte[] {2}, earnUser.nextMessage(null)));
+        Token token = earnUser.getUserResult();
+
+        byte[] sessionId = {3};
+        SpendDeductFiatShamirProtocol spendProtocol = new SpendDeductFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance spendUser = spendProtocol.instantiateUser(3, token, sessionId);
+        StatelessProvider.Reply reply = nodes[0].startSpend(3, token.dsid, sessionId, spendUser.nextMessage(null));
+        Representation secondMessage = spendUser.nextMessage(reply.message);
+        assertNotNull(nodes[1].finishSpend(sessionId, reply.sealedState, secondMessage).doubleSpendTag);
+
+        //The same state at any node would produce a second tag with the same gamma
+        for (StatelessProvider node : nodes) {
+            try {
+                node.finishSpend(sessionId, reply.sealedState, secondMessage);
+                fail("Replayed state should be rejected");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
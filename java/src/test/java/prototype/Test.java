@@ -4,12 +4,26 @@ import org.cryptimeleon.craco.protocols.base.BaseProtocol;
 import org.cryptimeleon.craco.sig.SignatureKeyPair;
 import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
 import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.ListRepresentation;
+import org.cryptimeleon.math.serialization.ObjectRepresentation;
+import org.cryptimeleon.math.serialization.Representation;
 import org.cryptimeleon.math.structures.groups.GroupElement;
 import org.cryptimeleon.math.structures.groups.elliptic.type3.bn.BarretoNaehrigBilinearGroup;
 import org.cryptimeleon.math.structures.rings.zn.Zn;
 import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
 import org.cryptimeleon.uacs.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 public class Test {
     @org.junit.Test
     public void systemRun() {
@@ -41,4 +55,279 @@ public class Test {
         Token lastToken = spendUserInstance.getUserResult();
         DoubleSpendTag dstag = spendProviderInstance.getProviderResult();
     }
+
+    @org.junit.Test
+    public void systemRunFiatShamir() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+
+        //Keygen
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+        byte[] sessionId = new byte[] {1, 2, 3};
+
+        //IssueJoin
+        IssueJoinFiatShamirProtocol protocol = new IssueJoinFiatShamirProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance userInstance = protocol.instantiateUser(userKey.pk, userKey.sk, sessionId);
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance providerInstance = protocol.instantiateProvider(userKey.pk, sessionId, issuerKey.getSigningKey());
+        protocol.runProtocolLocally(userInstance, providerInstance);
+        Token token = userInstance.getUserResult();
+
+        //CreditEarn
+        CreditEarnFiatShamirProtocol earnProtocol = new CreditEarnFiatShamirProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        CreditEarnFiatShamirProtocol.CreditEarnFiatShamirProtocolInstance earnUserInstance = earnProtocol.instantiateUser(5, token, sessionId);
+        CreditEarnFiatShamirProtocol.CreditEarnFiatShamirProtocolInstance earnProviderInstance = earnProtocol.instantiateProvider(5, sessionId, issuerKey.getSigningKey());
+        earnProtocol.runProtocolLocally(earnUserInstance, earnProviderInstance);
+        Token updatedToken = earnUserInstance.getUserResult();
+
+        //Spend
+        SpendDeductFiatShamirProtocol spendProtocol = new SpendDeductFiatShamirProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance spendUserInstance = spendProtocol.instantiateUser(3, updatedToken, sessionId);
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance spendProviderInstance = spendProtocol.instantiateProvider(3, updatedToken.dsid, sessionId, issuerKey.getSigningKey());
+        spendProtocol.runProtocolLocally(spendUserInstance, spendProviderInstance);
+        assertEquals(updatedToken.v.sub(incentiveSystem.zp.valueOf(3)), spendUserInstance.getUserResult().v);
+        DoubleSpendTag dstag = spendProviderInstance.getProviderResult();
+    }
+
+    @org.junit.Test
+    public void batchVerifyTokens() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+
+        List<Token> tokens = new ArrayList<>();
+        IssueJoinProtocol protocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        for (int i = 0; i < 6; i++) {
+            IssueJoinProtocol.IssueJoinProtocolInstance userInstance = protocol.instantiateUser(userKey.pk, userKey.sk);
+            protocol.runProtocolLocally(userInstance, protocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+            tokens.add(userInstance.getUserResult());
+        }
+        assertTrue(incentiveSystem.verifyTokens(tokens, issuerKey.getVerificationKey()).isEmpty());
+
+        Token forged = tokens.get(4);
+        tokens.set(4, new Token(forged.usk, forged.dsid, forged.dsrnd, incentiveSystem.zp.valueOf(1000), forged.sig));
+        assertEquals(Collections.singletonList(tokens.get(4)), incentiveSystem.verifyTokens(tokens, issuerKey.getVerificationKey()));
+        assertFalse(incentiveSystem.verifyToken(tokens.get(4), issuerKey.getVerificationKey()));
+        assertTrue(incentiveSystem.verifyToken(tokens.get(0), issuerKey.getVerificationKey()));
+    }
+
+    @org.junit.Test
+    public void configurableRange() {
+        assertEquals(6, UacsIncentiveSystem.rangePowerFor(16, (1 << 24) - 1));
+        assertEquals(7, UacsIncentiveSystem.rangePowerFor(16, 1 << 24));
+
+        //balances below 2^24 in base 16
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup(), 16, 6);
+        incentiveSystem = new UacsIncentiveSystem(incentiveSystem.getRepresentation());
+        assertEquals(16, (int) incentiveSystem.rangeBase);
+        assertEquals(6, (int) incentiveSystem.rangePower);
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+
+        IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinProtocol.IssueJoinProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk);
+        issueProtocol.runProtocolLocally(issueUser, issueProtocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        CreditEarnProtocol.CreditEarnProtocolInstance earnUser = earnProtocol.instantiateUser(1000000, issueUser.getUserResult());
+        earnProtocol.runProtocolLocally(earnUser, earnProtocol.instantiateProvider(1000000, issuerKey.getSigningKey()));
+        SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        Token token = earnUser.getUserResult();
+        SpendDeductProtocol.SpendDeductProtocolInstance spendUser = spendProtocol.instantiateUser(999999, token);
+        spendProtocol.runProtocolLocally(spendUser, spendProtocol.instantiateProvider(999999, token.dsid, issuerKey.getSigningKey()));
+        assertEquals(incentiveSystem.zp.valueOf(1), spendUser.getUserResult().v);
+    }
+
+    @org.junit.Test
+    public void parallelSpendRound() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+
+        IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinProtocol.IssueJoinProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk);
+        issueProtocol.runProtocolLocally(issueUser, issueProtocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        CreditEarnProtocol.CreditEarnProtocolInstance earnUser = earnProtocol.instantiateUser(10, issueUser.getUserResult());
+        earnProtocol.runProtocolLocally(earnUser, earnProtocol.instantiateProvider(10, issuerKey.getSigningKey()));
+        Token token = earnUser.getUserResult();
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        try {
+            SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, issuerKey.getVerificationKey());
+            spendProtocol.setParallelism(forkJoinPool);
+            SpendDeductProtocol.SpendDeductProtocolInstance spendUser = spendProtocol.instantiateUser(3, token);
+            spendProtocol.runProtocolLocally(spendUser, spendProtocol.instantiateProvider(3, token.dsid, issuerKey.getSigningKey()));
+            assertEquals(incentiveSystem.zp.valueOf(7), spendUser.getUserResult().v);
+
+            SpendDeductFiatShamirProtocol fiatShamirProtocol = new SpendDeductFiatShamirProtocol(incentiveSystem, new PreparedIssuerKey(issuerKey.getVerificationKey()));
+            fiatShamirProtocol.setParallelism(forkJoinPool);
+            byte[] sessionId = {1};
+            SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance fiatShamirUser = fiatShamirProtocol.instantiateUser(3, token, sessionId);
+            fiatShamirProtocol.runProtocolLocally(fiatShamirUser, fiatShamirProtocol.instantiateProvider(3, token.dsid, sessionId, issuerKey.getSigningKey()));
+            assertEquals(incentiveSystem.zp.valueOf(7), fiatShamirUser.getUserResult().v);
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void spendWithPrecomputationPool() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+        PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+
+        IssueJoinProtocol protocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+        IssueJoinProtocol.IssueJoinProtocolInstance userInstance = protocol.instantiateUser(userKey.pk, userKey.sk);
+        protocol.runProtocolLocally(userInstance, protocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+        Token token = userInstance.getUserResult();
+
+        try (SpendPrecomputationPool pool = new SpendPrecomputationPool(incentiveSystem, preparedIssuerKey, userKey.sk, 2)) {
+            pool.prepare(token);
+            SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+            for (int i = 0; i < 4; i++) { //more spends than the pool depth, so some values are computed inline
+                SpendDeductProtocol.SpendDeductProtocolInstance spendUserInstance = spendProtocol.instantiateUser(0, token, pool);
+                spendProtocol.runProtocolLocally(spendUserInstance, spendProtocol.instantiateProvider(0, token.dsid, issuerKey.getSigningKey()));
+                token = spendUserInstance.getUserResult();
+                assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void providerPrecomputationPool() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+        PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+
+        try (ProviderPrecomputationPool pool = new ProviderPrecomputationPool(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 2)) {
+            IssueJoinProtocol protocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+            IssueJoinProtocol.IssueJoinProtocolInstance userInstance = protocol.instantiateUser(userKey.pk, userKey.sk);
+            protocol.runProtocolLocally(userInstance, protocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey(), pool));
+            Token token = userInstance.getUserResult();
+
+            CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+            CreditEarnProtocol.CreditEarnProtocolInstance earnUserInstance = earnProtocol.instantiateUser(5, token);
+            earnProtocol.runProtocolLocally(earnUserInstance, earnProtocol.instantiateProvider(5, issuerKey.getSigningKey(), pool));
+            token = earnUserInstance.getUserResult();
+
+            SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+            for (int i = 0; i < 3; i++) {
+                SpendDeductProtocol.SpendDeductProtocolInstance spendUserInstance = spendProtocol.instantiateUser(1, token);
+                spendProtocol.runProtocolLocally(spendUserInstance, spendProtocol.instantiateProvider(1, token.dsid, issuerKey.getSigningKey(), pool));
+                token = spendUserInstance.getUserResult();
+                assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+            }
+            assertEquals(incentiveSystem.zp.valueOf(2), token.v);
+            assertEquals(1 + 1 + 1 + 3 * 3, pool.getHits() + pool.getMisses());
+        }
+    }
+
+    @org.junit.Test
+    public void batchIssue() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+        IssueJoinFiatShamirProtocol protocol = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+
+        List<IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance> users = new ArrayList<>();
+        List<BatchIssuer.PendingJoin> requests = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+            byte[] sessionId = {(byte) i};
+            IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance user = protocol.instantiateUser(userKey.pk, userKey.sk, sessionId);
+            IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance provider = protocol.instantiateProvider(userKey.pk, sessionId, issuerKey.getSigningKey());
+            Representation userMessage = user.nextMessage(provider.nextMessage(user.nextMessage(null)));
+            users.add(user);
+            requests.add(new BatchIssuer.PendingJoin(provider, userMessage));
+        }
+        //session 5 gets session 4's proof, which is bound to a different transcript
+        requests.set(5, new BatchIssuer.PendingJoin(requests.get(5).provider, requests.get(4).message));
+        //session 6 sends a proof with an announcement missing
+        requests.set(6, new BatchIssuer.PendingJoin(requests.get(6).provider, withoutField(requests.get(6).message, "A0")));
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        try {
+            List<BatchIssuer.IssueResult> results = new BatchIssuer(forkJoinPool).issue(requests);
+            assertEquals(7, results.size());
+            for (int i = 0; i < 5; i++) {
+                assertTrue(results.get(i).isSuccessful());
+                users.get(i).nextMessage(results.get(i).reply);
+                assertTrue(incentiveSystem.verifyToken(users.get(i).getUserResult(), issuerKey.getVerificationKey()));
+            }
+            assertFalse(results.get(5).isSuccessful());
+            assertNull(results.get(5).reply);
+            assertEquals("Invalid well-formedness proof", results.get(5).failure.getMessage());
+            assertFalse(results.get(6).isSuccessful());
+            assertNull(results.get(6).reply);
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    /**
+     * Copies repr, leaving out the object fields named key (at any depth).
+     */
+    private static Representation withoutField(Representation repr, String key) {
+        if (repr instanceof ListRepresentation) {
+            List<Representation> list = new ArrayList<>();
+            for (Representation element : ((ListRepresentation) repr).getList())
+                list.add(withoutField(element, key));
+            return new ListRepresentation(list);
+        }
+        if (!(repr instanceof ObjectRepresentation))
+            return repr;
+        ObjectRepresentation obj = (ObjectRepresentation) repr;
+        ObjectRepresentation copy = new ObjectRepresentation();
+        for (String field : obj.getKeys())
+            if (!field.equals(key))
+                copy.put(field, withoutField(obj.get(field), key));
+        return copy;
+    }
+
+    @org.junit.Test
+    public void deferredEvaluation() {
+        UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+        SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+        KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+        PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+
+        //Deferred user against eager provider
+        IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+        IssueJoinProtocol deferredIssueProtocol = new IssueJoinProtocol(incentiveSystem, preparedIssuerKey);
+        deferredIssueProtocol.setDeferredEvaluation(true);
+        IssueJoinProtocol.IssueJoinProtocolInstance issueUser = deferredIssueProtocol.instantiateUser(userKey.pk, userKey.sk);
+        issueProtocol.runProtocolLocally(issueUser, issueProtocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+        assertTrue(incentiveSystem.verifyToken(issueUser.getUserResult(), issuerKey.getVerificationKey()));
+
+        CreditEarnProtocol earnProtocol = new CreditEarnProtocol(incentiveSystem, preparedIssuerKey);
+        CreditEarnProtocol.CreditEarnProtocolInstance earnUser = earnProtocol.instantiateUser(10, issueUser.getUserResult());
+        earnProtocol.runProtocolLocally(earnUser, earnProtocol.instantiateProvider(10, issuerKey.getSigningKey()));
+        Token token = earnUser.getUserResult();
+
+        SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+        SpendDeductProtocol deferredSpendProtocol = new SpendDeductProtocol(incentiveSystem, preparedIssuerKey);
+        deferredSpendProtocol.setDeferredEvaluation(true);
+        SpendDeductProtocol.SpendDeductProtocolInstance spendUser = deferredSpendProtocol.instantiateUser(3, token);
+        spendProtocol.runProtocolLocally(spendUser, spendProtocol.instantiateProvider(3, token.dsid, issuerKey.getSigningKey()));
+        assertEquals(incentiveSystem.zp.valueOf(7), spendUser.getUserResult().v);
+        assertTrue(incentiveSystem.verifyToken(spendUser.getUserResult(), issuerKey.getVerificationKey()));
+
+        //Both sides deferred
+        byte[] sessionId = {1};
+        IssueJoinFiatShamirProtocol fiatShamirIssue = new IssueJoinFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        fiatShamirIssue.setDeferredEvaluation(true);
+        IssueJoinFiatShamirProtocol.IssueJoinFiatShamirProtocolInstance fiatShamirIssueUser = fiatShamirIssue.instantiateUser(userKey.pk, userKey.sk, sessionId);
+        fiatShamirIssue.runProtocolLocally(fiatShamirIssueUser, fiatShamirIssue.instantiateProvider(userKey.pk, sessionId, issuerKey.getSigningKey()));
+        assertTrue(incentiveSystem.verifyToken(fiatShamirIssueUser.getUserResult(), issuerKey.getVerificationKey()));
+
+        SpendDeductFiatShamirProtocol fiatShamirSpend = new SpendDeductFiatShamirProtocol(incentiveSystem, preparedIssuerKey);
+        fiatShamirSpend.setDeferredEvaluation(true);
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance fiatShamirSpendUser = fiatShamirSpend.instantiateUser(3, token, sessionId);
+        SpendDeductFiatShamirProtocol.SpendDeductFiatShamirProtocolInstance fiatShamirSpendProvider = fiatShamirSpend.instantiateProvider(3, token.dsid, sessionId, issuerKey.getSigningKey());
+        fiatShamirSpend.runProtocolLocally(fiatShamirSpendUser, fiatShamirSpendProvider);
+        assertEquals(incentiveSystem.zp.valueOf(7), fiatShamirSpendUser.getUserResult().v);
+        assertTrue(incentiveSystem.verifyToken(fiatShamirSpendUser.getUserResult(), issuerKey.getVerificationKey()));
+        assertNotNull(fiatShamirSpendProvider.getProviderResult());
+    }
 }
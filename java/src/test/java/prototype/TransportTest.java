@@ -0,0 +1,91 @@
+package prototype;
+
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.provider.ProviderEngine;
+import org.cryptimeleon.uacs.transport.FramedChannel;
+import org.cryptimeleon.uacs.transport.ProviderServer;
+import org.cryptimeleon.uacs.transport.UserClient;
+import org.cryptimeleon.uacs.transport.WireCodec;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+    UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+    SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+    PreparedIssuerKey preparedIssuerKey = new PreparedIssuerKey(issuerKey.getVerificationKey(), issuerKey.getSigningKey());
+
+    @Test
+    public void pipelinesSessionsOverLoopback() throws Exception {
+        int users = 6;
+        ConcurrentHashMap<Zn.ZnElement, DoubleSpendTag> tags = new ConcurrentHashMap<>();
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(4);
+
+        try (ProviderEngine engine = new ProviderEngine(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 10000);
+             ProviderServer server = new ProviderServer(incentiveSystem, engine, new WireCodec(incentiveSystem.zp), new InetSocketAddress("127.0.0.1", 0));
+             UserClient client = new UserClient(incentiveSystem, preparedIssuerKey, new WireCodec(incentiveSystem.zp), server.getLocalAddress(), clientExecutor)) {
+            engine.setDoubleSpendTagSink(tags::putIfAbsent);
+
+            //All users' sessions are in flight over the same connection at once
+            List<CompletableFuture<Token>> results = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+                results.add(client.issue(userKey.pk, userKey.sk)
+                        .thenCompose(token -> client.earn(10, token))
+                        .thenCompose(token -> client.spend(4, token)));
+            }
+
+            for (CompletableFuture<Token> result : results) {
+                Token token = result.get(60, TimeUnit.SECONDS);
+                assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+                assertEquals(incentiveSystem.zp.valueOf(6), token.v);
+            }
+            assertEquals(users, tags.size());
+
+            //Provider errors are reported to the user
+            KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+            Token token = client.issue(userKey.pk, userKey.sk).get(60, TimeUnit.SECONDS);
+            try {
+                client.spend(1, token).get(60, TimeUnit.SECONDS);
+                fail("Spending more than the token's value should fail");
+            } catch (ExecutionException e) {
+                //expected
+            }
+        } finally {
+            clientExecutor.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void malformedFrameOnlyClosesItsConnection() throws Exception {
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(2);
+        try (ProviderEngine engine = new ProviderEngine(incentiveSystem, preparedIssuerKey, issuerKey.getSigningKey(), 10000);
+             ProviderServer server = new ProviderServer(incentiveSystem, engine, new WireCodec(incentiveSystem.zp), new InetSocketAddress("127.0.0.1", 0));
+             UserClient client = new UserClient(incentiveSystem, preparedIssuerKey, new WireCodec(incentiveSystem.zp), server.getLocalAddress(), clientExecutor)) {
+            //A three-byte payload is too short for the envelope's stream id
+            try (SocketChannel attacker = SocketChannel.open(server.getLocalAddress())) {
+                FramedChannel.writeFrame(attacker, ByteBuffer.wrap(new byte[] {1, 2, 3}));
+                assertEquals(-1, attacker.read(ByteBuffer.allocate(1))); //server closed the connection
+            }
+
+            KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+            Token token = client.issue(userKey.pk, userKey.sk).get(60, TimeUnit.SECONDS);
+            assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+        } finally {
+            clientExecutor.shutdown();
+        }
+    }
+}
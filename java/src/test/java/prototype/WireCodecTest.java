@@ -0,0 +1,128 @@
+package prototype;
+
+import org.cryptimeleon.craco.protocols.TwoPartyProtocolInstance;
+import org.cryptimeleon.craco.sig.SignatureKeyPair;
+import org.cryptimeleon.craco.sig.ps.PSExtendedVerificationKey;
+import org.cryptimeleon.craco.sig.ps.PSSigningKey;
+import org.cryptimeleon.math.serialization.*;
+import org.cryptimeleon.math.serialization.converter.JSONConverter;
+import org.cryptimeleon.math.structures.groups.GroupElement;
+import org.cryptimeleon.math.structures.rings.zn.Zn;
+import org.cryptimeleon.mclwrap.bn254.MclBilinearGroup;
+import org.cryptimeleon.uacs.*;
+import org.cryptimeleon.uacs.transport.WireCodec;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class WireCodecTest {
+    UacsIncentiveSystem incentiveSystem = new UacsIncentiveSystem(new MclBilinearGroup());
+    SignatureKeyPair<PSExtendedVerificationKey, PSSigningKey> issuerKey = incentiveSystem.issuerKeyGen();
+    KeyPair<GroupElement, Zn.ZnElement> userKey = incentiveSystem.keyGen();
+    WireCodec codec = new WireCodec(incentiveSystem.zp);
+
+    @Test
+    public void roundTripsAllRepresentationTypes() {
+        ObjectRepresentation obj = new ObjectRepresentation();
+        obj.put("scalar", incentiveSystem.zp.getUniformlyRandomElement().getRepresentation());
+        obj.put("negative", new BigIntegerRepresentation(BigInteger.valueOf(-42)));
+        obj.put("huge", new BigIntegerRepresentation(BigInteger.ONE.shiftLeft(1000)));
+        obj.put("bytes", new ByteArrayRepresentation(new byte[] {1, 2, 3}));
+        obj.put("point", incentiveSystem.w.getRepresentation());
+        obj.put("numbers", new StringRepresentation("0 10 123456789012345678901234567890"));
+        obj.put("notNumbers", new StringRepresentation("01 2"));
+        obj.put("text", new StringRepresentation("hello"));
+        obj.put("list", new ListRepresentation(obj.get("scalar"), obj.get("scalar"), null));
+        ObjectRepresentation nested = new ObjectRepresentation();
+        nested.put("text", new StringRepresentation("repeated key"));
+        obj.put("nested", nested);
+        obj.put("representable", new RepresentableRepresentation(incentiveSystem.group.getClass().getName(), incentiveSystem.group.getRepresentation()));
+
+        ByteBuffer buffer = ByteBuffer.allocate(codec.encodedLength(obj) + 3);
+        buffer.put((byte) 7);
+        codec.encode(obj, buffer);
+        assertEquals(buffer.capacity() - 2, buffer.position());
+
+        buffer.flip();
+        buffer.get();
+        assertEquals(obj, codec.decode(buffer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        byte[] frame = codec.encode(new StringRepresentation("x"));
+        frame[2] = 99;
+        codec.decode(frame);
+    }
+
+    @Test
+    public void rejectsHostileFrames() {
+        //A list claiming 2^21 elements in a five-byte payload
+        byte[] hugeList = {'U', 'W', WireCodec.VERSION, 0, 0, 0, 0, 5, 6, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        assertRejected(hugeList);
+
+        //Lists nested deeper than MAX_DEPTH
+        Representation nested = new StringRepresentation("x");
+        for (int i = 0; i <= WireCodec.MAX_DEPTH; i++)
+            nested = new ListRepresentation(nested);
+        assertRejected(codec.encode(nested));
+
+        //A frame whose length ends in the middle of its content, followed by more bytes
+        byte[] frame = codec.encode(new ListRepresentation(new StringRepresentation("a"), new StringRepresentation("b")));
+        ByteBuffer.wrap(frame).putInt(4, frame.length - WireCodec.HEADER_LENGTH - 3);
+        assertRejected(frame);
+
+        //A header without payload
+        assertRejected(new byte[] {'U', 'W', WireCodec.VERSION});
+    }
+
+    private void assertRejected(byte[] frame) {
+        try {
+            codec.decode(frame);
+            fail("Frame was accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void runsProtocolOverCodec() {
+        IssueJoinProtocol issueProtocol = new IssueJoinProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        IssueJoinProtocol.IssueJoinProtocolInstance issueUser = issueProtocol.instantiateUser(userKey.pk, userKey.sk);
+        int binaryLength = runOverCodec(issueUser, issueProtocol.instantiateProvider(userKey.pk, issuerKey.getSigningKey()));
+        Token token = issueUser.getUserResult();
+        assertTrue(incentiveSystem.verifyToken(token, issuerKey.getVerificationKey()));
+
+        SpendDeductProtocol spendProtocol = new SpendDeductProtocol(incentiveSystem, issuerKey.getVerificationKey());
+        SpendDeductProtocol.SpendDeductProtocolInstance spendUser = spendProtocol.instantiateUser(0, token);
+        binaryLength += runOverCodec(spendUser, spendProtocol.instantiateProvider(0, token.dsid, issuerKey.getSigningKey()));
+        assertTrue(incentiveSystem.verifyToken(spendUser.getUserResult(), issuerKey.getVerificationKey()));
+        assertTrue(binaryLength > 0);
+    }
+
+    /**
+     * Runs the protocol with every message encoded and decoded by the codec. Returns the total encoded length.
+     */
+    private int runOverCodec(TwoPartyProtocolInstance user, TwoPartyProtocolInstance provider) {
+        JSONConverter json = new JSONConverter();
+        int binaryLength = 0, jsonLength = 0;
+        TwoPartyProtocolInstance current = user.sendsFirstMessage() ? user : provider;
+        Representation message = null;
+        while (!user.hasTerminated() || !provider.hasTerminated()) {
+            message = current.nextMessage(message);
+            if (message != null) {
+                byte[] encoded = codec.encode(message);
+                binaryLength += encoded.length;
+                jsonLength += json.serialize(message).getBytes(StandardCharsets.UTF_8).length;
+                message = codec.decode(encoded);
+            }
+            current = current == user ? provider : user;
+        }
+        assertTrue(binaryLength < jsonLength);
+        return binaryLength;
+    }
+}